@@ -22,6 +22,17 @@ import android.text.TextUtils;
 import java.net.Proxy;
 
 public class AIConfiguration extends ai.api.AIConfiguration {
+
+    /**
+     * Audio level events are delivered every time recognition engine reports new value
+     */
+    public static final int AUDIO_LEVEL_RATE_UNLIMITED = 0;
+
+    /**
+     * Audio level events are delivered to the main thread at most once per display frame
+     */
+    public static final int AUDIO_LEVEL_RATE_DISPLAY = -1;
+
     public enum RecognitionEngine {
 
         /**
@@ -44,7 +55,54 @@ public class AIConfiguration extends ai.api.AIConfiguration {
          * will be support until 01.02.2017
          */
         @Deprecated
-        Speaktoit
+        Speaktoit,
+
+        /**
+         * System recognition raced against server side recognition, the first valid result is used.
+         * Uses more traffic, but reduces latency on slow networks.
+         */
+        Hedged,
+
+        /**
+         * Engine is chosen for every session by the time to result and error rate measured on the current network.
+         * Stats are kept on the device, engine which started to fail is replaced automatically.
+         */
+        Auto
+    }
+
+    /**
+     * Processing of the captured audio level, used by the engines which capture audio themselves
+     */
+    public enum GainControl {
+
+        /**
+         * Audio is sent as captured
+         */
+        None,
+
+        /**
+         * Streaming gain control with fast attack and slow release, quiet speech is amplified
+         * and loud sounds lower the gain only for a while
+         */
+        Automatic
+    }
+
+    /**
+     * Encoding of the audio uploaded for server side recognition
+     */
+    public enum AudioEncoding {
+
+        /**
+         * Raw 16 bit PCM, 256 kbit/s at 16 kHz. Default, this is the audio the voice request content type describes.
+         */
+        Pcm,
+
+        /**
+         * Lossless FLAC encoded while streaming, usually half of the PCM size or less. Opt-in only:
+         * voice request part is still sent with audio/wav content type, so the backend must detect FLAC
+         * by the stream header.
+         */
+        Flac
     }
 
     private final RecognitionEngine recognitionEngine;
@@ -66,14 +124,20 @@ public class AIConfiguration extends ai.api.AIConfiguration {
 
     private boolean voiceActivityDetectionEnabled = true;
 
-    private boolean normalizeInputSound = false;
+    private GainControl gainControl = GainControl.None;
+
+    private AudioEncoding audioEncoding = AudioEncoding.Pcm;
+
+    private boolean recognitionThreadEnabled = false;
+
+    private int audioLevelRate = AUDIO_LEVEL_RATE_UNLIMITED;
 
     public AIConfiguration(final String clientAccessToken, final SupportedLanguages language, final RecognitionEngine recognitionEngine) {
         super(clientAccessToken, language);
 
         this.recognitionEngine = recognitionEngine;
 
-        if (recognitionEngine == RecognitionEngine.Speaktoit
+        if ((recognitionEngine == RecognitionEngine.Speaktoit || recognitionEngine == RecognitionEngine.Hedged)
                 && language == SupportedLanguages.Korean) {
             throw new UnsupportedOperationException("Only System recognition supported for Korean language");
         }
@@ -100,13 +164,72 @@ public class AIConfiguration extends ai.api.AIConfiguration {
      * With setting this field to true you can enable sound amplification if it's too quiet. This option improves recognition quality on some devices.
      * This option does not affect System recognition.
      * @param normalizeInputSound
+     * @deprecated Use {@link #setGainControl(GainControl)}, true is the same as {@link GainControl#Automatic}
      */
+    @Deprecated
     public void setNormalizeInputSound(final boolean normalizeInputSound) {
-        this.normalizeInputSound = normalizeInputSound;
+        this.gainControl = normalizeInputSound ? GainControl.Automatic : GainControl.None;
     }
 
+    /**
+     * @deprecated Use {@link #getGainControl()}
+     */
+    @Deprecated
     public boolean isNormalizeInputSound() {
-        return normalizeInputSound;
+        return gainControl != GainControl.None;
+    }
+
+    /**
+     * Sets processing of the captured audio level. This option improves recognition quality on devices with quiet microphone.
+     * This option does not affect System recognition.
+     * @param gainControl
+     */
+    public void setGainControl(final GainControl gainControl) {
+        this.gainControl = gainControl != null ? gainControl : GainControl.None;
+    }
+
+    public GainControl getGainControl() {
+        return gainControl;
+    }
+
+    /**
+     * Sets encoding of the uploaded audio, {@link AudioEncoding#Pcm} by default. Compressed audio reduces upload time
+     * on slow networks, enable {@link AudioEncoding#Flac} only if the backend accepts it with audio/wav content type.
+     * This option does not affect System recognition.
+     * @param audioEncoding
+     */
+    public void setAudioEncoding(final AudioEncoding audioEncoding) {
+        this.audioEncoding = audioEncoding != null ? audioEncoding : AudioEncoding.Pcm;
+    }
+
+    public AudioEncoding getAudioEncoding() {
+        return audioEncoding;
+    }
+
+    /**
+     * With setting this field to true recognizer callbacks, timers and restarts are processed on the SDK owned background thread,
+     * and only listener events are delivered to the main thread. Audio level events are coalesced before delivery.
+     * By default all work is done on the thread which created the AIService.
+     * @param recognitionThreadEnabled
+     */
+    public void setRecognitionThreadEnabled(final boolean recognitionThreadEnabled) {
+        this.recognitionThreadEnabled = recognitionThreadEnabled;
+    }
+
+    public boolean isRecognitionThreadEnabled() {
+        return recognitionThreadEnabled;
+    }
+
+    /**
+     * Limits how often onAudioLevel is called. With limited rate only the latest level is delivered, on the main thread.
+     * @param audioLevelRate max number of events per second, {@link #AUDIO_LEVEL_RATE_DISPLAY} or {@link #AUDIO_LEVEL_RATE_UNLIMITED}
+     */
+    public void setAudioLevelRate(final int audioLevelRate) {
+        this.audioLevelRate = audioLevelRate;
+    }
+
+    public int getAudioLevelRate() {
+        return audioLevelRate;
     }
 
     public AssetFileDescriptor getRecognizerStartSound() {
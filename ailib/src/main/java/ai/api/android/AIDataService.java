@@ -21,9 +21,25 @@ import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 import ai.api.AIServiceContext;
+import ai.api.AIServiceException;
+import ai.api.RequestExtras;
+import ai.api.metrics.Counter;
+import ai.api.metrics.Histogram;
+import ai.api.metrics.MetricsRegistry;
+import ai.api.model.AIRequest;
+import ai.api.model.AIResponse;
+import ai.api.util.Timings;
+import ai.api.util.TraceSpans;
 
 /**
  * Do simple requests to the AI Service
@@ -33,6 +49,16 @@ public class AIDataService extends ai.api.AIDataService {
 
     public static final String TAG = AIDataService.class.getName();
 
+    /**
+     * Max number of session contexts kept in memory
+     */
+    private static final int SESSION_CONTEXTS_CAPACITY = 1024;
+
+    private static final Histogram requestLatency = MetricsRegistry.getDefault().histogram(MetricsRegistry.REQUEST_LATENCY);
+    private static final Counter requestErrors = MetricsRegistry.getDefault().counter(MetricsRegistry.REQUEST_ERRORS);
+    private static final Counter bytesUploaded = MetricsRegistry.getDefault().counter(MetricsRegistry.BYTES_UPLOADED);
+    private static final Counter bytesDownloaded = MetricsRegistry.getDefault().counter(MetricsRegistry.BYTES_DOWNLOADED);
+
     @NonNull
     private final Context context;
 
@@ -42,18 +68,299 @@ public class AIDataService extends ai.api.AIDataService {
     @NonNull
     private final Gson gson = GsonFactory.getGson();
 
+    private final Map<Session, AIServiceContext> sessionContexts =
+            new LinkedHashMap<Session, AIServiceContext>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Session, AIServiceContext> eldest) {
+                    return size() > SESSION_CONTEXTS_CAPACITY;
+                }
+            };
+
+    /**
+     * Stage timestamps of the request made on the current thread
+     */
+    private final ThreadLocal<Timings> requestTimings = new ThreadLocal<>();
+
     public AIDataService(@NonNull final Context context, @NonNull final AIConfiguration config) {
-        super(config, new AIAndroidServiceContext(context));
+        super(config, new AIAndroidServiceContext(context, null));
         this.context = context;
         this.config = config;
     }
 
+    /**
+     * Make request to the AI service, request stages are recorded to the timings of the listening session
+     */
+    public AIResponse request(@NonNull final AIRequest request, final RequestExtras requestExtras, @NonNull final Timings timings) throws AIServiceException {
+        requestTimings.set(timings);
+        try {
+            return request(request, requestExtras);
+        } finally {
+            requestTimings.remove();
+        }
+    }
+
+    /**
+     * Make voice request to the AI service, request stages are recorded to the timings of the listening session
+     */
+    public AIResponse voiceRequest(@NonNull final InputStream voiceStream, final RequestExtras requestExtras, @NonNull final Timings timings) throws AIServiceException {
+        requestTimings.set(timings);
+        try {
+            return voiceRequest(voiceStream, requestExtras);
+        } finally {
+            requestTimings.remove();
+        }
+    }
+
+    @Override
+    public AIResponse request(final AIRequest request, final RequestExtras requestExtras, final AIServiceContext serviceContext) throws AIServiceException {
+        final Timings timings = requestTimings.get();
+        if (timings != null) {
+            return registerTimings(super.request(request, requestExtras, serviceContext), timings);
+        }
+
+        // request outside of listening session gets its own timings
+        final Timings ownTimings = new Timings();
+        requestTimings.set(ownTimings);
+        try {
+            return registerTimings(super.request(request, requestExtras, serviceContext), ownTimings);
+        } finally {
+            requestTimings.remove();
+        }
+    }
+
+    @Override
+    public AIResponse voiceRequest(final InputStream voiceStream, final RequestExtras requestExtras, final AIServiceContext serviceContext) throws AIServiceException {
+        final Timings timings = requestTimings.get();
+        if (timings != null) {
+            return registerTimings(super.voiceRequest(voiceStream, requestExtras, serviceContext), timings);
+        }
+
+        final Timings ownTimings = new Timings();
+        requestTimings.set(ownTimings);
+        try {
+            return registerTimings(super.voiceRequest(voiceStream, requestExtras, serviceContext), ownTimings);
+        } finally {
+            requestTimings.remove();
+        }
+    }
+
+    @Override
+    protected String doTextRequest(final String endpoint, final String requestJson, final Map<String, String> additionalHeaders)
+            throws MalformedURLException, AIServiceException {
+        final Timings timings = requestTimings.get();
+        if (timings != null) {
+            timings.mark(Timings.REQUEST_SENT);
+        }
+        bytesUploaded.add(getUtf8Length(requestJson));
+
+        final String response;
+        TraceSpans.beginHttpSection();
+        try {
+            response = super.doTextRequest(endpoint, requestJson, withTraceId(additionalHeaders, timings));
+        } catch (final AIServiceException e) {
+            requestErrors.increment();
+            throw e;
+        } finally {
+            TraceSpans.endHttpSection();
+        }
+        if (timings != null) {
+            timings.mark(Timings.RESPONSE_RECEIVED);
+        }
+        bytesDownloaded.add(getUtf8Length(response));
+        return response;
+    }
+
+    @Override
+    protected String doSoundRequest(final InputStream voiceStream, final String queryData, final Map<String, String> additionalHeaders)
+            throws MalformedURLException, AIServiceException {
+        final Timings timings = requestTimings.get();
+        if (timings != null) {
+            timings.mark(Timings.REQUEST_SENT);
+        }
+        bytesUploaded.add(getUtf8Length(queryData));
+
+        final String response;
+        TraceSpans.beginHttpSection();
+        try {
+            response = super.doSoundRequest(new CountingInputStream(voiceStream), queryData, withTraceId(additionalHeaders, timings));
+        } catch (final AIServiceException e) {
+            requestErrors.increment();
+            throw e;
+        } finally {
+            TraceSpans.endHttpSection();
+        }
+        if (timings != null) {
+            timings.mark(Timings.RESPONSE_RECEIVED);
+        }
+        bytesDownloaded.add(getUtf8Length(response));
+        return response;
+    }
+
+    /**
+     * Adds trace id of the session to the request headers, unless the caller has set it in RequestExtras
+     */
+    private static Map<String, String> withTraceId(final Map<String, String> additionalHeaders, final Timings timings) {
+        if (timings == null || (additionalHeaders != null && additionalHeaders.containsKey(TraceSpans.TRACE_ID_HEADER))) {
+            return additionalHeaders;
+        }
+        final Map<String, String> headers = additionalHeaders != null
+                ? new HashMap<>(additionalHeaders)
+                : new HashMap<String, String>();
+        headers.put(TraceSpans.TRACE_ID_HEADER, timings.getTraceId());
+        return headers;
+    }
+
+    private static AIResponse registerTimings(final AIResponse response, final Timings timings) {
+        timings.mark(Timings.PARSE_DONE);
+        final long latency = timings.getMillis(Timings.REQUEST_SENT, Timings.PARSE_DONE);
+        if (latency >= 0) {
+            requestLatency.record(latency);
+        }
+        if (response != null) {
+            Timings.register(response.getId(), timings);
+        }
+        return response;
+    }
+
+    /**
+     * Counts size of the text without encoding it
+     */
+    private static long getUtf8Length(final String text) {
+        if (text == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+                // surrogate pair is encoded with 4 bytes
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Make request to the AI service in the context of the session. Requests of different sessions can be done concurrently.
+     * @param request request object to the service
+     * @param requestExtras optional request parameters, can be null
+     * @param session conversation the request belongs to
+     * @return response object from service
+     */
+    public AIResponse request(@NonNull final AIRequest request, final RequestExtras requestExtras, @NonNull final Session session) throws AIServiceException {
+        return request(request, requestExtras, getServiceContext(session));
+    }
+
+    public AIResponse request(@NonNull final AIRequest request, @NonNull final Session session) throws AIServiceException {
+        return request(request, (RequestExtras) null, getServiceContext(session));
+    }
+
+    public AIResponse voiceRequest(@NonNull final InputStream voiceStream, final RequestExtras requestExtras, @NonNull final Session session) throws AIServiceException {
+        return voiceRequest(voiceStream, requestExtras, getServiceContext(session));
+    }
+
+    /**
+     * Forget all contexts of the session on the server side. Named session gets new session id.
+     */
+    public void resetSession(@NonNull final Session session) throws AIServiceException {
+        resetActiveContexts(getServiceContext(session));
+        if (session.isPersistent()) {
+            SessionIdStorage.resetSessionId(context, session.getName());
+        }
+        closeSession(session);
+    }
+
+    /**
+     * Releases memory used by the session. Closing doesn't end the conversation: the next request of the session
+     * creates its context again with the same session id. Use {@link #resetSession(Session)} to forget the contexts.
+     */
+    public void closeSession(@NonNull final Session session) {
+        synchronized (sessionContexts) {
+            sessionContexts.remove(session);
+        }
+    }
+
+    /**
+     * @return service context of the session, created on the first use
+     */
+    public AIServiceContext getServiceContext(@NonNull final Session session) {
+        synchronized (sessionContexts) {
+            AIServiceContext serviceContext = sessionContexts.get(session);
+            if (serviceContext == null) {
+                serviceContext = session.isPersistent()
+                        ? new AIAndroidServiceContext(context, session.getName())
+                        : new FixedServiceContext(session.getSessionId());
+                sessionContexts.put(session, serviceContext);
+            }
+            return serviceContext;
+        }
+    }
+
+    /**
+     * Session id is loaded on the first request, so service can be created on the main thread without disk access
+     */
     private static class AIAndroidServiceContext implements AIServiceContext {
 
+        private final Context context;
+        private final String sessionName;
+        private volatile String sessionId;
+
+        public AIAndroidServiceContext(final Context context, final String sessionName) {
+            this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            this.sessionName = sessionName;
+        }
+
+        public String getSessionId() {
+            if (sessionId == null) {
+                sessionId = SessionIdStorage.getSessionId(context, sessionName);
+            }
+            return sessionId;
+        }
+
+        public TimeZone getTimeZone() { return TimeZone.getDefault(); }
+    }
+
+    /**
+     * Adds size of the uploaded voice to the metrics
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value >= 0) {
+                bytesUploaded.increment();
+            }
+            return value;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int byteOffset, final int byteCount) throws IOException {
+            final int count = super.read(buffer, byteOffset, byteCount);
+            if (count > 0) {
+                bytesUploaded.add(count);
+            }
+            return count;
+        }
+    }
+
+    private static class FixedServiceContext implements AIServiceContext {
+
         private final String sessionId;
 
-        public AIAndroidServiceContext(final Context context) {
-            sessionId = SessionIdStorage.getSessionId(context);
+        public FixedServiceContext(final String sessionId) {
+            this.sessionId = sessionId;
         }
 
         public String getSessionId() {
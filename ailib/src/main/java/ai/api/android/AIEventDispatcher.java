@@ -0,0 +1,316 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.android;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.api.AIListener;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+import ai.api.util.Timings;
+
+/**
+ * Delivers AIService events to several listeners. Every listener is registered with its own executor
+ * and events queue, so slow listener doesn't block recognition and other listeners.
+ * Events for the same listener are delivered in order, one at a time. Listeners registered with
+ * {@link #DIRECT_EXECUTOR} are called synchronously on the thread which reported the event.
+ * Audio levels waiting for delivery are coalesced, only the latest value is delivered. Audio levels are dropped
+ * when the listener is behind by the queue capacity, other events are always delivered, so the listener
+ * learns when the session ends.
+ */
+public class AIEventDispatcher implements AIListener {
+
+    private static final String TAG = AIEventDispatcher.class.getName();
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_SLOW_LISTENER_MILLIS = 16;
+
+    /**
+     * Runs events on the thread which reported them, events are not queued
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int EVENT_RESULT = 0;
+    private static final int EVENT_ERROR = 1;
+    private static final int EVENT_AUDIO_LEVEL = 2;
+    private static final int EVENT_LISTENING_STARTED = 3;
+    private static final int EVENT_LISTENING_CANCELED = 4;
+    private static final int EVENT_LISTENING_FINISHED = 5;
+
+    private static final Event LISTENING_STARTED = new Event(EVENT_LISTENING_STARTED, null);
+    private static final Event LISTENING_CANCELED = new Event(EVENT_LISTENING_CANCELED, null);
+    private static final Event LISTENING_FINISHED = new Event(EVENT_LISTENING_FINISHED, null);
+
+    /**
+     * Marks place of the audio level in the queue, value is kept by the registration
+     */
+    private static final Event AUDIO_LEVEL = new Event(EVENT_AUDIO_LEVEL, null);
+
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    private final int queueCapacity;
+    private volatile long slowListenerNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_LISTENER_MILLIS);
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong slowEvents = new AtomicLong();
+
+    public AIEventDispatcher() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public AIEventDispatcher(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return executor which runs events on the main thread, immediately if called from it
+     */
+    public static Executor mainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                if (Looper.myLooper() == handler.getLooper()) {
+                    command.run();
+                } else {
+                    handler.post(command);
+                }
+            }
+        };
+    }
+
+    public void addListener(final AIListener listener, final Executor executor) {
+        if (listener == null || executor == null) {
+            throw new IllegalArgumentException("listener and executor must be not null");
+        }
+        registrations.add(new Registration(listener, executor, queueCapacity));
+    }
+
+    public boolean removeListener(final AIListener listener) {
+        for (final Registration registration : registrations) {
+            if (registration.listener == listener) {
+                registration.removed = true;
+                return registrations.remove(registration);
+            }
+        }
+        return false;
+    }
+
+    public boolean hasListeners() {
+        return !registrations.isEmpty();
+    }
+
+    /**
+     * Listener call which takes longer than this threshold counted as slow
+     */
+    public void setSlowListenerThreshold(final long millis) {
+        slowListenerNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return number of audio levels dropped because listener queue was full
+     */
+    public long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * @return number of listener calls which took longer than slow listener threshold
+     */
+    public long getSlowEventCount() {
+        return slowEvents.get();
+    }
+
+    @Override
+    public void onResult(final AIResponse result) {
+        dispatch(new Event(EVENT_RESULT, result));
+    }
+
+    @Override
+    public void onError(final AIError error) {
+        dispatch(new Event(EVENT_ERROR, error));
+    }
+
+    @Override
+    public void onAudioLevel(final float level) {
+        for (final Registration registration : registrations) {
+            registration.enqueueLevel(level);
+        }
+    }
+
+    @Override
+    public void onListeningStarted() {
+        dispatch(LISTENING_STARTED);
+    }
+
+    @Override
+    public void onListeningCanceled() {
+        dispatch(LISTENING_CANCELED);
+    }
+
+    @Override
+    public void onListeningFinished() {
+        dispatch(LISTENING_FINISHED);
+    }
+
+    private void dispatch(final Event event) {
+        for (final Registration registration : registrations) {
+            registration.enqueue(event);
+        }
+    }
+
+    private static class Event {
+        private final int type;
+        private final Object payload;
+
+        private Event(final int type, final Object payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    private class Registration implements Runnable {
+        private final AIListener listener;
+        private final Executor executor;
+        private final boolean direct;
+        private final int capacity;
+        private final BlockingQueue<Event> queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean removed;
+
+        private volatile float pendingLevel;
+        private final AtomicBoolean levelQueued = new AtomicBoolean();
+
+        private Registration(final AIListener listener, final Executor executor, final int capacity) {
+            this.listener = listener;
+            this.executor = executor;
+            direct = executor == DIRECT_EXECUTOR;
+            this.capacity = capacity;
+            this.queue = direct ? null : new LinkedBlockingQueue<Event>();
+        }
+
+        private void enqueueLevel(final float level) {
+            if (direct) {
+                if (!removed) {
+                    final long start = System.nanoTime();
+                    listener.onAudioLevel(level);
+                    checkSlow(start);
+                }
+                return;
+            }
+            pendingLevel = level;
+            if (levelQueued.compareAndSet(false, true)) {
+                enqueue(AUDIO_LEVEL);
+            }
+        }
+
+        private void enqueue(final Event event) {
+            if (direct) {
+                if (!removed) {
+                    deliverTimed(event);
+                }
+                return;
+            }
+            if (event == AUDIO_LEVEL && queue.size() >= capacity) {
+                levelQueued.set(false);
+                droppedEvents.incrementAndGet();
+                Log.w(TAG, "Listener queue is full, audio level dropped");
+                return;
+            }
+            queue.add(event);
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Event event;
+            while (!removed && (event = queue.poll()) != null) {
+                deliverTimed(event);
+            }
+            draining.set(false);
+            // event could be added after the last poll but before draining flag was reset
+            if (!removed && !queue.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+
+        private void deliverTimed(final Event event) {
+            final long start = System.nanoTime();
+            deliver(event);
+            checkSlow(start);
+        }
+
+        private void checkSlow(final long startNanos) {
+            if (System.nanoTime() - startNanos > slowListenerNanos) {
+                slowEvents.incrementAndGet();
+            }
+        }
+
+        private void deliver(final Event event) {
+            switch (event.type) {
+                case EVENT_RESULT:
+                    final AIResponse response = (AIResponse) event.payload;
+                    listener.onResult(response);
+                    if (response != null) {
+                        final Timings timings = Timings.forResponse(response.getId());
+                        if (timings != null) {
+                            timings.mark(Timings.LISTENER_DELIVERED);
+                        }
+                    }
+                    break;
+                case EVENT_ERROR:
+                    listener.onError((AIError) event.payload);
+                    break;
+                case EVENT_AUDIO_LEVEL:
+                    // value reported after this point is queued again
+                    levelQueued.set(false);
+                    listener.onAudioLevel(pendingLevel);
+                    break;
+                case EVENT_LISTENING_STARTED:
+                    listener.onListeningStarted();
+                    break;
+                case EVENT_LISTENING_CANCELED:
+                    listener.onListeningCanceled();
+                    break;
+                case EVENT_LISTENING_FINISHED:
+                    listener.onListeningFinished();
+                    break;
+            }
+        }
+    }
+}
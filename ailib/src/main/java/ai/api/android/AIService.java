@@ -21,17 +21,25 @@ import android.content.Context;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import ai.api.AIListener;
+import ai.api.AudioFrameListener;
 import ai.api.AIServiceException;
 import ai.api.RequestExtras;
+import ai.api.metrics.Histogram;
+import ai.api.metrics.MetricsRegistry;
 import ai.api.model.AIContext;
 import ai.api.model.AIError;
 import ai.api.model.AIRequest;
 import ai.api.model.AIResponse;
 import ai.api.model.Entity;
+import ai.api.services.AutoRecognitionServiceImpl;
 import ai.api.services.GoogleRecognitionServiceImpl;
+import ai.api.services.HedgedRecognitionServiceImpl;
 import ai.api.services.SpeaktoitRecognitionServiceImpl;
+import ai.api.util.AudioLevelDispatcher;
+import ai.api.util.Timings;
 import android.content.pm.PackageManager;
 import android.support.v4.content.ContextCompat;
 
@@ -42,12 +50,41 @@ public abstract class AIService {
 
     private static final String TAG = AIService.class.getName();
 
+    private static final Histogram recognitionLatency =
+            MetricsRegistry.getDefault().histogram(MetricsRegistry.RECOGNITION_LATENCY);
+
     protected final AIConfiguration config;
     protected final Context context;
 
     protected final AIDataService aiDataService;
 
-    private AIListener listener;
+    protected final RecognitionStateMachine stateMachine = new RecognitionStateMachine();
+
+    private volatile AIListener listener;
+
+    private final AIEventDispatcher eventDispatcher = new AIEventDispatcher();
+
+    /**
+     * Stage timestamps of the current session
+     */
+    private volatile Timings timings;
+
+    private volatile AudioFrameListener audioFrameListener;
+
+    /**
+     * True if the latest failed session failed because of the engine, not because of the user or the device
+     */
+    private volatile boolean engineFailure;
+
+    /**
+     * Executor used for the listener set with {@link #setListener(AIListener)}
+     */
+    private final Executor defaultExecutor;
+
+    /**
+     * Throttles audio level events, null if every level is delivered on the calling thread
+     */
+    private final AudioLevelDispatcher audioLevelDispatcher;
 
     /**
      * Use this method to get ready to work instance
@@ -64,6 +101,10 @@ public abstract class AIService {
         }
         else if (config.getRecognitionEngine() == AIConfiguration.RecognitionEngine.Speaktoit) {
             return new SpeaktoitRecognitionServiceImpl(context, config);
+        } else if (config.getRecognitionEngine() == AIConfiguration.RecognitionEngine.Hedged) {
+            return new HedgedRecognitionServiceImpl(context, config);
+        } else if (config.getRecognitionEngine() == AIConfiguration.RecognitionEngine.Auto) {
+            return new AutoRecognitionServiceImpl(context, config);
         } else {
             throw new UnsupportedOperationException("This engine still not supported");
         }
@@ -74,6 +115,30 @@ public abstract class AIService {
         this.context = context;
 
         aiDataService = new AIDataService(context, config);
+        defaultExecutor = config.isRecognitionThreadEnabled()
+                ? AIEventDispatcher.mainThreadExecutor()
+                : AIEventDispatcher.DIRECT_EXECUTOR;
+        audioLevelDispatcher = createAudioLevelDispatcher(config.getAudioLevelRate());
+    }
+
+    private AudioLevelDispatcher createAudioLevelDispatcher(final int audioLevelRate) {
+        final long interval;
+        if (audioLevelRate == AIConfiguration.AUDIO_LEVEL_RATE_DISPLAY) {
+            interval = AudioLevelDispatcher.INTERVAL_VSYNC;
+        } else if (audioLevelRate > 0) {
+            interval = 1000 / audioLevelRate;
+        } else if (config.isRecognitionThreadEnabled()) {
+            interval = AudioLevelDispatcher.INTERVAL_NONE;
+        } else {
+            return null;
+        }
+
+        return new AudioLevelDispatcher(new AudioLevelDispatcher.Callback() {
+            @Override
+            public void onAudioLevel(final float level) {
+                eventDispatcher.onAudioLevel(level);
+            }
+        }, interval);
     }
 
     /**
@@ -103,53 +168,181 @@ public abstract class AIService {
     public abstract void cancel();
 
     /**
-     * Sets listener, which used to notify about process steps
+     * @return current state of the listening session
+     */
+    public RecognitionStateMachine.State getState() {
+        return stateMachine.getState();
+    }
+
+    /**
+     * Adds listener of the listening session state. Listener is called on the thread which changed the state.
+     */
+    public void addStateListener(final RecognitionStateMachine.StateListener listener) {
+        stateMachine.addStateListener(listener);
+    }
+
+    public void removeStateListener(final RecognitionStateMachine.StateListener listener) {
+        stateMachine.removeStateListener(listener);
+    }
+
+    /**
+     * @return true if the latest session which ended with an error or cancelled itself failed because of
+     * the recognition engine or its network, e.g. server, network or busy recognizer errors. False if the user
+     * didn't speak or the device couldn't record, such failures don't tell anything about the engine quality.
+     */
+    public boolean isEngineFailure() {
+        return engineFailure;
+    }
+
+    /**
+     * Must be called before the error or self-cancel of the session is reported
+     */
+    protected void setEngineFailure(final boolean engineFailure) {
+        this.engineFailure = engineFailure;
+    }
+
+    /**
+     * Sets listener, which used to notify about process steps. Replaces listener set before,
+     * listeners added with {@link #addListener(AIListener, Executor)} are kept.
+     * If recognition thread is enabled, listener is called on the main thread, otherwise on the thread which reported the event.
      * @param listener {@link AIListener AIListener} implementation
      */
     public void setListener(final AIListener listener) {
+        if (this.listener != null) {
+            eventDispatcher.removeListener(this.listener);
+        }
         this.listener = listener;
+        if (listener != null) {
+            eventDispatcher.addListener(listener, defaultExecutor);
+        }
     }
 
-    protected void onResult(final AIResponse response) {
-        if (listener != null) {
-            listener.onResult(response);
+    /**
+     * Adds one more listener. Events are passed to the listener through its own queue and delivered using the executor,
+     * so slow listener doesn't block recognition. Only audio levels are dropped when the listener falls behind.
+     * @param listener {@link AIListener AIListener} implementation
+     * @param executor executor used to call the listener, e.g. {@link AIEventDispatcher#mainThreadExecutor()}
+     */
+    public void addListener(final AIListener listener, final Executor executor) {
+        eventDispatcher.addListener(listener, executor);
+    }
+
+    public void removeListener(final AIListener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
         }
+        eventDispatcher.removeListener(listener);
     }
 
-    protected void onError(final AIError error) {
+    /**
+     * @return number of audio levels dropped because listener queue was full
+     */
+    public long getDroppedEventCount() {
+        return eventDispatcher.getDroppedEventCount();
+    }
+
+    /**
+     * @return number of listener calls which took longer than slow listener threshold
+     */
+    public long getSlowListenerCount() {
+        return eventDispatcher.getSlowEventCount();
+    }
+
+    /**
+     * Sets listener of the captured audio. Only engines which capture audio themselves report it,
+     * system recognizer reports audio levels only.
+     * @param listener listener called on the capture thread, null to remove
+     */
+    public void setAudioFrameListener(final AudioFrameListener listener) {
+        this.audioFrameListener = listener;
+    }
+
+    protected void onAudioFrame(final byte[] buffer, final int offset, final int length) {
+        final AudioFrameListener listener = audioFrameListener;
         if (listener != null) {
-            listener.onError(error);
+            listener.onAudioFrame(buffer, offset, length);
+        }
+    }
+
+    /**
+     * @return stage timestamps of the current or the last session, null if there was no session
+     */
+    public Timings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Starts recording stage timestamps for the new session
+     */
+    protected void setTimings(final Timings timings) {
+        this.timings = timings;
+    }
+
+    protected void markTiming(final int stage) {
+        final Timings currentTimings = timings;
+        if (currentTimings != null) {
+            currentTimings.mark(stage);
+        }
+    }
+
+    protected void onResult(final AIResponse response) {
+        final Timings currentTimings = timings;
+        if (currentTimings != null && response != null) {
+            Timings.register(response.getId(), currentTimings);
+
+            // server side recognition has no transcript stage, its result comes with the response
+            final long latency = currentTimings.getMillis(Timings.SPEECH_END,
+                    currentTimings.isMarked(Timings.FINAL_TRANSCRIPT) ? Timings.FINAL_TRANSCRIPT : Timings.RESPONSE_RECEIVED);
+            if (latency >= 0) {
+                recognitionLatency.record(latency);
+            }
         }
+        eventDispatcher.onResult(response);
+    }
+
+    protected void onError(final AIError error) {
+        eventDispatcher.onError(error);
     }
 
     protected void onAudioLevelChanged(final float audioLevel) {
-        if (listener != null) {
-            listener.onAudioLevel(audioLevel);
+        if (audioLevelDispatcher != null) {
+            // only the latest level is delivered, intermediate values are dropped
+            audioLevelDispatcher.dispatch(audioLevel);
+        } else {
+            eventDispatcher.onAudioLevel(audioLevel);
         }
     }
 
+    /**
+     * Runs event on the thread where listener set by {@link #setListener(AIListener)} is called
+     */
+    protected void postEvent(final Runnable event) {
+        defaultExecutor.execute(event);
+    }
+
     protected void onListeningStarted() {
-        if (listener != null) {
-            listener.onListeningStarted();
-        }
+        eventDispatcher.onListeningStarted();
     }
 
     protected void onListeningCancelled() {
-        if (listener != null) {
-            listener.onListeningCanceled();
-        }
+        eventDispatcher.onListeningCanceled();
     }
 
     protected void onListeningFinished() {
-        if (listener != null) {
-            listener.onListeningFinished();
-        }
+        eventDispatcher.onListeningFinished();
     }
 
+    /**
+     * Releases the recognizer resources. Implementations must tolerate repeated calls, a pooled service
+     * may be paused both by its owner and by {@link AIServicePool}.
+     */
     public void pause() {
 
     }
 
+    /**
+     * Acquires the recognizer resources released by {@link #pause()}, repeated calls do nothing
+     */
     public void resume(){
 
     }
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.android;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import ai.api.metrics.Counter;
+import ai.api.metrics.MetricsRegistry;
+
+/**
+ * Keeps warm AIService and AIDataService instances keyed by access token, language and recognition engine,
+ * so switching between languages doesn't recreate the services and recognizers.
+ * <p>
+ * Services are evicted in LRU order. Only a limited number of services are allowed to hold the recognizer,
+ * the least recently used ones are paused and resumed again when they are requested. Callers may still pause
+ * and resume the services they got from the pool, repeated pause and resume calls are ignored by the services.
+ * <p>
+ * Instance is created by the first configuration with the given key, other settings of the later
+ * configurations with the same key are ignored.
+ */
+public class AIServicePool {
+
+    public static final int DEFAULT_MAX_SERVICES = 8;
+    public static final int DEFAULT_MAX_LIVE_RECOGNIZERS = 2;
+
+    private static final Counter poolHits = MetricsRegistry.getDefault().counter(MetricsRegistry.SERVICE_POOL_HITS);
+    private static final Counter poolMisses = MetricsRegistry.getDefault().counter(MetricsRegistry.SERVICE_POOL_MISSES);
+
+    private final Context context;
+    private final int maxLiveRecognizers;
+
+    private final LinkedHashMap<Key, AIService> services;
+    private final LinkedHashMap<Key, AIDataService> dataServices;
+
+    /**
+     * Keys of the services which are not paused, least recently used first
+     */
+    private final LinkedHashSet<Key> liveServices = new LinkedHashSet<>();
+
+    private long hitCount;
+    private long missCount;
+
+    public AIServicePool(final Context context) {
+        this(context, DEFAULT_MAX_SERVICES, DEFAULT_MAX_LIVE_RECOGNIZERS);
+    }
+
+    /**
+     * @param maxServices        max number of cached instances of each type
+     * @param maxLiveRecognizers max number of services which are not paused
+     */
+    public AIServicePool(final Context context, final int maxServices, final int maxLiveRecognizers) {
+        if (maxServices < 1 || maxLiveRecognizers < 1) {
+            throw new IllegalArgumentException("maxServices and maxLiveRecognizers must be positive");
+        }
+        this.context = context.getApplicationContext();
+        this.maxLiveRecognizers = maxLiveRecognizers;
+
+        services = new LinkedHashMap<Key, AIService>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, AIService> eldest) {
+                if (size() > maxServices) {
+                    if (liveServices.remove(eldest.getKey())) {
+                        eldest.getValue().pause();
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        dataServices = new LinkedHashMap<Key, AIDataService>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, AIDataService> eldest) {
+                return size() > maxServices;
+            }
+        };
+    }
+
+    /**
+     * Returns cached service for the configuration key or creates the new one. Returned service is resumed,
+     * least recently used services over the live recognizers limit are paused.
+     */
+    public synchronized AIService getService(final AIConfiguration config) {
+        final Key key = new Key(config, true);
+
+        AIService service = services.get(key);
+        if (service == null) {
+            missCount++;
+            poolMisses.increment();
+            service = AIService.getService(context, config);
+            services.put(key, service);
+            liveServices.add(key);
+        } else {
+            hitCount++;
+            poolHits.increment();
+            if (!liveServices.remove(key)) {
+                service.resume();
+            }
+            liveServices.add(key);
+        }
+
+        pauseOverLimit();
+        return service;
+    }
+
+    /**
+     * Returns cached data service for the access token and language or creates the new one
+     */
+    public synchronized AIDataService getDataService(final AIConfiguration config) {
+        final Key key = new Key(config, false);
+
+        AIDataService dataService = dataServices.get(key);
+        if (dataService == null) {
+            missCount++;
+            poolMisses.increment();
+            dataService = new AIDataService(context, config);
+            dataServices.put(key, dataService);
+        } else {
+            hitCount++;
+            poolHits.increment();
+        }
+        return dataService;
+    }
+
+    /**
+     * Pauses all services, for example when application goes to background.
+     * Services are resumed when requested again.
+     */
+    public synchronized void pauseAll() {
+        for (final Key key : liveServices) {
+            services.get(key).pause();
+        }
+        liveServices.clear();
+    }
+
+    /**
+     * Pauses and removes all cached instances
+     */
+    public synchronized void clear() {
+        pauseAll();
+        services.clear();
+        dataServices.clear();
+    }
+
+    public synchronized int getServiceCount() {
+        return services.size();
+    }
+
+    public synchronized int getLiveRecognizerCount() {
+        return liveServices.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private void pauseOverLimit() {
+        if (liveServices.size() <= maxLiveRecognizers) {
+            return;
+        }
+
+        final List<AIService> toPause = new ArrayList<>();
+        final Iterator<Key> iterator = liveServices.iterator();
+        while (liveServices.size() > maxLiveRecognizers && iterator.hasNext()) {
+            final Key key = iterator.next();
+            // peek doesn't change LRU order of the services
+            toPause.add(peek(key));
+            iterator.remove();
+        }
+
+        for (final AIService service : toPause) {
+            service.pause();
+        }
+    }
+
+    private AIService peek(final Key key) {
+        for (final Map.Entry<Key, AIService> entry : services.entrySet()) {
+            if (entry.getKey().equals(key)) {
+                return entry.getValue();
+            }
+        }
+        throw new IllegalStateException("Live service is not in the pool: " + key);
+    }
+
+    private static class Key {
+        private final String accessToken;
+        private final String language;
+        private final AIConfiguration.RecognitionEngine engine;
+
+        private Key(final AIConfiguration config, final boolean withEngine) {
+            this.accessToken = config.getApiKey();
+            this.language = config.getLanguage();
+            this.engine = withEngine ? config.getRecognitionEngine() : null;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final Key key = (Key) o;
+
+            if (accessToken != null ? !accessToken.equals(key.accessToken) : key.accessToken != null)
+                return false;
+            if (language != null ? !language.equals(key.language) : key.language != null)
+                return false;
+            return engine == key.engine;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = accessToken != null ? accessToken.hashCode() : 0;
+            result = 31 * result + (language != null ? language.hashCode() : 0);
+            result = 31 * result + (engine != null ? engine.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Key{language=" + language + ", engine=" + engine + "}";
+        }
+    }
+}
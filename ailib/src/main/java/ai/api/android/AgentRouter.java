@@ -0,0 +1,400 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.android;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ai.api.AIServiceException;
+import ai.api.RequestExtras;
+import ai.api.model.AIRequest;
+import ai.api.model.AIResponse;
+
+/**
+ * Routes requests to several agents. Holds one data service per agent, all of them share
+ * the session id storage, Gson instance and the worker threads.
+ * Requests can be sent to one agent or to several agents in parallel, taking the first or the best scored response.
+ * <p>
+ * Requests which are not needed anymore can't be aborted: the data service doesn't expose its connection and
+ * blocking HTTP I/O ignores interrupts. Such requests complete in the background, their responses are dropped and
+ * they are counted as cancelled in {@link AgentStats}. Worker threads are created on demand, so these requests
+ * don't delay the next fan-out.
+ */
+public class AgentRouter {
+
+    private static final String TAG = AgentRouter.class.getName();
+
+    @NonNull
+    private final Context context;
+
+    @NonNull
+    private final ExecutorService executor;
+
+    private final Gson gson = GsonFactory.getGson();
+
+    private final ConcurrentHashMap<String, Agent> agents = new ConcurrentHashMap<>();
+
+    public AgentRouter(@NonNull final Context context) {
+        this(context, Executors.newCachedThreadPool());
+    }
+
+    /**
+     * @param executor runs parallel requests, it is shut down by {@link #close()}. It must run all requests
+     *                 of a fan-out at once, otherwise they wait behind each other and behind dropped requests
+     *                 of the previous fan-outs which are still completing.
+     */
+    public AgentRouter(@NonNull final Context context, @NonNull final ExecutorService executor) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds agent or replaces the agent with the same name
+     * @param name   name used to route requests
+     * @param config agent configuration, access token and language are used
+     */
+    public void addAgent(@NonNull final String name, @NonNull final AIConfiguration config) {
+        addAgent(name, new AIDataService(context, config));
+    }
+
+    /**
+     * Adds agent with already created data service or replaces the agent with the same name
+     */
+    public void addAgent(@NonNull final String name, @NonNull final AIDataService dataService) {
+        agents.put(name, new Agent(name, dataService));
+    }
+
+    public void removeAgent(@NonNull final String name) {
+        agents.remove(name);
+    }
+
+    public Set<String> getAgentNames() {
+        return Collections.unmodifiableSet(agents.keySet());
+    }
+
+    /**
+     * @return latency statistics of the agent or null if there is no such agent
+     */
+    public AgentStats getStats(@NonNull final String name) {
+        final Agent agent = agents.get(name);
+        return agent != null ? agent.stats : null;
+    }
+
+    public AIDataService getDataService(@NonNull final String name) {
+        return getAgent(name).dataService;
+    }
+
+    /**
+     * Sends request to the single agent on the calling thread
+     * @param session conversation the request belongs to, can be null to use the default session
+     */
+    public AIResponse request(@NonNull final String agentName,
+                              @NonNull final AIRequest request,
+                              final RequestExtras requestExtras,
+                              final Session session) throws AIServiceException {
+        return getAgent(agentName).request(request, requestExtras, session, null);
+    }
+
+    /**
+     * Sends request to the agents in parallel and returns the first valid response, responses of the other agents
+     * are dropped
+     * @param timeoutMillis max time to wait for the response
+     * @throws AIServiceException if none of the agents returned valid response in time
+     */
+    public AgentResponse requestFirst(@NonNull final AIRequest request,
+                                      final RequestExtras requestExtras,
+                                      final Session session,
+                                      final long timeoutMillis,
+                                      @NonNull final String... agentNames) throws AIServiceException {
+        return fanOut(request, requestExtras, session, timeoutMillis, agentNames, true);
+    }
+
+    /**
+     * Sends request to the agents in parallel and returns the response with the highest result score.
+     * Responses which didn't arrive in time are ignored.
+     * @param timeoutMillis max time to wait for all responses
+     * @throws AIServiceException if none of the agents returned valid response in time
+     */
+    public AgentResponse requestBest(@NonNull final AIRequest request,
+                                     final RequestExtras requestExtras,
+                                     final Session session,
+                                     final long timeoutMillis,
+                                     @NonNull final String... agentNames) throws AIServiceException {
+        return fanOut(request, requestExtras, session, timeoutMillis, agentNames, false);
+    }
+
+    /**
+     * Stops worker threads when the requests in progress complete
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private AgentResponse fanOut(final AIRequest request,
+                                 final RequestExtras requestExtras,
+                                 final Session session,
+                                 final long timeoutMillis,
+                                 final String[] agentNames,
+                                 final boolean takeFirst) throws AIServiceException {
+        if (agentNames.length == 0) {
+            throw new IllegalArgumentException("At least one agent must be specified");
+        }
+
+        final CompletionService<AgentResponse> completionService = new ExecutorCompletionService<>(executor);
+        final List<Future<AgentResponse>> futures = new ArrayList<>(agentNames.length);
+        // requests completed after the fan-out returned are counted as cancelled
+        final AtomicBoolean done = new AtomicBoolean();
+
+        for (final String agentName : agentNames) {
+            final Agent agent = getAgent(agentName);
+            // request object is updated by the data service, so every agent gets its own copy
+            final AIRequest agentRequest = copy(request);
+            futures.add(completionService.submit(new Callable<AgentResponse>() {
+                @Override
+                public AgentResponse call() throws Exception {
+                    return new AgentResponse(agent.name, agent.request(agentRequest, requestExtras, session, done));
+                }
+            }));
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        AgentResponse best = null;
+        Throwable lastError = null;
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                final long remaining = deadline - System.nanoTime();
+                final Future<AgentResponse> future = remaining > 0
+                        ? completionService.poll(remaining, TimeUnit.NANOSECONDS)
+                        : null;
+                if (future == null) {
+                    break;
+                }
+
+                try {
+                    final AgentResponse response = future.get();
+                    if (!response.isValid()) {
+                        continue;
+                    }
+                    if (takeFirst) {
+                        return response;
+                    }
+                    if (best == null || response.getScore() > best.getScore()) {
+                        best = response;
+                    }
+                } catch (final ExecutionException e) {
+                    lastError = e.getCause();
+                    Log.w(TAG, "Agent request failed", lastError);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AIServiceException("Request interrupted", e);
+        } finally {
+            done.set(true);
+            // requests which have not started yet are not sent, interrupt doesn't stop the ones being sent
+            for (final Future<AgentResponse> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (best != null) {
+            return best;
+        }
+        if (lastError != null) {
+            throw new AIServiceException("None of the agents returned valid response", lastError);
+        }
+        throw new AIServiceException("None of the agents returned valid response in " + timeoutMillis + " ms");
+    }
+
+    private Agent getAgent(final String name) {
+        final Agent agent = agents.get(name);
+        if (agent == null) {
+            throw new IllegalArgumentException("Unknown agent: " + name);
+        }
+        return agent;
+    }
+
+    private AIRequest copy(final AIRequest request) {
+        return gson.fromJson(gson.toJson(request), AIRequest.class);
+    }
+
+    private static class Agent {
+        private final String name;
+        private final AIDataService dataService;
+        private final AgentStats stats = new AgentStats();
+
+        private Agent(final String name, final AIDataService dataService) {
+            this.name = name;
+            this.dataService = dataService;
+        }
+
+        /**
+         * @param cancelled set when the response is not needed anymore, null if it is always needed
+         */
+        private AIResponse request(final AIRequest request,
+                                   final RequestExtras requestExtras,
+                                   final Session session,
+                                   final AtomicBoolean cancelled) throws AIServiceException {
+            final long start = System.nanoTime();
+            try {
+                final AIResponse response = session != null
+                        ? dataService.request(request, requestExtras, session)
+                        : dataService.request(request, requestExtras);
+                if (cancelled != null && cancelled.get()) {
+                    stats.onCancelled();
+                } else {
+                    stats.onSuccess(System.nanoTime() - start);
+                }
+                return response;
+            } catch (final AIServiceException e) {
+                if ((cancelled != null && cancelled.get()) || Thread.currentThread().isInterrupted()) {
+                    // dropped by the fan-out, not an agent failure
+                    stats.onCancelled();
+                } else {
+                    stats.onError(System.nanoTime() - start);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Response with the name of the agent which returned it
+     */
+    public static class AgentResponse {
+        private final String agentName;
+        private final AIResponse response;
+
+        private AgentResponse(final String agentName, final AIResponse response) {
+            this.agentName = agentName;
+            this.response = response;
+        }
+
+        public String getAgentName() {
+            return agentName;
+        }
+
+        public AIResponse getResponse() {
+            return response;
+        }
+
+        private boolean isValid() {
+            return response != null && response.getResult() != null && !response.isError();
+        }
+
+        private float getScore() {
+            return response.getResult().getScore();
+        }
+    }
+
+    /**
+     * Latency statistics of the agent requests
+     */
+    public static class AgentStats {
+
+        /**
+         * Weight of the latest latency in the moving average
+         */
+        private static final double AVERAGE_WEIGHT = 0.2;
+
+        private long requestCount;
+        private long errorCount;
+        private long cancelledCount;
+        private double averageLatencyNanos;
+        private long maxLatencyNanos;
+
+        private synchronized void onSuccess(final long latencyNanos) {
+            requestCount++;
+            updateLatency(latencyNanos);
+        }
+
+        private synchronized void onError(final long latencyNanos) {
+            requestCount++;
+            errorCount++;
+            updateLatency(latencyNanos);
+        }
+
+        private synchronized void onCancelled() {
+            cancelledCount++;
+        }
+
+        private void updateLatency(final long latencyNanos) {
+            averageLatencyNanos = requestCount == 1
+                    ? latencyNanos
+                    : averageLatencyNanos + AVERAGE_WEIGHT * (latencyNanos - averageLatencyNanos);
+            maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+        }
+
+        /**
+         * @return number of completed requests, including failed ones
+         */
+        public synchronized long getRequestCount() {
+            return requestCount;
+        }
+
+        public synchronized long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * @return number of requests which completed after their fan-out returned, e.g. because other agent
+         * answered first, they are not counted as completed requests
+         */
+        public synchronized long getCancelledCount() {
+            return cancelledCount;
+        }
+
+        /**
+         * @return exponential moving average of the request latency
+         */
+        public synchronized long getAverageLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((long) averageLatencyNanos);
+        }
+
+        public synchronized long getMaxLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "AgentStats{requests=" + requestCount +
+                    ", errors=" + errorCount +
+                    ", cancelled=" + cancelledCount +
+                    ", avgLatencyMs=" + getAverageLatencyMillis() +
+                    ", maxLatencyMs=" + getMaxLatencyMillis() + "}";
+        }
+    }
+}
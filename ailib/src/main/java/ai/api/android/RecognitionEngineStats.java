@@ -0,0 +1,345 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.android;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rolling statistics of the recognition engines, kept separately for every network type.
+ * Stats are persisted in preferences, so engine choice survives application restart.
+ * Stats are dropped if preferences were restored on another device model.
+ */
+public class RecognitionEngineStats {
+
+    private static final String TAG = RecognitionEngineStats.class.getName();
+
+    private static final String PREF_NAME = "APIAI_engine_stats";
+    private static final String DEVICE_KEY = "device";
+    private static final String STATS_KEY_PREFIX = "stats.";
+
+    public static final String NETWORK_WIFI = "wifi";
+    public static final String NETWORK_MOBILE = "mobile";
+    public static final String NETWORK_OTHER = "other";
+    public static final String NETWORK_NONE = "none";
+    public static final String NETWORK_UNKNOWN = "unknown";
+
+    /**
+     * Number of the latest sessions taken into account
+     */
+    public static final int WINDOW_SIZE = 20;
+
+    /**
+     * Engine with fewer samples is not compared with others
+     */
+    private static final int MIN_SAMPLES = 3;
+
+    /**
+     * Engine with higher error rate is not used until its stats are refreshed
+     */
+    private static final float DEGRADED_ERROR_RATE = 0.5f;
+
+    /**
+     * Every n-th session is given to the engine which is not the best one, to keep its stats fresh
+     */
+    private static final int EXPLORE_INTERVAL = 10;
+
+    private static RecognitionEngineStats instance;
+
+    private final SharedPreferences preferences;
+    private final Map<String, Window> windows = new HashMap<>();
+    private int sessionCount;
+    private boolean deviceChecked;
+
+    public RecognitionEngineStats(final Context context) {
+        preferences = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return stats shared by all services of the process
+     */
+    public static synchronized RecognitionEngineStats getInstance(final Context context) {
+        if (instance == null) {
+            final Context appContext = context.getApplicationContext();
+            instance = new RecognitionEngineStats(appContext != null ? appContext : context);
+            instance.preload();
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the stats on a background thread, so {@link #choose} called from the main thread
+     * usually finds them in memory. Until preload is done, stats are read by the first call which needs them.
+     */
+    private void preload() {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the first read waits for the preferences file, it is done without the lock
+                final Set<String> keys = preferences.getAll().keySet();
+                synchronized (RecognitionEngineStats.this) {
+                    checkDevice();
+                    for (final String key : keys) {
+                        if (key.startsWith(STATS_KEY_PREFIX) && !windows.containsKey(key)) {
+                            final Window window = new Window();
+                            window.parse(preferences.getString(key, null));
+                            windows.put(key, window);
+                        }
+                    }
+                }
+            }
+        }, "RecognitionEngineStats");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @param latencyMillis time from the end of speech to the result
+     */
+    public synchronized void onResult(final AIConfiguration.RecognitionEngine engine, final String networkType, final long latencyMillis) {
+        record(engine, networkType, latencyMillis, false);
+    }
+
+    /**
+     * Session failed because of the engine, e.g. server or network error. Failures caused by the user, like no speech,
+     * must not be recorded, they would replace the engine for reasons not related to its quality.
+     * @param latencyMillis time from the end of speech to the error
+     */
+    public synchronized void onError(final AIConfiguration.RecognitionEngine engine, final String networkType, final long latencyMillis) {
+        record(engine, networkType, latencyMillis, true);
+    }
+
+    /**
+     * Chooses engine with the lowest expected time to result on the network. Engines with high error rate are skipped.
+     * @param candidates engines to choose from, the first one is used when there is no stats
+     */
+    public synchronized AIConfiguration.RecognitionEngine choose(final String networkType,
+                                                                 final AIConfiguration.RecognitionEngine... candidates) {
+        sessionCount++;
+        if (candidates.length > 1 && sessionCount % EXPLORE_INTERVAL == 0) {
+            return candidates[(sessionCount / EXPLORE_INTERVAL) % candidates.length];
+        }
+
+        AIConfiguration.RecognitionEngine best = null;
+        double bestScore = Double.MAX_VALUE;
+        AIConfiguration.RecognitionEngine fallback = null;
+
+        for (final AIConfiguration.RecognitionEngine candidate : candidates) {
+            final Window window = getWindow(candidate, networkType);
+            final boolean degraded = window.count >= MIN_SAMPLES && window.getErrorRate() > DEGRADED_ERROR_RATE;
+            if (degraded) {
+                continue;
+            }
+            if (fallback == null) {
+                fallback = candidate;
+            }
+            if (window.count < MIN_SAMPLES) {
+                continue;
+            }
+
+            // failed session is usually repeated, so errors make the expected time longer
+            final double score = window.getAverageLatency() / (1 - window.getErrorRate());
+            if (score < bestScore) {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+
+        if (best != null) {
+            return best;
+        }
+        return fallback != null ? fallback : candidates[0];
+    }
+
+    public synchronized int getSampleCount(final AIConfiguration.RecognitionEngine engine, final String networkType) {
+        return getWindow(engine, networkType).count;
+    }
+
+    /**
+     * @return average latency of the successful sessions in milliseconds, 0 if there are none
+     */
+    public synchronized long getAverageLatency(final AIConfiguration.RecognitionEngine engine, final String networkType) {
+        return (long) getWindow(engine, networkType).getAverageLatency();
+    }
+
+    public synchronized float getErrorRate(final AIConfiguration.RecognitionEngine engine, final String networkType) {
+        return getWindow(engine, networkType).getErrorRate();
+    }
+
+    /**
+     * @return type of the active network, {@link #NETWORK_UNKNOWN} if ACCESS_NETWORK_STATE permission is not granted
+     */
+    public static String getNetworkType(final Context context) {
+        if (context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE) != PackageManager.PERMISSION_GRANTED) {
+            return NETWORK_UNKNOWN;
+        }
+
+        final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return NETWORK_NONE;
+        }
+
+        switch (networkInfo.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return NETWORK_WIFI;
+            case ConnectivityManager.TYPE_MOBILE:
+                return NETWORK_MOBILE;
+            default:
+                return NETWORK_OTHER;
+        }
+    }
+
+    private void record(final AIConfiguration.RecognitionEngine engine, final String networkType,
+                        final long latencyMillis, final boolean failed) {
+        final Window window = getWindow(engine, networkType);
+        window.add(latencyMillis, failed);
+        save(preferences.edit()
+                .putString(DEVICE_KEY, Build.MODEL)
+                .putString(getKey(engine, networkType), window.serialize()));
+    }
+
+    private Window getWindow(final AIConfiguration.RecognitionEngine engine, final String networkType) {
+        final String key = getKey(engine, networkType);
+        Window window = windows.get(key);
+        if (window == null) {
+            checkDevice();
+            window = new Window();
+            window.parse(preferences.getString(key, null));
+            windows.put(key, window);
+        }
+        return window;
+    }
+
+    /**
+     * Preferences are read on the first use, not in the constructor, so stats can be created on the main thread
+     * without disk access
+     */
+    private void checkDevice() {
+        if (deviceChecked) {
+            return;
+        }
+        deviceChecked = true;
+        final String device = preferences.getString(DEVICE_KEY, null);
+        if (device != null && !device.equals(Build.MODEL)) {
+            // restored from backup of another device, its latencies are not relevant
+            save(preferences.edit().clear());
+        }
+    }
+
+    private static String getKey(final AIConfiguration.RecognitionEngine engine, final String networkType) {
+        return STATS_KEY_PREFIX + engine.name() + "." + networkType;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    private static void save(final SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    /**
+     * Ring buffer of the latest sessions
+     */
+    private static class Window {
+        private final long[] latencies = new long[WINDOW_SIZE];
+        private final boolean[] failures = new boolean[WINDOW_SIZE];
+        private int count;
+        private int next;
+
+        private void add(final long latencyMillis, final boolean failed) {
+            latencies[next] = latencyMillis;
+            failures[next] = failed;
+            next = (next + 1) % WINDOW_SIZE;
+            if (count < WINDOW_SIZE) {
+                count++;
+            }
+        }
+
+        private double getAverageLatency() {
+            long sum = 0;
+            int successCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (!failures[i]) {
+                    sum += latencies[i];
+                    successCount++;
+                }
+            }
+            return successCount > 0 ? (double) sum / successCount : 0;
+        }
+
+        private float getErrorRate() {
+            if (count == 0) {
+                return 0;
+            }
+            int failedCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (failures[i]) {
+                    failedCount++;
+                }
+            }
+            return (float) failedCount / count;
+        }
+
+        /**
+         * Samples from the oldest to the newest, "latency:failed" separated by commas
+         */
+        private String serialize() {
+            final StringBuilder builder = new StringBuilder(count * 8);
+            final int start = count < WINDOW_SIZE ? 0 : next;
+            for (int i = 0; i < count; i++) {
+                final int index = (start + i) % WINDOW_SIZE;
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(latencies[index]).append(':').append(failures[index] ? 1 : 0);
+            }
+            return builder.toString();
+        }
+
+        private void parse(final String value) {
+            if (TextUtils.isEmpty(value)) {
+                return;
+            }
+            try {
+                for (final String sample : value.split(",")) {
+                    final int separator = sample.indexOf(':');
+                    add(Long.parseLong(sample.substring(0, separator)), sample.charAt(separator + 1) == '1');
+                }
+            } catch (final RuntimeException e) {
+                Log.w(TAG, "Broken engine stats dropped: " + value, e);
+                count = 0;
+                next = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.android;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lifecycle of the listening session shared by all recognition engines.
+ * <pre>
+ * idle/cancelled -> starting -> listening -> processing -> idle
+ *                       |           |            |
+ *                       +-----------+------------+-> cancelled
+ * </pre>
+ * Restart inside the same session moves any active state back to starting.
+ * Transitions are atomic, so the same session can't be started or finished twice from different threads.
+ */
+public class RecognitionStateMachine {
+
+    public enum State {
+        idle,
+        starting, // waiting for recognizer or audio record to be ready
+        listening, // capturing user speech
+        processing, // speech captured, waiting for the result
+        cancelled;
+
+        /**
+         * @return true if new session can be started in this state
+         */
+        public boolean isIdle() {
+            return this == idle || this == cancelled;
+        }
+
+        /**
+         * @return true if session is in progress
+         */
+        public boolean isActive() {
+            return !isIdle();
+        }
+    }
+
+    public interface StateListener {
+        /**
+         * Called on the thread which changed the state
+         */
+        void onStateChanged(State fromState, State toState);
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.idle);
+    private final CopyOnWriteArrayList<StateListener> listeners = new CopyOnWriteArrayList<>();
+
+    public State getState() {
+        return state.get();
+    }
+
+    public void addStateListener(final StateListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeStateListener(final StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * idle/cancelled -> starting
+     */
+    public boolean start() {
+        return transition(State.starting, State.idle, State.cancelled);
+    }
+
+    /**
+     * starting/listening/processing -> starting, used when recognizer is restarted inside the same session,
+     * e.g. after network timeout when speech was already captured
+     */
+    public boolean restart() {
+        return transition(State.starting, State.starting, State.listening, State.processing);
+    }
+
+    /**
+     * starting -> listening
+     */
+    public boolean listening() {
+        return transition(State.listening, State.starting);
+    }
+
+    /**
+     * starting/listening -> processing
+     */
+    public boolean processing() {
+        return transition(State.processing, State.starting, State.listening);
+    }
+
+    /**
+     * any active -> idle
+     */
+    public boolean finish() {
+        return transition(State.idle, State.starting, State.listening, State.processing);
+    }
+
+    /**
+     * any active -> cancelled
+     */
+    public boolean cancel() {
+        return transition(State.cancelled, State.starting, State.listening, State.processing);
+    }
+
+    private boolean transition(final State toState, final State... fromStates) {
+        while (true) {
+            final State current = state.get();
+            if (!contains(fromStates, current)) {
+                return false;
+            }
+            if (state.compareAndSet(current, toState)) {
+                if (current != toState) {
+                    for (final StateListener listener : listeners) {
+                        listener.onStateChanged(current, toState);
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    private static boolean contains(final State[] states, final State state) {
+        for (final State s : states) {
+            if (s == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return state.get().name();
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.android;
+
+import android.text.TextUtils;
+
+import java.util.UUID;
+
+/**
+ * Conversation with the AI service. Requests made with different sessions don't share contexts,
+ * so one {@link AIDataService} can serve several users at the same time.
+ */
+public class Session {
+
+    private final String name;
+    private final String sessionId;
+
+    private Session(final String name, final String sessionId) {
+        this.name = name;
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Session with the id stored in {@link SessionIdStorage}, survives process restart
+     * @param name session name, must be not empty
+     */
+    public static Session named(final String name) {
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("name must be not empty");
+        }
+        return new Session(name, null);
+    }
+
+    /**
+     * Short-lived session with the new id, which is kept in memory only
+     */
+    public static Session create() {
+        return new Session(null, UUID.randomUUID().toString());
+    }
+
+    /**
+     * @return session name or null for the short-lived session
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isPersistent() {
+        return name != null;
+    }
+
+    /**
+     * @return session id for the short-lived session, null for the named one
+     */
+    String getSessionId() {
+        return sessionId;
+    }
+
+    String getKey() {
+        return name != null ? name : sessionId;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final Session session = (Session) o;
+        return isPersistent() == session.isPersistent() && getKey().equals(session.getKey());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * getKey().hashCode() + (isPersistent() ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return isPersistent() ? "Session{name=" + name + "}" : "Session{id=" + sessionId + "}";
+    }
+}
@@ -16,35 +16,93 @@
 
 package ai.api.android;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.text.TextUtils;
 
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Keeps session ids of the conversations with AI service. Session id is loaded from preferences on the first use,
+ * then kept in memory. Changes are written to disk asynchronously.
+ * Several independent conversations can be held using named sessions.
+ */
 public abstract class SessionIdStorage {
     private static final String PREF_NAME = "APIAI_preferences";
     private static final String SESSION_ID = "sessionId";
+    private static final String NAMED_SESSION_ID_PREFIX = SESSION_ID + ".";
 
-    public synchronized static String getSessionId(final Context context) {
-        final SharedPreferences sharedPreferences = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        final String sessionId = sharedPreferences.getString(SESSION_ID, "");
-        if (!TextUtils.isEmpty(sessionId)) {
-            return sessionId;
-        } else {
-            final SharedPreferences.Editor editor = sharedPreferences.edit();
-            final String value = UUID.randomUUID().toString();
-            editor.putString(SESSION_ID, value);
-            editor.commit();
-            return value;
+    private static final ConcurrentHashMap<String, String> sessionIds = new ConcurrentHashMap<>();
+
+    public static String getSessionId(final Context context) {
+        return getSessionId(context, null);
+    }
+
+    /**
+     * @param sessionName name of the conversation, null or empty for the default one
+     * @return session id, new one is generated if there is no stored id for this name
+     */
+    public static String getSessionId(final Context context, final String sessionName) {
+        final String key = getKey(sessionName);
+        final String cachedSessionId = sessionIds.get(key);
+        if (cachedSessionId != null) {
+            return cachedSessionId;
         }
 
+        synchronized (SessionIdStorage.class) {
+            final String loadedSessionId = sessionIds.get(key);
+            if (loadedSessionId != null) {
+                return loadedSessionId;
+            }
+
+            final SharedPreferences sharedPreferences = getPreferences(context);
+            final String sessionId = sharedPreferences.getString(key, "");
+            if (!TextUtils.isEmpty(sessionId)) {
+                sessionIds.put(key, sessionId);
+                return sessionId;
+            } else {
+                final String value = UUID.randomUUID().toString();
+                sessionIds.put(key, value);
+                save(sharedPreferences.edit().putString(key, value));
+                return value;
+            }
+        }
+    }
+
+    public static void resetSessionId(final Context context) {
+        resetSessionId(context, null);
     }
 
-    public static synchronized void resetSessionId(final Context context) {
-        final SharedPreferences sharedPreferences = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        final SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putString(SESSION_ID, "");
-        editor.commit();
+    /**
+     * Forgets session id, new one will be generated on the next {@link #getSessionId(Context, String)} call
+     * @param sessionName name of the conversation, null or empty for the default one
+     */
+    public static void resetSessionId(final Context context, final String sessionName) {
+        final String key = getKey(sessionName);
+        synchronized (SessionIdStorage.class) {
+            sessionIds.remove(key);
+            save(getPreferences(context).edit().putString(key, ""));
+        }
+    }
+
+    private static String getKey(final String sessionName) {
+        return TextUtils.isEmpty(sessionName) ? SESSION_ID : NAMED_SESSION_ID_PREFIX + sessionName;
+    }
+
+    private static SharedPreferences getPreferences(final Context context) {
+        return context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    private static void save(final SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            // in-memory preferences are updated immediately, disk write happens in background
+            editor.apply();
+        } else {
+            editor.commit();
+        }
     }
 }
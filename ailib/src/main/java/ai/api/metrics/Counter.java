@@ -0,0 +1,73 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic counter which can be incremented from many threads without locking.
+ * Value is split between stripes chosen by the thread id, so concurrent updates rarely touch the same cache line.
+ */
+public class Counter {
+
+    private static final int STRIPES_COUNT = 8;
+
+    /**
+     * Distance between stripes in longs, 64 bytes
+     */
+    private static final int STRIPE_STEP = 8;
+
+    private final String name;
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES_COUNT * STRIPE_STEP);
+
+    Counter(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(final long delta) {
+        cells.addAndGet(getStripeIndex(), delta);
+    }
+
+    /**
+     * @return sum of all stripes, updates made concurrently with the call may be not included
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES_COUNT; i++) {
+            sum += cells.get(i * STRIPE_STEP);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES_COUNT; i++) {
+            cells.set(i * STRIPE_STEP, 0);
+        }
+    }
+
+    private static int getStripeIndex() {
+        return ((int) Thread.currentThread().getId() & (STRIPES_COUNT - 1)) * STRIPE_STEP;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Appends every snapshot as a line of JSON to the file. When the file grows over the limit
+ * it is renamed to "&lt;name&gt;.1", so at most two files are kept.
+ */
+public class FileMetricsExporter implements MetricsExporter {
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 256 * 1024;
+
+    private final File file;
+    private final long maxFileSize;
+
+    public FileMetricsExporter(final File file) {
+        this(file, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    public FileMetricsExporter(final File file, final long maxFileSize) {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void export(final MetricsSnapshot snapshot) throws IOException {
+        if (file.length() > maxFileSize) {
+            final File previous = new File(file.getPath() + ".1");
+            if (previous.exists() && !previous.delete()) {
+                throw new IOException("Can't delete " + previous);
+            }
+            if (!file.renameTo(previous)) {
+                throw new IOException("Can't rename " + file + " to " + previous);
+            }
+        }
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        try {
+            writer.write(snapshot.toJson());
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values in fixed power of two buckets. Recording doesn't allocate or lock.
+ * Bucket 0 holds zeros, bucket i holds values from 2^(i-1) to 2^i - 1, the last bucket holds all larger values.
+ */
+public class Histogram {
+
+    public static final int BUCKETS_COUNT = 32;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(final long value) {
+        final long positiveValue = Math.max(value, 0);
+        buckets.incrementAndGet(getBucketIndex(positiveValue));
+        sum.addAndGet(positiveValue);
+
+        long currentMax = max.get();
+        while (positiveValue > currentMax && !max.compareAndSet(currentMax, positiveValue)) {
+            currentMax = max.get();
+        }
+    }
+
+    public static int getBucketIndex(final long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return Math.min(Long.SIZE - Long.numberOfLeadingZeros(value), BUCKETS_COUNT - 1);
+    }
+
+    /**
+     * @return largest value which falls into the bucket, Long.MAX_VALUE for the last one
+     */
+    public static long getBucketUpperBound(final int index) {
+        if (index >= BUCKETS_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << index) - 1;
+    }
+
+    public MetricsSnapshot.HistogramSnapshot snapshot() {
+        final long[] counts = new long[BUCKETS_COUNT];
+        int length = 0;
+        long count = 0;
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+            if (counts[i] != 0) {
+                length = i + 1;
+            }
+        }
+
+        final long[] trimmedCounts = new long[length];
+        System.arraycopy(counts, 0, trimmedCounts, 0, length);
+        return new MetricsSnapshot.HistogramSnapshot(count, sum.get(), max.get(), trimmedCounts);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.metrics;
+
+import android.util.Log;
+
+/**
+ * Prints snapshot JSON to logcat. Long JSON is split into several lines, logcat truncates longer messages.
+ */
+public class LogcatMetricsExporter implements MetricsExporter {
+
+    public static final String DEFAULT_TAG = "ApiAiMetrics";
+
+    private static final int MAX_LINE_LENGTH = 4000;
+
+    private final String tag;
+    private final int priority;
+
+    public LogcatMetricsExporter() {
+        this(DEFAULT_TAG, Log.INFO);
+    }
+
+    /**
+     * @param priority one of the Log priorities, e.g. Log.DEBUG
+     */
+    public LogcatMetricsExporter(final String tag, final int priority) {
+        this.tag = tag;
+        this.priority = priority;
+    }
+
+    @Override
+    public void export(final MetricsSnapshot snapshot) {
+        final String json = snapshot.toJson();
+        for (int start = 0; start < json.length(); start += MAX_LINE_LENGTH) {
+            Log.println(priority, tag, json.substring(start, Math.min(json.length(), start + MAX_LINE_LENGTH)));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counters and histograms of the SDK. Metrics are created on the first use and live until the process ends.
+ * Callers on hot paths should keep the metric object instead of looking it up by name every time.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Time from sending the request to the parsed response, ms
+     */
+    public static final String REQUEST_LATENCY = "request.latency";
+
+    /**
+     * Time from the end of speech to the recognized result, ms
+     */
+    public static final String RECOGNITION_LATENCY = "recognition.latency";
+
+    public static final String REQUEST_ERRORS = "request.errors";
+    public static final String BYTES_UPLOADED = "network.bytesUploaded";
+    public static final String BYTES_DOWNLOADED = "network.bytesDownloaded";
+
+    /**
+     * Followed by SpeechRecognizer error code
+     */
+    public static final String RECOGNIZER_ERROR_PREFIX = "recognizer.error.";
+
+    /**
+     * Voice activity which ended before it was long enough to be speech
+     */
+    public static final String VAD_FALSE_STARTS = "vad.falseStarts";
+
+    /**
+     * Time from AIDialog.showAndListen() call to the listening state, ms
+     */
+    public static final String DIALOG_TAP_TO_LISTENING = "dialog.tapToListening";
+
+    /**
+     * Time from the first bluetooth SCO connection attempt to the connected state, ms
+     */
+    public static final String BLUETOOTH_TIME_TO_SCO = "bluetooth.timeToSco";
+
+    /**
+     * SCO connection series in which all attempts failed
+     */
+    public static final String BLUETOOTH_SCO_FAILURES = "bluetooth.scoFailures";
+
+    public static final String AUDIO_RECORD_OVERRUNS = "audioRecord.overruns";
+    public static final String SERVICE_POOL_HITS = "servicePool.hits";
+    public static final String SERVICE_POOL_MISSES = "servicePool.misses";
+
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @return registry used by the SDK components
+     */
+    public static MetricsRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    public Counter counter(final String name) {
+        final Counter counter = counters.get(name);
+        if (counter != null) {
+            return counter;
+        }
+        final Counter newCounter = new Counter(name);
+        final Counter existing = counters.putIfAbsent(name, newCounter);
+        return existing != null ? existing : newCounter;
+    }
+
+    public Histogram histogram(final String name) {
+        final Histogram histogram = histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        final Histogram newHistogram = new Histogram(name);
+        final Histogram existing = histograms.putIfAbsent(name, newHistogram);
+        return existing != null ? existing : newHistogram;
+    }
+
+    /**
+     * Metrics are read one by one, so snapshot taken during updates may be slightly inconsistent
+     */
+    public MetricsSnapshot snapshot() {
+        final Map<String, Long> counterValues = new TreeMap<>();
+        for (final Counter counter : counters.values()) {
+            counterValues.put(counter.getName(), counter.get());
+        }
+
+        final Map<String, MetricsSnapshot.HistogramSnapshot> histogramValues = new TreeMap<>();
+        for (final Histogram histogram : histograms.values()) {
+            histogramValues.put(histogram.getName(), histogram.snapshot());
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(), counterValues, histogramValues);
+    }
+
+    /**
+     * Takes snapshot and passes it to the exporter
+     */
+    public MetricsSnapshot export(final MetricsExporter exporter) throws IOException {
+        final MetricsSnapshot snapshot = snapshot();
+        exporter.export(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Sets all values to zero. Metric objects stay valid, so references kept by callers still work.
+     */
+    public void reset() {
+        for (final Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (final Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
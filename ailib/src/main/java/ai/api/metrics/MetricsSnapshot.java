@@ -0,0 +1,148 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.metrics;
+
+import android.os.Build;
+
+import java.util.Collections;
+import java.util.Map;
+
+import ai.api.BuildConfig;
+import ai.api.android.GsonFactory;
+
+/**
+ * Values of all metrics at some moment. Snapshot is immutable and can be serialized with Gson.
+ */
+public class MetricsSnapshot {
+
+    private final long timestamp;
+    private final String sdkVersion;
+    private final String device;
+    private final int androidSdk;
+    private final Map<String, Long> counters;
+    private final Map<String, HistogramSnapshot> histograms;
+
+    MetricsSnapshot(final long timestamp, final Map<String, Long> counters, final Map<String, HistogramSnapshot> histograms) {
+        this.timestamp = timestamp;
+        this.sdkVersion = BuildConfig.VERSION_NAME;
+        this.device = Build.MANUFACTURER + " " + Build.MODEL;
+        this.androidSdk = Build.VERSION.SDK_INT;
+        this.counters = Collections.unmodifiableMap(counters);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * @return wall clock time of the snapshot in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSdkVersion() {
+        return sdkVersion;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @return value of the counter, 0 if it was never updated
+     */
+    public long getCounter(final String name) {
+        final Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * @return snapshot of the histogram, null if it was never created
+     */
+    public HistogramSnapshot getHistogram(final String name) {
+        return histograms.get(name);
+    }
+
+    public String toJson() {
+        return GsonFactory.getGson().toJson(this);
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    public static class HistogramSnapshot {
+
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        /**
+         * Number of values in every bucket of {@link Histogram}, trailing empty buckets are omitted
+         */
+        private final long[] buckets;
+
+        HistogramSnapshot(final long count, final long sum, final long max, final long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.buckets = buckets;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /**
+         * @param percentile value from 0 to 100
+         * @return upper bound of the bucket containing the percentile, never larger than max value. 0 if there are no values.
+         */
+        public long getPercentile(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.getBucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long getBucketCount(final int index) {
+            return index < buckets.length ? buckets[index] : 0;
+        }
+    }
+}
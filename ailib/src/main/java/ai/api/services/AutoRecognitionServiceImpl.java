@@ -0,0 +1,250 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.services;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.List;
+
+import ai.api.AIListener;
+import ai.api.AudioFrameListener;
+import ai.api.RequestExtras;
+import ai.api.android.AIConfiguration;
+import ai.api.android.AIService;
+import ai.api.android.RecognitionEngineStats;
+import ai.api.model.AIContext;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+
+/**
+ * Chooses recognition engine for every session using the latency and error rate stats
+ * collected on the current network type. Degraded engine is replaced by the other one automatically.
+ */
+@SuppressWarnings("deprecation")
+public class AutoRecognitionServiceImpl extends AIService {
+
+    public static final String TAG = AutoRecognitionServiceImpl.class.getName();
+
+    private final AIConfiguration.RecognitionEngine[] candidates;
+    private final RecognitionEngineStats stats;
+
+    private final EnumMap<AIConfiguration.RecognitionEngine, AIService> engines =
+            new EnumMap<>(AIConfiguration.RecognitionEngine.class);
+
+    private volatile AIConfiguration.RecognitionEngine currentEngine;
+    private volatile String networkType;
+    private volatile long measureStartTime;
+
+    /**
+     * Listener passed to the engines, guarded by engines lock
+     */
+    private AudioFrameListener audioFrameListener;
+
+    public AutoRecognitionServiceImpl(final Context context, final AIConfiguration config) {
+        this(context, config, RecognitionEngineStats.getInstance(context));
+    }
+
+    public AutoRecognitionServiceImpl(final Context context, final AIConfiguration config, final RecognitionEngineStats stats) {
+        super(config, context);
+        this.stats = stats;
+
+        if (AIConfiguration.SupportedLanguages.fromLanguageTag(config.getLanguage()) == AIConfiguration.SupportedLanguages.Korean) {
+            // server side recognition doesn't support Korean
+            candidates = new AIConfiguration.RecognitionEngine[]{AIConfiguration.RecognitionEngine.System};
+        } else {
+            candidates = new AIConfiguration.RecognitionEngine[]{
+                    AIConfiguration.RecognitionEngine.System,
+                    AIConfiguration.RecognitionEngine.Speaktoit};
+        }
+    }
+
+    @Override
+    public void startListening() {
+        startListening(new RequestExtras());
+    }
+
+    @Override
+    public void startListening(final List<AIContext> contexts) {
+        startListening(new RequestExtras(contexts, null));
+    }
+
+    @Override
+    public void startListening(final RequestExtras requestExtras) {
+        if (!stateMachine.start()) {
+            Log.w(TAG, "Trying to start listening when it is already active");
+            return;
+        }
+
+        networkType = RecognitionEngineStats.getNetworkType(context);
+        final AIConfiguration.RecognitionEngine engine = stats.choose(networkType, candidates);
+        Log.d(TAG, "Engine " + engine + " chosen for " + networkType + " network");
+
+        currentEngine = engine;
+        measureStartTime = SystemClock.elapsedRealtime();
+        getEngine(engine).startListening(requestExtras);
+    }
+
+    @Override
+    public void stopListening() {
+        final AIConfiguration.RecognitionEngine engine = currentEngine;
+        if (engine != null) {
+            getEngine(engine).stopListening();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        final AIConfiguration.RecognitionEngine engine = currentEngine;
+        currentEngine = null;
+        if (engine != null) {
+            getEngine(engine).cancel();
+        }
+        if (stateMachine.cancel()) {
+            onListeningCancelled();
+        }
+    }
+
+    @Override
+    public void pause() {
+        cancel();
+        synchronized (engines) {
+            for (final AIService engine : engines.values()) {
+                engine.pause();
+            }
+        }
+    }
+
+    @Override
+    public void resume() {
+        synchronized (engines) {
+            for (final AIService engine : engines.values()) {
+                engine.resume();
+            }
+        }
+    }
+
+    @Override
+    public void setAudioFrameListener(final AudioFrameListener listener) {
+        super.setAudioFrameListener(listener);
+        synchronized (engines) {
+            audioFrameListener = listener;
+            for (final AIService engine : engines.values()) {
+                engine.setAudioFrameListener(listener);
+            }
+        }
+    }
+
+    /**
+     * @return engine chosen for the latest session, null if there was no session or it was cancelled
+     */
+    public AIConfiguration.RecognitionEngine getCurrentEngine() {
+        return currentEngine;
+    }
+
+    private AIService getEngine(final AIConfiguration.RecognitionEngine engine) {
+        synchronized (engines) {
+            AIService service = engines.get(engine);
+            if (service == null) {
+                service = engine == AIConfiguration.RecognitionEngine.Speaktoit
+                        ? new SpeaktoitRecognitionServiceImpl(context, config)
+                        : new GoogleRecognitionServiceImpl(context, config);
+                service.setListener(new EngineListener(engine));
+                service.setAudioFrameListener(audioFrameListener);
+                engines.put(engine, service);
+            }
+            return service;
+        }
+    }
+
+    private class EngineListener implements AIListener {
+
+        private final AIConfiguration.RecognitionEngine engine;
+
+        private EngineListener(final AIConfiguration.RecognitionEngine engine) {
+            this.engine = engine;
+        }
+
+        private boolean isCurrent() {
+            return currentEngine == engine;
+        }
+
+        /**
+         * Sessions failed because the user didn't speak don't change the engine choice
+         */
+        private void recordFailure() {
+            final AIService service = getEngine(engine);
+            setEngineFailure(service.isEngineFailure());
+            if (service.isEngineFailure()) {
+                stats.onError(engine, networkType, SystemClock.elapsedRealtime() - measureStartTime);
+            }
+        }
+
+        @Override
+        public void onResult(final AIResponse result) {
+            if (!isCurrent() || !stateMachine.finish()) {
+                return;
+            }
+            stats.onResult(engine, networkType, SystemClock.elapsedRealtime() - measureStartTime);
+            AutoRecognitionServiceImpl.this.onResult(result);
+        }
+
+        @Override
+        public void onError(final AIError error) {
+            if (!isCurrent() || !stateMachine.finish()) {
+                return;
+            }
+            recordFailure();
+            AutoRecognitionServiceImpl.this.onError(error);
+        }
+
+        @Override
+        public void onAudioLevel(final float level) {
+            if (isCurrent()) {
+                onAudioLevelChanged(level);
+            }
+        }
+
+        @Override
+        public void onListeningStarted() {
+            if (isCurrent() && stateMachine.listening()) {
+                AutoRecognitionServiceImpl.this.onListeningStarted();
+            }
+        }
+
+        @Override
+        public void onListeningCanceled() {
+            // cancel() of this service clears the current engine first, so only self-cancel gets here
+            if (!isCurrent() || !stateMachine.cancel()) {
+                return;
+            }
+            recordFailure();
+            AutoRecognitionServiceImpl.this.onListeningCancelled();
+        }
+
+        @Override
+        public void onListeningFinished() {
+            if (isCurrent() && stateMachine.processing()) {
+                // time to result is measured from the end of speech, so utterance length doesn't affect it
+                measureStartTime = SystemClock.elapsedRealtime();
+                AutoRecognitionServiceImpl.this.onListeningFinished();
+            }
+        }
+    }
+}
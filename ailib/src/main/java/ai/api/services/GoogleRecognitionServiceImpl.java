@@ -24,6 +24,7 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.speech.RecognitionListener;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
@@ -35,17 +36,23 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ai.api.android.AIConfiguration;
 import ai.api.android.AIService;
+import ai.api.android.RecognitionStateMachine;
 import ai.api.AIServiceException;
 import ai.api.PartialResultsListener;
 import ai.api.RequestExtras;
+import ai.api.metrics.MetricsRegistry;
 import ai.api.model.AIContext;
 import ai.api.model.AIError;
 import ai.api.model.AIRequest;
 import ai.api.model.AIResponse;
+import ai.api.util.RecognitionRestartPolicy;
+import ai.api.util.RecognitionThread;
 import ai.api.util.RecognizerChecker;
+import ai.api.util.Timings;
 import ai.api.util.VersionConfig;
 
 public class GoogleRecognitionServiceImpl extends AIService {
@@ -59,12 +66,33 @@ public class GoogleRecognitionServiceImpl extends AIService {
     private PartialResultsListener partialResultsListener;
     private final VersionConfig versionConfig;
 
-    private volatile boolean recognitionActive = false;
-    private volatile boolean wasReadyForSpeech;
+    /**
+     * Request to the AI service started with recognition results, null while recognizer is working
+     */
+    private volatile AsyncTask<AIRequest, Integer, AIResponse> requestTask;
+
+    /**
+     * Handler of the thread where recognizer callbacks and timers are processed
+     */
+    private final Handler handler;
+
+    /**
+     * Handler of the thread where SpeechRecognizer is created and called. SpeechRecognizer must be used
+     * from the main thread only, so it is not the same as handler if recognition thread is enabled.
+     */
+    private final Handler recognizerHandler;
 
-    private final Handler handler = new Handler();
     private Runnable stopRunnable;
 
+    private RecognitionRestartPolicy restartPolicy = RecognitionRestartPolicy.createDefault();
+    private volatile boolean recreateOnRestart;
+    private final Runnable restartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            restartRecognition(recreateOnRestart);
+        }
+    };
+
     private final Map<Integer, String> errorMessages = new HashMap<>();
 
     {
@@ -83,6 +111,14 @@ public class GoogleRecognitionServiceImpl extends AIService {
     public GoogleRecognitionServiceImpl(final Context context, final AIConfiguration config) {
         super(config, context);
 
+        if (config.isRecognitionThreadEnabled()) {
+            handler = new Handler(RecognitionThread.getLooper());
+            recognizerHandler = new Handler(Looper.getMainLooper());
+        } else {
+            handler = new Handler();
+            recognizerHandler = handler;
+        }
+
         final ComponentName component = RecognizerChecker.findGoogleRecognizer(context);
         if (component == null) {
             Log.w(TAG, "Google Recognizer application not found on device. " +
@@ -129,11 +165,29 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
             final ComponentName component = RecognizerChecker.findGoogleRecognizer(context);
             speechRecognizer = SpeechRecognizer.createSpeechRecognizer(context, component);
-            speechRecognizer.setRecognitionListener(new InternalRecognitionListener());
+            if (handler != recognizerHandler) {
+                speechRecognizer.setRecognitionListener(new ForwardingRecognitionListener(new InternalRecognitionListener()));
+            } else {
+                speechRecognizer.setRecognitionListener(new InternalRecognitionListener());
+            }
         }
     }
 
+    private boolean isRecognizerThread() {
+        return Looper.myLooper() == recognizerHandler.getLooper();
+    }
+
     protected void clearRecognizer() {
+        if (!isRecognizerThread()) {
+            recognizerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    clearRecognizer();
+                }
+            });
+            return;
+        }
+
         Log.d(TAG, "clearRecognizer");
         if (speechRecognizer != null) {
             synchronized (speechRecognizerLock) {
@@ -150,6 +204,8 @@ public class GoogleRecognitionServiceImpl extends AIService {
             throw new IllegalArgumentException("aiRequest must be not null");
         }
 
+        final Timings timings = getTimings();
+
         final AsyncTask<AIRequest, Integer, AIResponse> task = new AsyncTask<AIRequest, Integer, AIResponse>() {
 
             private AIError aiError;
@@ -158,7 +214,9 @@ public class GoogleRecognitionServiceImpl extends AIService {
             protected AIResponse doInBackground(final AIRequest... params) {
                 final AIRequest request = params[0];
                 try {
-                    return aiDataService.request(request, requestExtras);
+                    return timings != null
+                            ? aiDataService.request(request, requestExtras, timings)
+                            : aiDataService.request(request, requestExtras);
                 } catch (final AIServiceException e) {
                     aiError = new AIError(e);
                     return null;
@@ -167,15 +225,37 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
             @Override
             protected void onPostExecute(final AIResponse response) {
+                requestTask = null;
+                if (!stateMachine.finish()) {
+                    // session was cancelled while request was in progress
+                    return;
+                }
                 if (response != null) {
                     onResult(response);
                 } else {
+                    setEngineFailure(true);
                     onError(aiError);
                 }
             }
+
+            @Override
+            protected void onCancelled() {
+                requestTask = null;
+            }
         };
+        requestTask = task;
 
-        task.execute(aiRequest);
+        if (isRecognizerThread()) {
+            task.execute(aiRequest);
+        } else {
+            // AsyncTask must be executed from the main thread
+            recognizerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    task.execute(aiRequest);
+                }
+            });
+        }
     }
 
     @Override
@@ -190,11 +270,29 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
     @Override
     public void startListening(final RequestExtras requestExtras) {
-        if (!recognitionActive) {
+        // tap time is recorded before the call is passed to the recognizer thread
+        startListening(requestExtras, Timings.start());
+    }
+
+    private void startListening(final RequestExtras requestExtras, final Timings timings) {
+        if (!isRecognizerThread()) {
+            recognizerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startListening(requestExtras, timings);
+                }
+            });
+            return;
+        }
+
+        if (stateMachine.start()) {
             synchronized (speechRecognizerLock) {
+                setTimings(timings);
                 this.requestExtras = requestExtras;
 
                 if (!checkPermissions()) {
+                    stateMachine.finish();
+                    setEngineFailure(false);
                     final AIError aiError = new AIError("RECORD_AUDIO permission is denied. Please request permission from user.");
                     onError(aiError);
                     return;
@@ -202,19 +300,18 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
                 initializeRecognizer();
 
-                recognitionActive = true;
+                restartPolicy.reset();
 
                 final Intent sttIntent = createRecognitionIntent();
 
                 try {
-                    wasReadyForSpeech = false;
                     speechRecognizer.startListening(sttIntent);
                 } catch (final SecurityException e) { //Error occurs only on HTC devices.
                 }
             }
         } else {
             Log.w(TAG, "Trying to start recognition while another recognition active");
-            if (!wasReadyForSpeech) {
+            if (!wasReadyForSpeech()) {
                 cancel();
             }
         }
@@ -239,6 +336,16 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
     @Override
     public void stopListening() {
+        if (!isRecognizerThread()) {
+            recognizerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopListening();
+                }
+            });
+            return;
+        }
+
         synchronized (speechRecognizerLock) {
             if (speechRecognizer != null) {
                 speechRecognizer.stopListening();
@@ -248,30 +355,58 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
     @Override
     public void cancel() {
+        if (!isRecognizerThread()) {
+            recognizerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    cancel();
+                }
+            });
+            return;
+        }
+
+        recognizerHandler.removeCallbacks(restartRunnable);
         synchronized (speechRecognizerLock) {
-            if (recognitionActive) {
-                recognitionActive = false;
+            if (stateMachine.cancel()) {
                 if (speechRecognizer != null) {
                     speechRecognizer.cancel();
                 }
+                final AsyncTask<AIRequest, Integer, AIResponse> task = requestTask;
+                if (task != null) {
+                    task.cancel(true);
+                }
                 onListeningCancelled();
             }
         }
     }
 
-    private void restartRecognition() {
+    private void scheduleRestart(final boolean recreate, final long delay) {
+        updateStopRunnable(0);
+        recognizerHandler.removeCallbacks(restartRunnable);
+        recreateOnRestart = recreate;
+        recognizerHandler.postDelayed(restartRunnable, delay);
+    }
+
+    private void restartRecognition(final boolean recreate) {
         updateStopRunnable(0);
-        recognitionActive = false;
 
         synchronized (speechRecognizerLock) {
+            if (!stateMachine.restart()) {
+                // cancelled while restart was pending
+                return;
+            }
+
             try {
+                if (recreate) {
+                    // busy recognizer won't recover by itself, replace it with the new one
+                    clearRecognizer();
+                    initializeRecognizer();
+                }
                 if (speechRecognizer != null) {
                     speechRecognizer.cancel();
 
                     final Intent intent = createRecognitionIntent();
-                    wasReadyForSpeech = false;
                     speechRecognizer.startListening(intent);
-                    recognitionActive = true;
                 }
             } catch (Exception e) {
                 stopListening();
@@ -294,39 +429,91 @@ public class GoogleRecognitionServiceImpl extends AIService {
     public void resume() {
     }
 
+    /**
+     * Sets policy used to restart recognition on recoverable recognizer errors.
+     * Use {@link RecognitionRestartPolicy#createDisabled()} to report all errors to the listener.
+     */
+    public void setRestartPolicy(@NonNull final RecognitionRestartPolicy restartPolicy) {
+        this.restartPolicy = restartPolicy;
+    }
+
+    public RecognitionRestartPolicy getRestartPolicy() {
+        return restartPolicy;
+    }
+
     public void setPartialResultsListener(PartialResultsListener partialResultsListener) {
         this.partialResultsListener = partialResultsListener;
     }
 
+    public PartialResultsListener getPartialResultsListener() {
+        return partialResultsListener;
+    }
+
     protected void onPartialResults(final List<String> partialResults) {
-        if (partialResultsListener != null) {
-            partialResultsListener.onPartialResults(partialResults);
-        }
+        postEvent(new Runnable() {
+            @Override
+            public void run() {
+                if (partialResultsListener != null) {
+                    partialResultsListener.onPartialResults(partialResults);
+                }
+            }
+        });
     }
 
     private void stopInternal() {
         updateStopRunnable(0);
         if (versionConfig.isDestroyRecognizer()) clearRecognizer();
-        recognitionActive = false;
+    }
+
+    /**
+     * @return true if listening session is active and recognizer has not returned results yet
+     */
+    private boolean isRecognizing() {
+        return stateMachine.getState().isActive() && requestTask == null;
+    }
+
+    /**
+     * @return true if recognizer reported onReadyForSpeech in the current attempt
+     */
+    private boolean wasReadyForSpeech() {
+        final RecognitionStateMachine.State state = stateMachine.getState();
+        return state == RecognitionStateMachine.State.listening || state == RecognitionStateMachine.State.processing;
+    }
+
+    /**
+     * @return false for the errors caused by the user or the device, e.g. no speech or no permission
+     */
+    private static boolean isEngineError(final int error) {
+        switch (error) {
+            case SpeechRecognizer.ERROR_NETWORK:
+            case SpeechRecognizer.ERROR_NETWORK_TIMEOUT:
+            case SpeechRecognizer.ERROR_SERVER:
+            case SpeechRecognizer.ERROR_CLIENT:
+            case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
+                return true;
+            default:
+                return false;
+        }
     }
 
     private class InternalRecognitionListener implements RecognitionListener {
 
         @Override
         public void onReadyForSpeech(final Bundle params) {
-            if (recognitionActive) {
+            if (stateMachine.listening()) {
+                markTiming(Timings.READY_FOR_SPEECH);
                 onListeningStarted();
             }
-            wasReadyForSpeech = true;
         }
 
         @Override
         public void onBeginningOfSpeech() {
+            markTiming(Timings.SPEECH_BEGIN);
         }
 
         @Override
         public void onRmsChanged(final float rmsdB) {
-            if (recognitionActive) {
+            if (isRecognizing()) {
                 onAudioLevelChanged(rmsdB);
             }
         }
@@ -338,20 +525,27 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
         @Override
         public void onEndOfSpeech() {
-            if (recognitionActive) {
+            if (stateMachine.processing()) {
+                markTiming(Timings.SPEECH_END);
                 onListeningFinished();
             }
         }
 
         @Override
         public void onError(final int error) {
-            if (error == SpeechRecognizer.ERROR_NO_MATCH && !wasReadyForSpeech) {
-                Log.d(TAG, "SpeechRecognizer.ERROR_NO_MATCH, restartRecognition()");
-                restartRecognition();
-                return;
-            }
+            if (isRecognizing()) {
+                MetricsRegistry.getDefault().counter(MetricsRegistry.RECOGNIZER_ERROR_PREFIX + error).increment();
+
+                final RecognitionRestartPolicy.Action action = restartPolicy.onError(error, wasReadyForSpeech());
+                if (action != RecognitionRestartPolicy.Action.FAIL) {
+                    final long delay = restartPolicy.getRestartDelay();
+                    Log.d(TAG, "SpeechRecognizer error " + error + ", " + action + " in " + delay + "ms");
+                    scheduleRestart(action == RecognitionRestartPolicy.Action.RECREATE, delay);
+                    return;
+                }
+
+                restartPolicy.onSessionFailed();
 
-            if (recognitionActive) {
                 final AIError aiError;
 
                 if (errorMessages.containsKey(error)) {
@@ -361,7 +555,10 @@ public class GoogleRecognitionServiceImpl extends AIService {
                     aiError = new AIError("Speech recognition engine error: " + error);
                 }
 
-                GoogleRecognitionServiceImpl.this.onError(aiError);
+                if (stateMachine.finish()) {
+                    setEngineFailure(isEngineError(error));
+                    GoogleRecognitionServiceImpl.this.onError(aiError);
+                }
             }
             stopInternal();
         }
@@ -369,7 +566,16 @@ public class GoogleRecognitionServiceImpl extends AIService {
         @TargetApi(14)
         @Override
         public void onResults(final Bundle results) {
-            if (recognitionActive) {
+            if (isRecognizing()) {
+                restartPolicy.onSessionSucceeded();
+
+                // results could be returned without onEndOfSpeech call
+                if (stateMachine.processing()) {
+                    markTiming(Timings.SPEECH_END);
+                    onListeningFinished();
+                }
+                markTiming(Timings.FINAL_TRANSCRIPT);
+
                 final ArrayList<String> recognitionResults = results
                         .getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
 
@@ -381,7 +587,9 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
                 if (recognitionResults == null || recognitionResults.isEmpty()) {
                     // empty response
-                    GoogleRecognitionServiceImpl.this.onResult(new AIResponse());
+                    if (stateMachine.finish()) {
+                        GoogleRecognitionServiceImpl.this.onResult(new AIResponse());
+                    }
                 } else {
                     final AIRequest aiRequest = new AIRequest();
                     if (rates != null) {
@@ -400,7 +608,7 @@ public class GoogleRecognitionServiceImpl extends AIService {
 
         @Override
         public void onPartialResults(final Bundle partialResults) {
-            if (recognitionActive) {
+            if (isRecognizing()) {
                 updateStopRunnable(1);
                 final ArrayList<String> partialRecognitionResults = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
                 if (partialRecognitionResults != null && !partialRecognitionResults.isEmpty()) {
@@ -414,4 +622,115 @@ public class GoogleRecognitionServiceImpl extends AIService {
         }
     }
 
+    /**
+     * Receives SpeechRecognizer callbacks on the main thread and passes them to the recognition thread.
+     * Only the latest RMS value is passed if the recognition thread is busy.
+     */
+    private class ForwardingRecognitionListener implements RecognitionListener {
+
+        private final RecognitionListener target;
+
+        private volatile float lastRmsdB;
+        private final AtomicBoolean rmsPending = new AtomicBoolean();
+        private final Runnable rmsRunnable = new Runnable() {
+            @Override
+            public void run() {
+                rmsPending.set(false);
+                target.onRmsChanged(lastRmsdB);
+            }
+        };
+
+        private ForwardingRecognitionListener(final RecognitionListener target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onReadyForSpeech(final Bundle params) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onReadyForSpeech(params);
+                }
+            });
+        }
+
+        @Override
+        public void onBeginningOfSpeech() {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onBeginningOfSpeech();
+                }
+            });
+        }
+
+        @Override
+        public void onRmsChanged(final float rmsdB) {
+            lastRmsdB = rmsdB;
+            if (rmsPending.compareAndSet(false, true)) {
+                handler.post(rmsRunnable);
+            }
+        }
+
+        @Override
+        public void onBufferReceived(final byte[] buffer) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onBufferReceived(buffer);
+                }
+            });
+        }
+
+        @Override
+        public void onEndOfSpeech() {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onEndOfSpeech();
+                }
+            });
+        }
+
+        @Override
+        public void onError(final int error) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onError(error);
+                }
+            });
+        }
+
+        @Override
+        public void onResults(final Bundle results) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onResults(results);
+                }
+            });
+        }
+
+        @Override
+        public void onPartialResults(final Bundle partialResults) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onPartialResults(partialResults);
+                }
+            });
+        }
+
+        @Override
+        public void onEvent(final int eventType, final Bundle params) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onEvent(eventType, params);
+                }
+            });
+        }
+    }
+
 }
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ai.api.AIListener;
+import ai.api.AudioFrameListener;
+import ai.api.RequestExtras;
+import ai.api.android.AIConfiguration;
+import ai.api.android.AIService;
+import ai.api.model.AIContext;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+
+/**
+ * Runs the system recognizer and the server side recognition at the same time and delivers
+ * the first valid response, the other engine is cancelled. Error is reported only if both engines failed.
+ * <p>
+ * Engines capture audio independently. On devices which don't allow concurrent capture one of them
+ * fails to start and the result comes from the other one.
+ */
+@SuppressWarnings("deprecation")
+public class HedgedRecognitionServiceImpl extends AIService {
+
+    public static final String TAG = HedgedRecognitionServiceImpl.class.getName();
+
+    private final AIService[] engines;
+
+    private final AtomicLongArray winCounts;
+
+    private volatile HedgeSession session;
+
+    public HedgedRecognitionServiceImpl(final Context context, final AIConfiguration config) {
+        this(context, config,
+                new GoogleRecognitionServiceImpl(context, config),
+                new SpeaktoitRecognitionServiceImpl(context, config));
+    }
+
+    /**
+     * @param primary   engine which reports audio levels, usually on-device recognizer
+     * @param secondary engine raced against the primary one
+     */
+    public HedgedRecognitionServiceImpl(final Context context, final AIConfiguration config,
+                                        final AIService primary, final AIService secondary) {
+        super(config, context);
+        engines = new AIService[]{primary, secondary};
+        winCounts = new AtomicLongArray(engines.length);
+
+        for (int i = 0; i < engines.length; i++) {
+            engines[i].setListener(new EngineListener(i));
+        }
+    }
+
+    @Override
+    public void startListening() {
+        startListening(new RequestExtras());
+    }
+
+    @Override
+    public void startListening(final List<AIContext> contexts) {
+        startListening(new RequestExtras(contexts, null));
+    }
+
+    @Override
+    public void startListening(final RequestExtras requestExtras) {
+        if (!stateMachine.start()) {
+            Log.w(TAG, "Trying to start listening when it is already active");
+            return;
+        }
+
+        session = new HedgeSession(engines.length);
+        for (final AIService engine : engines) {
+            engine.startListening(requestExtras);
+        }
+    }
+
+    @Override
+    public void stopListening() {
+        for (final AIService engine : engines) {
+            engine.stopListening();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        final HedgeSession currentSession = session;
+        if (currentSession != null) {
+            currentSession.done.set(true);
+        }
+
+        for (final AIService engine : engines) {
+            engine.cancel();
+        }
+
+        if (stateMachine.cancel()) {
+            onListeningCancelled();
+        }
+    }
+
+    @Override
+    public void pause() {
+        cancel();
+        for (final AIService engine : engines) {
+            engine.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        for (final AIService engine : engines) {
+            engine.resume();
+        }
+    }
+
+    @Override
+    public void setAudioFrameListener(final AudioFrameListener listener) {
+        super.setAudioFrameListener(listener);
+        for (final AIService engine : engines) {
+            engine.setAudioFrameListener(listener);
+        }
+    }
+
+    /**
+     * @param engineIndex 0 for primary engine, 1 for secondary
+     * @return number of sessions won by the engine
+     */
+    public long getWinCount(final int engineIndex) {
+        return winCounts.get(engineIndex);
+    }
+
+    private void onEngineResult(final int index, final AIResponse response) {
+        final HedgeSession currentSession = session;
+        if (currentSession == null || currentSession.done.get()) {
+            return;
+        }
+
+        if (response == null || response.isError() || response.getResult() == null) {
+            onEngineError(index, response != null ? new AIError(response) : new AIError("Empty response"));
+            return;
+        }
+
+        if (!currentSession.done.compareAndSet(false, true)) {
+            return;
+        }
+
+        winCounts.incrementAndGet(index);
+        cancelOthers(index);
+
+        if (currentSession.listeningFinished.compareAndSet(false, true)) {
+            onListeningFinished();
+        }
+        stateMachine.finish();
+        onResult(response);
+    }
+
+    /**
+     * @param error null if the engine cancelled itself
+     */
+    private void onEngineError(final int index, final AIError error) {
+        final HedgeSession currentSession = session;
+        if (currentSession == null || currentSession.done.get()) {
+            return;
+        }
+
+        // engine may report error and cancellation of the same session
+        if (!currentSession.failedEngines.compareAndSet(index, 0, 1)) {
+            return;
+        }
+
+        if (error != null) {
+            Log.w(TAG, "Engine " + index + " failed: " + error);
+            currentSession.error.set(error);
+        } else {
+            Log.w(TAG, "Engine " + index + " cancelled itself");
+        }
+
+        // audio levels are taken from the engine which is still working
+        currentSession.audioSource.compareAndSet(index, engines.length - 1 - index);
+
+        if (currentSession.failures.incrementAndGet() < engines.length) {
+            return;
+        }
+
+        if (currentSession.done.compareAndSet(false, true)) {
+            final AIError lastError = currentSession.error.get();
+            if (lastError != null) {
+                stateMachine.finish();
+                onError(lastError);
+            } else if (stateMachine.cancel()) {
+                onListeningCancelled();
+            }
+        }
+    }
+
+    private void onEngineListeningFinished(final int index) {
+        final HedgeSession currentSession = session;
+        if (currentSession == null || currentSession.done.get()) {
+            return;
+        }
+
+        if (currentSession.listeningFinished.compareAndSet(false, true)) {
+            // user finished speaking, no need to wait for endpoint detection of the other engine
+            for (int i = 0; i < engines.length; i++) {
+                if (i != index) {
+                    engines[i].stopListening();
+                }
+            }
+            stateMachine.processing();
+            onListeningFinished();
+        }
+    }
+
+    private void cancelOthers(final int winner) {
+        for (int i = 0; i < engines.length; i++) {
+            if (i != winner) {
+                engines[i].cancel();
+            }
+        }
+    }
+
+    private static class HedgeSession {
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AtomicBoolean listeningFinished = new AtomicBoolean();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger audioSource = new AtomicInteger();
+
+        /**
+         * 1 for engines which failed or cancelled themselves
+         */
+        private final AtomicIntegerArray failedEngines;
+        private final AtomicReference<AIError> error = new AtomicReference<>();
+
+        private HedgeSession(final int enginesCount) {
+            failedEngines = new AtomicIntegerArray(enginesCount);
+        }
+    }
+
+    private class EngineListener implements AIListener {
+
+        private final int index;
+
+        private EngineListener(final int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onResult(final AIResponse result) {
+            onEngineResult(index, result);
+        }
+
+        @Override
+        public void onError(final AIError error) {
+            onEngineError(index, error);
+        }
+
+        @Override
+        public void onAudioLevel(final float level) {
+            final HedgeSession currentSession = session;
+            if (currentSession != null && currentSession.audioSource.get() == index) {
+                onAudioLevelChanged(level);
+            }
+        }
+
+        @Override
+        public void onListeningStarted() {
+            if (stateMachine.listening()) {
+                HedgedRecognitionServiceImpl.this.onListeningStarted();
+            }
+        }
+
+        @Override
+        public void onListeningCanceled() {
+            // cancellation driven by this service is ignored, the session is done by then
+            onEngineError(index, null);
+        }
+
+        @Override
+        public void onListeningFinished() {
+            onEngineListeningFinished(index);
+        }
+    }
+}
@@ -19,6 +19,7 @@ package ai.api.services;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.media.AudioFormat;
+import android.media.AudioManager;
 import android.media.AudioRecord;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
@@ -28,9 +29,6 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -39,14 +37,20 @@ import ai.api.AIServiceException;
 import ai.api.RequestExtras;
 import ai.api.android.AIConfiguration;
 import ai.api.android.AIService;
+import ai.api.android.RecognitionStateMachine;
+import ai.api.metrics.Counter;
+import ai.api.metrics.MetricsRegistry;
 import ai.api.model.AIContext;
 import ai.api.model.AIError;
 import ai.api.model.AIResponse;
+import ai.api.util.AudioEncoder;
+import ai.api.util.AutomaticGainControl;
+import ai.api.util.EncodingInputStream;
+import ai.api.util.FlacEncoder;
+import ai.api.util.PolyphaseResampler;
+import ai.api.util.Timings;
 import ai.api.util.VoiceActivityDetector;
 
-import static ai.api.util.VoiceActivityDetector.FRAME_SIZE_IN_BYTES;
-import static ai.api.util.VoiceActivityDetector.NOISE_BYTES;
-
 /*
 * @deprecated Use GoogleRecognitionServiceImpl
 */
@@ -58,18 +62,34 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
 
     public static final String TAG = SpeaktoitRecognitionServiceImpl.class.getName();
 
+    /**
+     * Sample rate of the audio sent to the server
+     */
     private static final int SAMPLE_RATE_IN_HZ = 16000;
+
+    /**
+     * Native rate of the bluetooth SCO route, audio is captured at this rate and resampled
+     */
+    private static final int SCO_SAMPLE_RATE_IN_HZ = 8000;
+
     private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
 
+    private static final Counter audioRecordOverruns = MetricsRegistry.getDefault().counter(MetricsRegistry.AUDIO_RECORD_OVERRUNS);
+
     private final ExecutorService eventsExecutor = Executors.newSingleThreadExecutor();
-    private final VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE_IN_HZ);
+    private final AudioManager audioManager;
 
+    /**
+     * Works at the capture sample rate, recreated with the audio record
+     */
+    private VoiceActivityDetector vad;
 
     private AudioRecord audioRecord;
+    private int bufferSizeInBytes;
+    private int captureSampleRate;
 
     private final Object recognizerLock = new Object();
-    private volatile boolean isRecording = false;
 
     private MediaPlayer mediaPlayer;
 
@@ -78,21 +98,13 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
 
     public SpeaktoitRecognitionServiceImpl(final Context context, final AIConfiguration config) {
         super(config, context);
+        audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         init();
     }
 
     private void init() {
         synchronized (recognizerLock) {
-            final int bufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE_IN_HZ, CHANNEL_CONFIG, AUDIO_FORMAT);
-
-            audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                    SAMPLE_RATE_IN_HZ,
-                    CHANNEL_CONFIG,
-                    AUDIO_FORMAT,
-                    bufferSize);
-
-            vad.setEnabled(config.isVoiceActivityDetectionEnabled());
-            vad.setSpeechListener(this);
+            createAudioRecord(getRouteSampleRate());
 
             mediaPlayer = new MediaPlayer();
             mediaPlayer.setOnErrorListener(this);
@@ -100,6 +112,36 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
         }
     }
 
+    /**
+     * Creates audio record and voice activity detector for the sample rate
+     */
+    private void createAudioRecord(final int sampleRate) {
+        final int bufferSize = AudioRecord.getMinBufferSize(sampleRate, CHANNEL_CONFIG, AUDIO_FORMAT);
+        bufferSizeInBytes = bufferSize;
+        captureSampleRate = sampleRate;
+
+        audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
+                sampleRate,
+                CHANNEL_CONFIG,
+                AUDIO_FORMAT,
+                bufferSize);
+
+        vad = new VoiceActivityDetector(sampleRate);
+        vad.setEnabled(config.isVoiceActivityDetectionEnabled());
+        vad.setSpeechListener(this);
+    }
+
+    /**
+     * @return native sample rate of the active audio input route
+     */
+    @SuppressWarnings("deprecation")
+    private int getRouteSampleRate() {
+        if (audioManager != null && audioManager.isBluetoothScoOn()) {
+            return SCO_SAMPLE_RATE_IN_HZ;
+        }
+        return SAMPLE_RATE_IN_HZ;
+    }
+
     @Override
     public void startListening() {
         startListening(new RequestExtras());
@@ -113,15 +155,17 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
     @Override
     public void startListening(final RequestExtras requestExtras) {
         synchronized (recognizerLock) {
-            if (!isRecording) {
+            if (stateMachine.start()) {
+                setTimings(Timings.start());
 
                 if (!checkPermissions()) {
+                    stateMachine.finish();
+                    setEngineFailure(false);
                     final AIError aiError = new AIError("RECORD_AUDIO permission is denied. Please request permission from user.");
                     onError(aiError);
                     return;
                 }
 
-                isRecording = true;
                 extras = requestExtras;
 
                 final AssetFileDescriptor startSound = config.getRecognizerStartSound();
@@ -140,23 +184,37 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
     }
 
     private void startRecording(final RequestExtras extras) {
+        final int routeSampleRate = getRouteSampleRate();
+        if (routeSampleRate != captureSampleRate) {
+            // route changed since the last session, e.g. bluetooth headset connected
+            Log.d(TAG, "Capture sample rate changed to " + routeSampleRate);
+            audioRecord.release();
+            createAudioRecord(routeSampleRate);
+        }
+
         vad.reset();
 
         audioRecord.startRecording();
 
-        onListeningStarted();
+        if (stateMachine.listening()) {
+            markTiming(Timings.READY_FOR_SPEECH);
+            onListeningStarted();
+        }
 
-        recognizeTask = new RecognizeTask(new RecorderStream(audioRecord), extras);
+        final RecorderStream recorderStream = new RecorderStream(audioRecord, bufferSizeInBytes, vad, captureSampleRate);
+        final AudioEncoder encoder = createAudioEncoder(SAMPLE_RATE_IN_HZ);
+        final InputStream audioStream = encoder != null ? new EncodingInputStream(recorderStream, encoder) : recorderStream;
+        recognizeTask = new RecognizeTask(audioStream, extras, getTimings());
         recognizeTask.execute();
     }
 
     @Override
     public void stopListening() {
         synchronized (recognizerLock) {
-            if (isRecording) {
+            if (stateMachine.processing()) {
+                markTiming(Timings.SPEECH_END);
                 try {
                     audioRecord.stop();
-                    isRecording = false;
 
                     final AssetFileDescriptor stopSound = config.getRecognizerStopSound();
                     if (stopSound != null) {
@@ -175,28 +233,37 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
     @Override
     public void cancel() {
         synchronized (recognizerLock) {
-            if (isRecording) {
-                audioRecord.stop();
-                isRecording = false;
+            final boolean wasRecording = isRecording();
+            if (stateMachine.cancel()) {
+                if (wasRecording) {
+                    audioRecord.stop();
 
-                final AssetFileDescriptor cancelSound = config.getRecognizerCancelSound();
-                if (cancelSound != null) {
-                    playSound(cancelSound);
+                    final AssetFileDescriptor cancelSound = config.getRecognizerCancelSound();
+                    if (cancelSound != null) {
+                        playSound(cancelSound);
+                    }
                 }
+                onListeningCancelled();
             }
             if (recognizeTask != null) {
                 recognizeTask.cancel(true);
             }
-            onListeningCancelled();
         }
     }
 
+    /**
+     * Releases the recorder and the player. Both pause and resume may be called several times in a row,
+     * e.g. by the activity and by {@link ai.api.android.AIServicePool}, repeated calls do nothing.
+     */
     @Override
     public void pause() {
         synchronized (recognizerLock) {
-            if (isRecording) {
+            if (audioRecord == null) {
+                return;
+            }
+            final boolean wasRecording = isRecording();
+            if (stateMachine.cancel() && wasRecording) {
                 audioRecord.stop();
-                isRecording = false;
             }
             audioRecord.release();
             audioRecord = null;
@@ -209,7 +276,33 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
 
     @Override
     public void resume() {
-        init();
+        synchronized (recognizerLock) {
+            if (audioRecord == null) {
+                init();
+            }
+        }
+    }
+
+    /**
+     * Creates encoder of the uploaded audio for every session, override to plug in another encoding
+     * @param sampleRate rate of the 16 bit mono PCM given to the encoder
+     * @return null to upload PCM as captured
+     */
+    protected AudioEncoder createAudioEncoder(final int sampleRate) {
+        if (config.getAudioEncoding() == AIConfiguration.AudioEncoding.Flac) {
+            // libai sends the voice part as audio/wav, content type can't be changed for the request
+            Log.d(TAG, "FLAC upload enabled, audio is sent with audio/wav content type");
+            return new FlacEncoder(sampleRate);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if audio is captured or going to be captured after start sound
+     */
+    private boolean isRecording() {
+        final RecognitionStateMachine.State state = stateMachine.getState();
+        return state == RecognitionStateMachine.State.starting || state == RecognitionStateMachine.State.listening;
     }
 
     private boolean playSound(AssetFileDescriptor afd) {
@@ -228,6 +321,7 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
 
     @Override
     public void onSpeechBegin() {
+        markTiming(Timings.SPEECH_BEGIN);
     }
 
     @Override
@@ -245,6 +339,8 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
         eventsExecutor.submit(new Runnable() {
             @Override
             public void run() {
+                // no speech was detected
+                setEngineFailure(false);
                 cancel();
             }
         });
@@ -252,23 +348,46 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
 
     private class RecorderStream extends InputStream {
 
-        @SuppressWarnings("MagicNumber")
-        private final float dbLevel = (float) Math.pow(10.0, -1.0 / 20.0);
-
         private final AudioRecord audioRecord;
+        private final int bufferSizeInBytes;
+        private final VoiceActivityDetector vad;
+        private final int sampleRate;
+
+        /**
+         * Converts captured audio to {@link #SAMPLE_RATE_IN_HZ}, null if audio is captured at this rate
+         */
+        private final PolyphaseResampler resampler;
+
+        /**
+         * Applied to the captured audio in place, null if gain control is disabled
+         */
+        private final AutomaticGainControl gainControl;
+        private byte[] captureBuffer;
+
+        /**
+         * Frame passed to the voice activity detector
+         */
+        private final byte[] frame;
+        private int frameLength;
+
+        /**
+         * Captured bytes and capture start time, used to find out when the AudioRecord buffer overflowed
+         */
+        private final long startNanos = System.nanoTime();
+        private long capturedBytes;
 
-        private byte[] bytes;
         private final Object bytesLock = new Object();
 
-        int offset = 0;
-        int max = 0;
-        int min = 0;
-        float alignment = 0;
-        float count = 1;
-        int extent;
-
-        private RecorderStream(final AudioRecord audioRecord) {
+        private RecorderStream(final AudioRecord audioRecord, final int bufferSizeInBytes,
+                               final VoiceActivityDetector vad, final int sampleRate) {
             this.audioRecord = audioRecord;
+            this.bufferSizeInBytes = bufferSizeInBytes;
+            this.vad = vad;
+            this.sampleRate = sampleRate;
+            resampler = sampleRate != SAMPLE_RATE_IN_HZ ? new PolyphaseResampler(sampleRate, SAMPLE_RATE_IN_HZ) : null;
+            frame = new byte[vad.getFrameSizeInBytes()];
+            gainControl = config.getGainControl() == AIConfiguration.GainControl.Automatic
+                    ? new AutomaticGainControl(sampleRate) : null;
         }
 
         @Override
@@ -280,74 +399,101 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
 
         @Override
         public int read(@NonNull final byte[] buffer, final int byteOffset, final int byteCount) throws IOException {
-            final int bytesRead = audioRecord.read(buffer, byteOffset, byteCount);
-            if (bytesRead > 0) {
-                synchronized (bytesLock) {
-                    if (config.isNormalizeInputSound())
-                        normalize(buffer, bytesRead);
-
-                    byte[] temp = bytes;
-                    int tempLength = temp != null ? temp.length : 0;
-                    bytes = new byte[tempLength + bytesRead];
-                    if (tempLength > 0) {
-                        System.arraycopy(temp, 0, bytes, 0, tempLength);
-                    }
-                    System.arraycopy(buffer, 0, bytes, tempLength, bytesRead);
+            if (resampler == null) {
+                final int bytesRead = audioRecord.read(buffer, byteOffset, byteCount);
+                if (bytesRead > 0) {
+                    onCaptured(buffer, byteOffset, bytesRead);
+                    onAudioFrame(buffer, byteOffset, bytesRead);
+                }
+                return bytesRead != 0 ? bytesRead : AudioRecord.ERROR_INVALID_OPERATION;
+            }
+
+            // captured audio is read so that resampled audio fits the buffer
+            final int captureBytes = resampler.getMaxInputSamples(byteCount / 2) * 2;
+            if (captureBuffer == null || captureBuffer.length < captureBytes) {
+                captureBuffer = new byte[captureBytes];
+            }
+            final int bytesRead = audioRecord.read(captureBuffer, 0, captureBytes);
+            if (bytesRead <= 0) {
+                return bytesRead != 0 ? bytesRead : AudioRecord.ERROR_INVALID_OPERATION;
+            }
 
-                    while (bytes.length >= FRAME_SIZE_IN_BYTES) {
-                        final byte[] b = new byte[FRAME_SIZE_IN_BYTES];
-                        System.arraycopy(bytes, 0, b, 0, FRAME_SIZE_IN_BYTES);
-                        vad.processBuffer(b, FRAME_SIZE_IN_BYTES);
+            onCaptured(captureBuffer, 0, bytesRead);
+            final int resampledBytes = resampler.resample(captureBuffer, 0, bytesRead, buffer, byteOffset);
+            onAudioFrame(buffer, byteOffset, resampledBytes);
+            return resampledBytes != 0 ? resampledBytes : AudioRecord.ERROR_INVALID_OPERATION;
+        }
 
-                        temp = bytes;
-                        final int newLength = temp.length - FRAME_SIZE_IN_BYTES;
-                        bytes = new byte[newLength];
-                        System.arraycopy(temp, FRAME_SIZE_IN_BYTES, bytes, 0, newLength);
-                    }
-                    onAudioLevelChanged((float) vad.calculateRms());
+        /**
+         * Processes audio at the capture sample rate. Voice activity is detected before the gain control,
+         * so the detector compares speech with the noise at the same level.
+         */
+        private void onCaptured(final byte[] buffer, final int offset, final int length) {
+            checkOverrun(length);
+            synchronized (bytesLock) {
+                assembleFrames(buffer, offset, length);
+                onAudioLevelChanged((float) vad.calculateRms());
+
+                if (gainControl != null) {
+                    gainControl.process(buffer, offset, length);
                 }
             }
-            return bytesRead != 0 ? bytesRead : AudioRecord.ERROR_INVALID_OPERATION;
         }
 
-        private void normalize(@NonNull final byte[] buffer, final int bytesRead) {
-            final int remainOffset = NOISE_BYTES - offset;
-            if (bytesRead >= remainOffset) {
-                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, remainOffset, bytesRead - remainOffset).order(ByteOrder.LITTLE_ENDIAN);
-                final ShortBuffer shorts = byteBuffer.asShortBuffer();
-                for (int i = 0; i < shorts.limit(); i++) {
-                    final short sample = shorts.get(i);
-                    max = Math.max(max, sample);
-                    min = Math.min(min, sample);
-                    alignment = (count - 1) / count * alignment + sample / count;
-                    count++;
-                }
-                extent = Math.max(Math.abs(max), Math.abs(min));
-                final float factor = dbLevel * Short.MAX_VALUE / extent;
-                for (int i = 0; i < shorts.limit(); i++) {
-                    byteBuffer.putShort((short) ((shorts.get(i) - alignment) * factor));
+        /**
+         * Passes complete frames to the voice activity detector, the rest is kept for the next read
+         */
+        private void assembleFrames(final byte[] buffer, final int offset, final int length) {
+            int position = offset;
+            int remaining = length;
+            while (remaining > 0) {
+                final int count = Math.min(remaining, frame.length - frameLength);
+                System.arraycopy(buffer, position, frame, frameLength, count);
+                frameLength += count;
+                position += count;
+                remaining -= count;
+
+                if (frameLength == frame.length) {
+                    vad.processBuffer(frame, frame.length);
+                    frameLength = 0;
                 }
             }
-            offset += Math.min(bytesRead, remainOffset);
+        }
+
+        /**
+         * AudioRecord drops audio silently when it is not read in time. Audio produced since the start
+         * is compared with the audio read, difference larger than the buffer means some audio was lost.
+         */
+        private void checkOverrun(final int bytesRead) {
+            capturedBytes += bytesRead;
+            final long producedBytes = (System.nanoTime() - startNanos) * sampleRate * 2 / 1000000000L;
+            if (bufferSizeInBytes > 0 && producedBytes - capturedBytes > bufferSizeInBytes) {
+                audioRecordOverruns.increment();
+                capturedBytes = producedBytes;
+            }
         }
     }
 
     private class RecognizeTask extends AsyncTask<Void, Void, AIResponse> {
 
-        private final RecorderStream recorderStream;
+        private final InputStream audioStream;
         private final RequestExtras requestExtras;
+        private final Timings timings;
 
         private AIError aiError;
 
-        private RecognizeTask(final RecorderStream recorderStream, final RequestExtras requestExtras) {
-            this.recorderStream = recorderStream;
+        private RecognizeTask(final InputStream audioStream, final RequestExtras requestExtras, final Timings timings) {
+            this.audioStream = audioStream;
             this.requestExtras = requestExtras;
+            this.timings = timings;
         }
 
         @Override
         protected AIResponse doInBackground(final Void... params) {
             try {
-                return aiDataService.voiceRequest(recorderStream, requestExtras);
+                return timings != null
+                        ? aiDataService.voiceRequest(audioStream, requestExtras, timings)
+                        : aiDataService.voiceRequest(audioStream, requestExtras);
             } catch (final AIServiceException e) {
                 aiError = new AIError(e);
             }
@@ -360,8 +506,11 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
                 return;
             }
             if (aiResponse != null) {
-                onResult(aiResponse);
+                if (stateMachine.finish()) {
+                    onResult(aiResponse);
+                }
             } else {
+                setEngineFailure(true);
                 SpeaktoitRecognitionServiceImpl.this.cancel();
                 onError(aiError);
             }
@@ -370,14 +519,14 @@ public class SpeaktoitRecognitionServiceImpl extends AIService implements
 
     @Override
     public void onCompletion(MediaPlayer mp) {
-        if (isRecording) {
+        if (stateMachine.getState() == RecognitionStateMachine.State.starting) {
             startRecording(extras);
         }
     }
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
-        if (isRecording) {
+        if (stateMachine.getState() == RecognitionStateMachine.State.starting) {
             startRecording(extras);
         }
         return false;
@@ -16,12 +16,16 @@
 
 package ai.api.ui;
 
+import android.animation.ValueAnimator;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Looper;
+import android.support.v4.content.ContextCompat;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
@@ -34,6 +38,7 @@ import java.util.List;
 import ai.api.android.AIConfiguration;
 import ai.api.AIListener;
 import ai.api.android.AIService;
+import ai.api.android.RecognitionStateMachine;
 import ai.api.AIServiceException;
 import ai.api.PartialResultsListener;
 import ai.api.R;
@@ -57,23 +62,63 @@ public class AIButton extends SoundLevelButton implements AIListener {
     protected static final int[] STATE_SPEAKING = {R.attr.state_speaking};
     protected static final int[] STATE_INITIALIZING_TTS = {R.attr.state_initializing_tts};
 
-    private float animationStage = 0;
-    private boolean animationSecondPhase = false;
-    private final WaitingAnimation animation = new WaitingAnimation();
+    private static final long WAITING_ANIMATION_DURATION = 1500;
+    private static final float WAITING_ARC_STROKE_DP = 4;
+
+    private WaitingArcDrawable waitingDrawable;
+
+    /**
+     * Drives the waiting arc on Android 3.0+, frames are timed by Choreographer on Android 4.1+
+     */
+    private WaitingAnimator waitingAnimator;
+
+    /**
+     * Fallback for the older versions
+     */
+    private WaitingAnimation waitingAnimation;
 
     private AIService aiService;
+
+    private final RecognitionStateMachine.StateListener stateListener = new RecognitionStateMachine.StateListener() {
+        @Override
+        public void onStateChanged(final RecognitionStateMachine.State fromState, final RecognitionStateMachine.State toState) {
+            switch (toState) {
+                case idle:
+                case cancelled:
+                    postChangeState(MicState.normal);
+                    break;
+                case listening:
+                    postChangeState(MicState.listening);
+                    break;
+                case processing:
+                    postChangeState(MicState.busy);
+                    break;
+                default:
+                    // button stays in the current state until recognizer is ready
+                    break;
+            }
+        }
+    };
+
+    private final PartialResultsListener servicePartialResultsListener = new PartialResultsListener() {
+        @Override
+        public void onPartialResults(final List<String> partialResults) {
+            if (partialResultsListener != null) {
+                partialResultsListener.onPartialResults(partialResults);
+            }
+        }
+    };
+
+    /**
+     * Service released when the button was detached from the window, connected again on attach
+     */
+    private AIService detachedService;
+
     private AIButtonListener resultsListener;
     private PartialResultsListener partialResultsListener;
 
     @Override
     public void onResult(final AIResponse result) {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                changeState(MicState.normal);
-            }
-        });
-
         if (resultsListener != null) {
             resultsListener.onResult(result);
         }
@@ -81,13 +126,6 @@ public class AIButton extends SoundLevelButton implements AIListener {
 
     @Override
     public void onError(final AIError error) {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                changeState(MicState.normal);
-            }
-        });
-
         if (resultsListener != null) {
             resultsListener.onError(error);
         }
@@ -100,23 +138,10 @@ public class AIButton extends SoundLevelButton implements AIListener {
 
     @Override
     public void onListeningStarted() {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                changeState(MicState.listening);
-            }
-        });
     }
 
     @Override
     public void onListeningCanceled() {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                changeState(MicState.normal);
-            }
-        });
-
         if (resultsListener != null) {
             resultsListener.onCancelled();
         }
@@ -124,12 +149,6 @@ public class AIButton extends SoundLevelButton implements AIListener {
 
     @Override
     public void onListeningFinished() {
-        post(new Runnable() {
-            @Override
-            public void run() {
-                changeState(MicState.busy);
-            }
-        });
     }
 
     public enum MicState {
@@ -171,6 +190,16 @@ public class AIButton extends SoundLevelButton implements AIListener {
     }
 
     private void init(final Context context, final AttributeSet attrs) {
+        waitingDrawable = new WaitingArcDrawable(ContextCompat.getColor(context, R.color.icon_orange_color),
+                dpToPixels(context, WAITING_ARC_STROKE_DP));
+        waitingDrawable.setCallback(this);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            waitingAnimator = new WaitingAnimator();
+        } else {
+            waitingAnimation = new WaitingAnimation();
+        }
+
         if (attrs != null) {
             final TypedArray viewAttrs = context.obtainStyledAttributes(attrs, R.styleable.SoundLevelButton);
             try {
@@ -182,18 +211,49 @@ public class AIButton extends SoundLevelButton implements AIListener {
     }
 
     public void initialize(final AIConfiguration config) {
-        aiService = AIService.getService(getContext(), config);
+        initialize(AIService.getService(getContext(), config));
+    }
+
+    /**
+     * Uses already created service, e.g. one taken from {@link ai.api.android.AIServicePool}.
+     * Service listener is replaced by the button.
+     */
+    public void initialize(final AIService service) {
+        release();
+        detachedService = null;
+        aiService = service;
         aiService.setListener(this);
+        aiService.addStateListener(stateListener);
 
         if (aiService instanceof GoogleRecognitionServiceImpl) {
-            ((GoogleRecognitionServiceImpl) aiService).setPartialResultsListener(new PartialResultsListener() {
-                @Override
-                public void onPartialResults(final List<String> partialResults) {
-                    if (partialResultsListener != null) {
-                        partialResultsListener.onPartialResults(partialResults);
-                    }
-                }
-            });
+            ((GoogleRecognitionServiceImpl) aiService).setPartialResultsListener(servicePartialResultsListener);
+        }
+    }
+
+    /**
+     * Cancels current listening session and disconnects the button from the service, so a service which
+     * outlives the screen, e.g. one taken from {@link ai.api.android.AIServicePool}, doesn't keep the button.
+     * Called when the button is detached from the window, the button is connected to the same service again
+     * when it is attached back. Call {@link #initialize(AIService)} to use the button after this call.
+     */
+    public void release() {
+        // cancel events may release the button again, e.g. by dismissing its dialog
+        cancelListening();
+
+        final AIService service = aiService;
+        if (service == null) {
+            return;
+        }
+        aiService = null;
+
+        service.removeStateListener(stateListener);
+        service.removeListener(this);
+        if (service instanceof GoogleRecognitionServiceImpl) {
+            final GoogleRecognitionServiceImpl googleService = (GoogleRecognitionServiceImpl) service;
+            // the service may be already taken by another button
+            if (googleService.getPartialResultsListener() == servicePartialResultsListener) {
+                googleService.setPartialResultsListener(null);
+            }
         }
     }
 
@@ -296,7 +356,10 @@ public class AIButton extends SoundLevelButton implements AIListener {
         }
     }
 
-    private void cancelListening() {
+    /**
+     * Cancels current listening session, service stays ready for the next one
+     */
+    public void cancelListening() {
         if (aiService != null) {
             if (currentState != MicState.normal) {
                 aiService.cancel();
@@ -306,6 +369,10 @@ public class AIButton extends SoundLevelButton implements AIListener {
     }
 
     protected void changeState(final MicState toState) {
+        // state is set first, so drawable state refreshed by setDrawSoundLevel already has the new color
+        final MicState fromState = currentState;
+        currentState = toState;
+
         switch (toState) {
             case normal:
                 stopProcessingAnimation();
@@ -329,8 +396,22 @@ public class AIButton extends SoundLevelButton implements AIListener {
                 break;
         }
 
-        currentState = toState;
-        refreshDrawableState();
+        if (fromState != toState) {
+            refreshDrawableState();
+        }
+    }
+
+    private void postChangeState(final MicState toState) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            changeState(toState);
+        } else {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    changeState(toState);
+                }
+            });
+        }
     }
 
     protected MicState getCurrentState() {
@@ -339,15 +420,22 @@ public class AIButton extends SoundLevelButton implements AIListener {
 
     private void startProcessingAnimation() {
         setDrawCenter(true);
-        animationSecondPhase = false;
-        startAnimation(animation);
+        waitingDrawable.reset();
+        if (waitingAnimator != null) {
+            waitingAnimator.start();
+        } else {
+            startAnimation(waitingAnimation);
+        }
     }
 
     private void stopProcessingAnimation() {
         setDrawCenter(false);
-        clearAnimation();
-        animationStage = 0;
-        animationSecondPhase = false;
+        if (waitingAnimator != null) {
+            waitingAnimator.cancel();
+        } else {
+            clearAnimation();
+        }
+        waitingDrawable.reset();
         postInvalidate();
     }
 
@@ -356,10 +444,42 @@ public class AIButton extends SoundLevelButton implements AIListener {
         return super.getDebugState() + "\nst:" + currentState;
     }
 
+    /**
+     * Invalidates the arc bounds only, not the whole button
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private class WaitingAnimator implements ValueAnimator.AnimatorUpdateListener {
+
+        private final ValueAnimator animator = ValueAnimator.ofFloat(0, 1);
+
+        private WaitingAnimator() {
+            animator.setDuration(WAITING_ANIMATION_DURATION);
+            animator.setRepeatCount(ValueAnimator.INFINITE);
+            animator.setRepeatMode(ValueAnimator.RESTART);
+            animator.setInterpolator(new LinearInterpolator());
+            animator.addUpdateListener(this);
+        }
+
+        private void start() {
+            animator.start();
+        }
+
+        private void cancel() {
+            animator.cancel();
+        }
+
+        @Override
+        public void onAnimationUpdate(final ValueAnimator animation) {
+            // fraction is used instead of the boxed animated value
+            waitingDrawable.setStage(animation.getAnimatedFraction());
+            waitingDrawable.invalidateSelf();
+        }
+    }
+
     private class WaitingAnimation extends Animation {
         protected WaitingAnimation() {
             super();
-            setDuration(1500);
+            setDuration(WAITING_ANIMATION_DURATION);
             this.setRepeatCount(INFINITE);
             this.setRepeatMode(RESTART);
             this.setInterpolator(new LinearInterpolator());
@@ -367,36 +487,47 @@ public class AIButton extends SoundLevelButton implements AIListener {
 
         @Override
         protected void applyTransformation(final float interpolatedTime, final Transformation t) {
-            animationStage = interpolatedTime;
-            invalidate();
+            waitingDrawable.setStage(interpolatedTime);
+            waitingDrawable.invalidateSelf();
         }
     }
 
+    @Override
+    protected void onSizeChanged(final int w, final int h, final int oldw, final int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        final float center = w / 2f;
+        final float minRadius = getMinRadius() > 0 ? getMinRadius() : center * SoundLevelCircleDrawable.DEFAULT_MIN_RADIUS_RATIO;
+        waitingDrawable.setCircle(center, center, minRadius * 1.25f);
+    }
+
+    @Override
+    protected boolean verifyDrawable(final Drawable who) {
+        return who == waitingDrawable || super.verifyDrawable(who);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (aiService == null && detachedService != null) {
+            initialize(detachedService);
+        }
+        detachedService = null;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (waitingAnimator != null) {
+            waitingAnimator.cancel();
+        }
+        detachedService = aiService;
+        release();
+        super.onDetachedFromWindow();
+    }
+
     @Override
     protected void onDraw(final Canvas canvas) {
         super.onDraw(canvas);
-        if (animationStage > 0 || animationSecondPhase) {
-            final float center = getWidth() / 2f;
-            final float radius = getMinRadius() * 1.25f;
-            final RectF size = new RectF(center - radius, center - radius, center + radius, center + radius);
-            final Paint paint = new Paint();
-            paint.setColor(getResources().getColor(R.color.icon_orange_color));
-            paint.setStyle(Paint.Style.STROKE);
-            paint.setStrokeWidth(dpToPixels(this.getContext(), 4));
-            paint.setStrokeCap(Paint.Cap.ROUND);
-            paint.setAntiAlias(true);
-            final float startingAngle;
-            final float sweepAngle;
-            if (animationStage < 0.5 && !animationSecondPhase) {
-                startingAngle = 0;
-                sweepAngle = animationStage * 360;
-            } else {
-                startingAngle = (animationStage - 0.5f) * 360;
-                sweepAngle = 180;
-                animationSecondPhase = true;
-            }
-            canvas.drawArc(size, 270f + startingAngle, sweepAngle, false, paint);
-        }
+        waitingDrawable.draw(canvas);
     }
 
     private static int dpToPixels(final Context context, final float dp) {
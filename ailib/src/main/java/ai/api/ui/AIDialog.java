@@ -18,29 +18,42 @@ package ai.api.ui;
 
 import android.app.Dialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.MessageQueue;
 import android.text.TextUtils;
+import android.view.View;
 import android.view.Window;
 import android.widget.TextView;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import ai.api.android.AIConfiguration;
 import ai.api.android.AIService;
 import ai.api.AIServiceException;
 import ai.api.PartialResultsListener;
 import ai.api.R;
+import ai.api.android.RecognitionStateMachine;
+import ai.api.metrics.Histogram;
+import ai.api.metrics.MetricsRegistry;
 import ai.api.model.AIError;
 import ai.api.model.AIRequest;
 import ai.api.model.AIResponse;
 
+/**
+ * Dialog with AIButton. Layout is inflated and the service is created once, so the same instance
+ * can be kept and shown many times with {@link #showAndListen()}. Use {@link #prepare(Context, AIConfiguration, OnPreparedListener)}
+ * to create the dialog when the main thread is idle. The dialog is connected to the service only while it is shown.
+ */
 public class AIDialog {
 
     private static final String TAG = AIDialog.class.getName();
 
+    private static final Histogram tapToListening = MetricsRegistry.getDefault().histogram(MetricsRegistry.DIALOG_TAP_TO_LISTENING);
+
     private final Context context;
-    private final AIConfiguration config;
 
     private AIDialogListener resultsListener;
     private final Dialog dialog;
@@ -49,31 +62,154 @@ public class AIDialog {
 
     private final Handler handler;
 
+    private AIService aiService;
+
+    /**
+     * True while the button and the latency listener are connected to the service
+     */
+    private boolean connected;
+
     public interface AIDialogListener {
         void onResult(final AIResponse result);
         void onError(final AIError error);
         void onCancelled();
     }
 
+    public interface OnPreparedListener {
+        void onPrepared(AIDialog dialog);
+    }
+
+    /**
+     * System.nanoTime() of the latest showAndListen() call, 0 when it is already measured
+     */
+    private volatile long showRequestNanos;
+    private volatile long lastTapToListeningMillis = -1;
+
+    private final RecognitionStateMachine.StateListener stateListener = new RecognitionStateMachine.StateListener() {
+        @Override
+        public void onStateChanged(final RecognitionStateMachine.State fromState, final RecognitionStateMachine.State toState) {
+            if (toState == RecognitionStateMachine.State.listening) {
+                final long requestNanos = showRequestNanos;
+                if (requestNanos != 0) {
+                    showRequestNanos = 0;
+                    lastTapToListeningMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestNanos);
+                    tapToListening.record(lastTapToListeningMillis);
+                }
+            }
+        }
+    };
+
     public AIDialog(final Context context, final AIConfiguration config) {
         this(context, config, R.layout.aidialog);
     }
 
     public AIDialog(final Context context, final AIConfiguration config, final int customLayout) {
+        this(context, AIService.getService(context, config), customLayout);
+    }
+
+    /**
+     * @param service already created service, e.g. one taken from {@link ai.api.android.AIServicePool}
+     */
+    public AIDialog(final Context context, final AIService service, final int customLayout) {
         this.context = context;
-        this.config = config;
-        dialog = new Dialog(context);
+        dialog = createDialog(context);
+        dialog.setContentView(customLayout);
         handler = new Handler(Looper.getMainLooper());
 
+        partialResultsTextView = (TextView) dialog.findViewById(R.id.partialResultsTextView);
+        aiButton = (AIButton) dialog.findViewById(R.id.micButton);
+        initialize(service);
+    }
+
+    /**
+     * @param contentView already inflated view with {@code R.id.micButton} AIButton
+     */
+    public AIDialog(final Context context, final AIService service, final View contentView) {
+        this.context = context;
+        dialog = createDialog(context);
+        dialog.setContentView(contentView);
+        handler = new Handler(Looper.getMainLooper());
+
+        partialResultsTextView = (TextView) contentView.findViewById(R.id.partialResultsTextView);
+        aiButton = (AIButton) contentView.findViewById(R.id.micButton);
+        initialize(service);
+    }
+
+    /**
+     * Creates the dialog on the main thread when it has no other work, so inflation and service
+     * creation don't delay the first frames of the screen
+     * @param listener called on the main thread
+     */
+    public static void prepare(final Context context, final AIConfiguration config, final OnPreparedListener listener) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        listener.onPrepared(new AIDialog(context, config));
+                        return false;
+                    }
+                });
+            }
+        });
+    }
+
+    private static Dialog createDialog(final Context context) {
+        final Dialog dialog = new Dialog(context);
         dialog.setCanceledOnTouchOutside(true);
         dialog.requestWindowFeature(Window.FEATURE_NO_TITLE);
-        dialog.setContentView(customLayout);
-
-        partialResultsTextView = (TextView) dialog.findViewById(R.id.partialResultsTextView);
+        return dialog;
+    }
 
-        aiButton = (AIButton) dialog.findViewById(R.id.micButton);
-        aiButton.initialize(config);
+    private void initialize(final AIService service) {
+        aiService = service;
+        connect();
         setAIButtonCallback(aiButton);
+
+        dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(final DialogInterface dialogInterface) {
+                // dismissed by back or outside touch, service is kept for the next showAndListen()
+                showRequestNanos = 0;
+                aiButton.cancelListening();
+            }
+        });
+
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(final DialogInterface dialogInterface) {
+                // the dialog may be already shown again by showAndListen()
+                if (!dialog.isShowing()) {
+                    disconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Connects the button and the latency listener to the service
+     */
+    private void connect() {
+        if (!connected) {
+            connected = true;
+            aiService.addStateListener(stateListener);
+            if (aiButton.getAIService() != aiService) {
+                aiButton.initialize(aiService);
+            }
+        }
+    }
+
+    /**
+     * Disconnects the dialog from the service while it is hidden, so the service which outlives
+     * the dialog doesn't keep the dialog and its context
+     */
+    private void disconnect() {
+        if (connected) {
+            connected = false;
+            aiService.removeStateListener(stateListener);
+            aiButton.release();
+        }
     }
 
     public void setResultsListener(final AIDialogListener resultsListener) {
@@ -84,19 +220,27 @@ public class AIDialog {
         return dialog;
     }
 
+    /**
+     * Shows the dialog and starts listening. Can be called again after the dialog was closed,
+     * layout and service are reused.
+     */
     public void showAndListen() {
+        showRequestNanos = System.nanoTime();
         handler.post(new Runnable() {
             @Override
             public void run() {
                 resetControls();
-                dialog.show();
+                connect();
+                if (!dialog.isShowing()) {
+                    dialog.show();
+                }
                 startListening();
             }
         });
     }
 
     public AIResponse textRequest(final AIRequest request) throws AIServiceException {
-        return aiButton.textRequest(request);
+        return aiService.textRequest(request);
     }
 
     public AIResponse textRequest(final String request) throws AIServiceException {
@@ -173,12 +317,20 @@ public class AIDialog {
         });
     }
 
+    /**
+     * @return time from the latest measured {@link #showAndListen()} call to the listening state in milliseconds,
+     * -1 if listening was not started yet
+     */
+    public long getLastTapToListeningMillis() {
+        return lastTapToListeningMillis;
+    }
+
     /**
      * Get AIService object for making different data requests
      * @return
      */
     public AIService getAIService() {
-        return aiButton.getAIService();
+        return aiService;
     }
 
     /**
@@ -189,8 +341,9 @@ public class AIDialog {
      */
     public void pause() {
         if (aiButton != null) {
-            aiButton.pause();
+            aiButton.cancelListening();
         }
+        aiService.pause();
     }
 
     /**
@@ -200,8 +353,17 @@ public class AIDialog {
      * resume() call should be added to the onResume() method of the Activity.
      */
     public void resume() {
-        if (aiButton != null) {
-            aiButton.resume();
-        }
+        aiService.resume();
+    }
+
+    /**
+     * Closes the dialog and disconnects it from the recognition service. Call it when the dialog is not needed
+     * anymore and its service is kept longer, e.g. when the service is taken from {@link ai.api.android.AIServicePool}.
+     * The dialog is disconnected automatically when it is dismissed, this call is needed only for the dialog
+     * which is still shown or was never shown.
+     */
+    public void release() {
+        dialog.dismiss();
+        disconnect();
     }
 }
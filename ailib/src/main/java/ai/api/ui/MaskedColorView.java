@@ -16,25 +16,57 @@
 
 package ai.api.ui;
 
+import android.animation.ValueAnimator;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorFilter;
 import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
 import android.os.Build;
 import android.util.AttributeSet;
+import android.util.SparseArray;
 import android.widget.ImageView;
 
 import ai.api.R;
 
 /**
  * ImageView
- * src used as a mask, and MaskedColorView_mainColor as a color or state color list
+ * src used as a mask, and MaskedColorView_mainColor as a color or state color list.
+ * Color filters are cached by color, state change which doesn't change the color doesn't redraw the view.
  */
 public class MaskedColorView extends ImageView {
+
+	/**
+	 * Number of intermediate colors of the animated transition, their filters are cached too
+	 */
+	private static final int TRANSITION_STEPS = 8;
+	private static final int MAX_CACHED_FILTERS = 64;
+
 	private ColorStateList colorStateList = null;
 
+	// fields below have no initializers, drawableStateChanged() is called by the super constructor
+
+	/**
+	 * Filters by color, created on the first use
+	 */
+	private SparseArray<ColorFilter> colorFilters;
+	private boolean colorApplied;
+	private int appliedColor;
+	private int targetColor;
+	private long colorTransitionDuration;
+	private ColorTransition colorTransition;
+
+	/**
+	 * Duration of the latest draw and interval between the latest draws, shown by {@link PerformanceHudView}
+	 */
+	private long lastDrawNanos;
+	private long drawDurationNanos;
+	private long frameIntervalNanos;
+
 	public MaskedColorView(final Context context) {
 		super(context, null);
 	}
@@ -53,14 +85,101 @@ public class MaskedColorView extends ImageView {
 	@Override
 	protected void drawableStateChanged() {
 		super.drawableStateChanged();
-		setColorFilter(getCurrentColor(getDrawableState()), PorterDuff.Mode.SRC_ATOP);
+		updateColor(getCurrentColor(getDrawableState()));
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
             jumpDrawablesToCurrentState();
         }
 	}
 
+	@Override
+	public void draw(final Canvas canvas) {
+		final long start = System.nanoTime();
+		super.draw(canvas);
+		drawDurationNanos = System.nanoTime() - start;
+		if (lastDrawNanos != 0) {
+			frameIntervalNanos = start - lastDrawNanos;
+		}
+		lastDrawNanos = start;
+	}
+
+	long getLastDrawNanos() {
+		return lastDrawNanos;
+	}
+
+	long getDrawDurationNanos() {
+		return drawDurationNanos;
+	}
+
+	long getFrameIntervalNanos() {
+		return frameIntervalNanos;
+	}
+
 	public void setColorStateList(final ColorStateList colorStateList) {
 		this.colorStateList = colorStateList;
+		updateColor(getCurrentColor(getDrawableState()));
+	}
+
+	/**
+	 * Enables animated color change between states, works on Android 3.0+
+	 * @param durationMillis transition duration, 0 to change color immediately
+	 */
+	public void setColorTransitionDuration(final long durationMillis) {
+		colorTransitionDuration = durationMillis;
+	}
+
+	private void updateColor(final int color) {
+		if (colorApplied && color == targetColor) {
+			return;
+		}
+		targetColor = color;
+
+		if (colorApplied && colorTransitionDuration > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			if (colorTransition == null) {
+				colorTransition = new ColorTransition();
+			}
+			colorTransition.start(appliedColor, color, colorTransitionDuration);
+		} else {
+			if (colorTransition != null) {
+				colorTransition.cancel();
+			}
+			applyColor(color);
+		}
+		colorApplied = true;
+	}
+
+	/**
+	 * ImageView redraws only if the filter instance is changed
+	 */
+	private void applyColor(final int color) {
+		appliedColor = color;
+		setColorFilter(getColorFilter(color));
+	}
+
+	private ColorFilter getColorFilter(final int color) {
+		if (colorFilters == null) {
+			colorFilters = new SparseArray<>();
+		}
+		ColorFilter filter = colorFilters.get(color);
+		if (filter == null) {
+			if (colorFilters.size() >= MAX_CACHED_FILTERS) {
+				colorFilters.clear();
+			}
+			filter = new PorterDuffColorFilter(color, PorterDuff.Mode.SRC_ATOP);
+			colorFilters.put(color, filter);
+		}
+		return filter;
+	}
+
+	private static int blendColors(final int from, final int to, final float fraction) {
+		return Color.argb(
+				blend(Color.alpha(from), Color.alpha(to), fraction),
+				blend(Color.red(from), Color.red(to), fraction),
+				blend(Color.green(from), Color.green(to), fraction),
+				blend(Color.blue(from), Color.blue(to), fraction));
+	}
+
+	private static int blend(final int from, final int to, final float fraction) {
+		return Math.round(from + (to - from) * fraction);
 	}
 
 	private int getCurrentColor(final int[] stateSet) {
@@ -77,12 +196,51 @@ public class MaskedColorView extends ImageView {
 				if (csl != null) {
                     colorStateList = csl;
                 }
+				colorTransitionDuration = a.getInt(R.styleable.MaskedColorView_colorTransitionDuration, 0);
 			} finally {
 				a.recycle();
 			}
 		}
 	}
 
+	/**
+	 * Steps through the intermediate colors, so the same transitions reuse the cached filters
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private class ColorTransition implements ValueAnimator.AnimatorUpdateListener {
+
+		private final ValueAnimator animator = ValueAnimator.ofFloat(0, 1);
+		private int fromColor;
+		private int toColor;
+		private int step;
+
+		private ColorTransition() {
+			animator.addUpdateListener(this);
+		}
+
+		private void start(final int fromColor, final int toColor, final long duration) {
+			animator.cancel();
+			this.fromColor = fromColor;
+			this.toColor = toColor;
+			step = 0;
+			animator.setDuration(duration);
+			animator.start();
+		}
+
+		private void cancel() {
+			animator.cancel();
+		}
+
+		@Override
+		public void onAnimationUpdate(final ValueAnimator animation) {
+			final int newStep = Math.round(animation.getAnimatedFraction() * TRANSITION_STEPS);
+			if (newStep != step) {
+				step = newStep;
+				applyColor(step >= TRANSITION_STEPS ? toColor : blendColors(fromColor, toColor, (float) step / TRANSITION_STEPS));
+			}
+		}
+	}
+
 	protected String getDebugState() {
 		return "====\ncsl is " + (colorStateList != null ? "NOT" : "") + " null";
 	}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.ui;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.View;
+
+import java.util.concurrent.TimeUnit;
+
+import ai.api.android.AIService;
+import ai.api.android.RecognitionStateMachine;
+import ai.api.util.Timings;
+
+/**
+ * Debug overlay with live performance numbers of the microphone view and the recognition service:
+ * debug state of the view, recognition state, end of speech delay, request round trip time,
+ * frame time of the mic animation, audio level rate and GC count of the current session.
+ * <p>
+ * Text is refreshed at a fixed low rate, drawing doesn't allocate. The view is not meant for release builds.
+ */
+public class PerformanceHudView extends View {
+
+    private static final String TAG = PerformanceHudView.class.getName();
+
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 250;
+
+    private static final int MAX_TEXT_LENGTH = 1024;
+    private static final int DEFAULT_LINES_COUNT = 10;
+    private static final int DEFAULT_LINE_LENGTH = 24;
+    private static final float TEXT_SIZE_SP = 11;
+    private static final int BACKGROUND_COLOR = 0xA0000000;
+
+    /**
+     * Frame interval is shown only if the view was drawn recently, otherwise the animation is idle
+     */
+    private static final long ACTIVE_DRAW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint backgroundPaint = new Paint();
+
+    private final StringBuilder text = new StringBuilder(MAX_TEXT_LENGTH);
+    private final char[] chars = new char[MAX_TEXT_LENGTH];
+    private int charsLength;
+
+    private long refreshIntervalMillis = DEFAULT_REFRESH_INTERVAL_MILLIS;
+    private boolean refreshing;
+
+    private MaskedColorView target;
+    private AIService service;
+
+    private long lastRefreshTime;
+    private long lastSoundLevelCount;
+    private long soundLevelRate;
+
+    /**
+     * GC count at the start of the current session, -1 if unknown
+     */
+    private volatile int sessionGcBaseline = -1;
+
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            if (refreshing) {
+                postDelayed(this, refreshIntervalMillis);
+            }
+        }
+    };
+
+    private final RecognitionStateMachine.StateListener stateListener = new RecognitionStateMachine.StateListener() {
+        @Override
+        public void onStateChanged(final RecognitionStateMachine.State fromState, final RecognitionStateMachine.State toState) {
+            if (toState == RecognitionStateMachine.State.starting) {
+                sessionGcBaseline = getGcCount();
+            }
+        }
+    };
+
+    public PerformanceHudView(final Context context) {
+        super(context);
+        init();
+    }
+
+    public PerformanceHudView(final Context context, final AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public PerformanceHudView(final Context context, final AttributeSet attrs, final int defStyle) {
+        super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTypeface(Typeface.MONOSPACE);
+        textPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP,
+                getResources().getDisplayMetrics()));
+        backgroundPaint.setColor(BACKGROUND_COLOR);
+    }
+
+    /**
+     * Shows numbers of the mic view. Service of the initialized {@link AIButton} is attached automatically.
+     * @param target view to watch, null to detach
+     */
+    public void setTarget(final MaskedColorView target) {
+        this.target = target;
+        if (target instanceof SoundLevelButton) {
+            lastSoundLevelCount = ((SoundLevelButton) target).getSoundLevelCount();
+        }
+        if (target instanceof AIButton && ((AIButton) target).getAIService() != null) {
+            setService(((AIButton) target).getAIService());
+        }
+    }
+
+    /**
+     * Shows state and timings of the service
+     * @param service service to watch, null to detach
+     */
+    public void setService(final AIService service) {
+        if (this.service == service) {
+            return;
+        }
+        if (this.service != null) {
+            this.service.removeStateListener(stateListener);
+        }
+        this.service = service;
+        sessionGcBaseline = -1;
+        if (service != null && refreshing) {
+            service.addStateListener(stateListener);
+        }
+    }
+
+    public void setRefreshInterval(final long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        refreshing = true;
+        lastRefreshTime = SystemClock.uptimeMillis();
+        post(refreshRunnable);
+
+        if (service != null) {
+            service.addStateListener(stateListener);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        refreshing = false;
+        removeCallbacks(refreshRunnable);
+
+        // service may live longer than the view
+        if (service != null) {
+            service.removeStateListener(stateListener);
+        }
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onMeasure(final int widthMeasureSpec, final int heightMeasureSpec) {
+        final int lineHeight = (int) Math.ceil(textPaint.getFontSpacing());
+        final int desiredWidth = (int) Math.ceil(textPaint.measureText("0") * DEFAULT_LINE_LENGTH)
+                + getPaddingLeft() + getPaddingRight();
+        final int desiredHeight = lineHeight * DEFAULT_LINES_COUNT + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(resolveSize(desiredWidth, widthMeasureSpec), resolveSize(desiredHeight, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(final Canvas canvas) {
+        canvas.drawRect(0, 0, getWidth(), getHeight(), backgroundPaint);
+
+        final float x = getPaddingLeft();
+        final float lineHeight = textPaint.getFontSpacing();
+        float y = getPaddingTop() - textPaint.ascent();
+
+        int lineStart = 0;
+        for (int i = 0; i <= charsLength; i++) {
+            if (i == charsLength || chars[i] == '\n') {
+                if (i > lineStart) {
+                    canvas.drawText(chars, lineStart, i - lineStart, x, y, textPaint);
+                }
+                y += lineHeight;
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    private void refresh() {
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = now - lastRefreshTime;
+        lastRefreshTime = now;
+
+        text.setLength(0);
+
+        final MaskedColorView currentTarget = target;
+        if (currentTarget != null) {
+            text.append(currentTarget.getDebugState()).append('\n');
+        }
+
+        final AIService currentService = service;
+        if (currentService != null) {
+            text.append("state: ").append(currentService.getState().name()).append('\n');
+
+            final Timings timings = currentService.getTimings();
+            if (timings != null) {
+                final int resultStage = timings.isMarked(Timings.FINAL_TRANSCRIPT) ? Timings.FINAL_TRANSCRIPT : Timings.RESPONSE_RECEIVED;
+                appendMillis("eos delay: ", timings.getMillis(Timings.SPEECH_END, resultStage));
+                appendMillis("rtt: ", timings.getMillis(Timings.REQUEST_SENT, Timings.RESPONSE_RECEIVED));
+            }
+        }
+
+        if (currentTarget != null) {
+            if (System.nanoTime() - currentTarget.getLastDrawNanos() < ACTIVE_DRAW_NANOS) {
+                text.append("frame: ");
+                appendNanos(currentTarget.getFrameIntervalNanos());
+                text.append(" draw: ");
+                appendNanos(currentTarget.getDrawDurationNanos());
+                text.append('\n');
+            } else {
+                text.append("frame: idle\n");
+            }
+
+            if (currentTarget instanceof SoundLevelButton) {
+                final long soundLevelCount = ((SoundLevelButton) currentTarget).getSoundLevelCount();
+                if (elapsed > 0) {
+                    soundLevelRate = (soundLevelCount - lastSoundLevelCount) * 1000 / elapsed;
+                }
+                lastSoundLevelCount = soundLevelCount;
+                text.append("levels: ").append(soundLevelRate).append("/s\n");
+            }
+        }
+
+        final int baseline = sessionGcBaseline;
+        if (baseline >= 0) {
+            final int gcCount = getGcCount();
+            if (gcCount >= 0) {
+                text.append("gc: ").append(gcCount - baseline).append('\n');
+            }
+        }
+
+        charsLength = Math.min(text.length(), MAX_TEXT_LENGTH);
+        text.getChars(0, charsLength, chars, 0);
+        invalidate();
+    }
+
+    private void appendMillis(final String label, final long millis) {
+        text.append(label);
+        if (millis >= 0) {
+            text.append(millis).append("ms");
+        } else {
+            text.append('-');
+        }
+        text.append('\n');
+    }
+
+    /**
+     * Appends time in milliseconds with one decimal, without float formatting
+     */
+    private void appendNanos(final long nanos) {
+        final long tenths = nanos / 100000;
+        text.append(tenths / 10).append('.').append(tenths % 10).append("ms");
+    }
+
+    /**
+     * @return number of garbage collections since the process start, -1 if not available before Android 6.0
+     */
+    private static int getGcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        return getRuntimeGcCount();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int getRuntimeGcCount() {
+        final String value = Debug.getRuntimeStat("art.gc.gc-count");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            Log.w(TAG, "Unexpected GC count: " + value);
+            return -1;
+        }
+    }
+}
@@ -25,7 +25,10 @@ import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.view.View;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import ai.api.R;
+import ai.api.util.AudioLevelDispatcher;
 
 public class SoundLevelButton extends MaskedColorView {
 
@@ -36,6 +39,20 @@ public class SoundLevelButton extends MaskedColorView {
     private final SoundLevelCircleDrawable backgroundDrawable;
     protected boolean listening = false;
 
+    /**
+     * Number of levels passed to {@link #setSoundLevel(float)}, used to show the level rate
+     */
+    private final AtomicLong soundLevelCount = new AtomicLong();
+
+    private final AudioLevelDispatcher soundLevelDispatcher = new AudioLevelDispatcher(new AudioLevelDispatcher.Callback() {
+        @Override
+        public void onAudioLevel(final float level) {
+            if (backgroundDrawable.setSoundLevel(level)) {
+                invalidate(backgroundDrawable.getHaloDirtyRect());
+            }
+        }
+    }, AudioLevelDispatcher.INTERVAL_VSYNC);
+
     @SuppressWarnings("UnusedDeclaration")
     public SoundLevelButton(@NonNull final Context context) {
         super(context);
@@ -112,19 +129,29 @@ public class SoundLevelButton extends MaskedColorView {
     }
 
     public void setDrawSoundLevel(final boolean drawSoundLevel) {
+        final boolean changed = listening != drawSoundLevel;
         listening = drawSoundLevel;
         backgroundDrawable.setDrawSoundLevel(drawSoundLevel);
-        refreshDrawableState();
-        postInvalidate();
+        if (changed) {
+            refreshDrawableState();
+            postInvalidate();
+        }
     }
 
     protected void setDrawCenter(final boolean drawCenter) {
         this.backgroundDrawable.setDrawCenter(drawCenter);
     }
 
+    /**
+     * Can be called from any thread. View is redrawn at most once per display frame with the latest level.
+     */
     public void setSoundLevel(final float soundLevel) {
-        backgroundDrawable.setSoundLevel(soundLevel);
-        postInvalidate();
+        soundLevelCount.incrementAndGet();
+        soundLevelDispatcher.dispatch(soundLevel);
+    }
+
+    long getSoundLevelCount() {
+        return soundLevelCount.get();
     }
 
     @Override
@@ -32,6 +32,11 @@ public class SoundLevelCircleDrawable extends Drawable {
         private static final float MAX_VALUE = 10;
         private static final float INITIAL_VALUE = 2.5f;
 
+	/**
+	 * Min radius relative to the max one, used when min radius is not set
+	 */
+	static final float DEFAULT_MIN_RADIUS_RATIO = 65 / 112.5f;
+
 	private final float maxRadius;
 	private final float minRadius;
 	private final float circleCenterX;
@@ -44,9 +49,27 @@ public class SoundLevelCircleDrawable extends Drawable {
 	private final Paint paintIndicatorHalo;
 	private final Paint paintIndicatorCenter;
 	private float smoothedLevel = INITIAL_VALUE;
-	private final Rect bounds = new Rect();
 	private boolean drawCenter = false;
 
+	/**
+	 * Geometry for the current bounds, computed in {@link #onBoundsChange(Rect)}
+	 */
+	private float centerX;
+	private float centerY;
+	private float effectiveMinRadius;
+	private float soundMinRadius;
+	private float rangeRadius;
+
+	/**
+	 * Halo radius used by the latest draw
+	 */
+	private float haloRadius;
+
+	/**
+	 * Area covered by the previous and the current halo, see {@link #getHaloDirtyRect()}
+	 */
+	private final Rect haloDirtyRect = new Rect();
+
 	private static Paint newColorPaint(final int color) {
 		final Paint paint = new Paint();
 		paint.setStyle(Paint.Style.FILL);
@@ -82,31 +105,24 @@ public class SoundLevelCircleDrawable extends Drawable {
 	}
 
 	@SuppressWarnings("MagicNumber")
+	@Override
+	protected void onBoundsChange(final Rect bounds) {
+		super.onBoundsChange(bounds);
+		final float maxRadius = this.maxRadius < 0 ? bounds.width() / 2f : this.maxRadius;
+		effectiveMinRadius = this.minRadius < 0 ? maxRadius * DEFAULT_MIN_RADIUS_RATIO : this.minRadius;
+		soundMinRadius = effectiveMinRadius * 0.8f; //to hide halo on silence
+		rangeRadius = maxRadius - soundMinRadius;
+		centerX = this.circleCenterX < 0 ? bounds.left + bounds.width() / 2f : this.circleCenterX;
+		centerY = this.circleCenterY < 0 ? bounds.top + bounds.height() / 2f : this.circleCenterY;
+		haloRadius = calculateHaloRadius();
+	}
+
 	@Override
 	public void draw(final Canvas canvas) {
-		if (drawSoundLevel || drawCenter) {
-			canvas.save();
-			try {
-				if (this.maxRadius < 0 || this.circleCenterX < 0 || this.circleCenterY < 0)
-					canvas.getClipBounds(bounds);
-
-				canvas.drawColor(Color.TRANSPARENT);
-				final float levelInFraction = (smoothedLevel - minMicLevel) / (maxMicLevel - minMicLevel);
-				final float maxRadius = this.maxRadius < 0 ? bounds.width() / 2f : this.maxRadius;
-				final float minRadius = this.minRadius < 0 ? maxRadius * (65 / 112.5f) : this.minRadius;
-				final float soundMinRadius = minRadius * 0.8f; //to hide halo on silence
-				final float rangeRadius = maxRadius - soundMinRadius;
-				final float soundRadius = soundMinRadius + rangeRadius * levelInFraction;
-				final float x = this.circleCenterX < 0 ? bounds.width() / 2f : this.circleCenterX;
-				final float y = this.circleCenterY < 0 ? bounds.height() / 2f : this.circleCenterY;
-				if (drawSoundLevel)
-					canvas.drawCircle(x, y, soundRadius, paintIndicatorHalo);
-				if (drawCenter || drawSoundLevel)
-					canvas.drawCircle(x, y, minRadius, paintIndicatorCenter);
-			} finally {
-				canvas.restore();
-			}
-		}
+		if (drawSoundLevel)
+			canvas.drawCircle(centerX, centerY, haloRadius, paintIndicatorHalo);
+		if (drawCenter || drawSoundLevel)
+			canvas.drawCircle(centerX, centerY, effectiveMinRadius, paintIndicatorCenter);
 	}
 
 	@Override
@@ -135,6 +151,7 @@ public class SoundLevelCircleDrawable extends Drawable {
 			    minMicLevel = MIN_VALUE;
 			    maxMicLevel = MAX_VALUE;
 			    smoothedLevel = INITIAL_VALUE;
+			    haloRadius = calculateHaloRadius();
 			}
 			return true;
 		} else
@@ -145,7 +162,10 @@ public class SoundLevelCircleDrawable extends Drawable {
 		this.drawCenter = drawCenter;
 	}
 
-	public void setSoundLevel(final float soundLevel) {
+	/**
+	 * @return true if the halo moved by a pixel or more and should be redrawn, see {@link #getHaloDirtyRect()}
+	 */
+	public boolean setSoundLevel(final float soundLevel) {
 		final float positiveSoundLevel = Math.abs(soundLevel);
 
 		if (positiveSoundLevel < minMicLevel) {
@@ -164,6 +184,30 @@ public class SoundLevelCircleDrawable extends Drawable {
 		} else if (smoothedLevel < minMicLevel) {
 			smoothedLevel = minMicLevel;
 		}
+
+		final float newHaloRadius = calculateHaloRadius();
+		if (!drawSoundLevel || Math.abs(newHaloRadius - haloRadius) < 1) {
+			// sub-pixel change is not visible
+			return false;
+		}
+
+		final float dirtyRadius = Math.max(newHaloRadius, haloRadius) + 1;
+		haloDirtyRect.set((int) Math.floor(centerX - dirtyRadius), (int) Math.floor(centerY - dirtyRadius),
+				(int) Math.ceil(centerX + dirtyRadius), (int) Math.ceil(centerY + dirtyRadius));
+		haloRadius = newHaloRadius;
+		return true;
+	}
+
+	/**
+	 * @return area to redraw after {@link #setSoundLevel(float)} returned true. The rect is reused, don't keep it.
+	 */
+	public Rect getHaloDirtyRect() {
+		return haloDirtyRect;
+	}
+
+	private float calculateHaloRadius() {
+		final float levelInFraction = (smoothedLevel - minMicLevel) / (maxMicLevel - minMicLevel);
+		return soundMinRadius + rangeRadius * levelInFraction;
 	}
 
 	public float getMinRadius() {
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.ui;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Arc of the waiting animation. The arc grows to a half circle during the first half of the first loop
+ * and then rotates. All objects are created once, so animation frames don't allocate.
+ * Bounds of the drawable include the stroke, so {@link #invalidateSelf()} after the stage change
+ * redraws only the arc area.
+ */
+public class WaitingArcDrawable extends Drawable {
+
+    private static final float TOP_ANGLE = 270f;
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF arcRect = new RectF();
+
+    /**
+     * Distance from the bounds to the arc center line
+     */
+    private final float inset;
+
+    private float startAngle;
+    private float sweepAngle;
+    private boolean secondPhase;
+
+    public WaitingArcDrawable(final int color, final float strokeWidth) {
+        paint.setColor(color);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(strokeWidth);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        // one more pixel for antialiasing
+        inset = strokeWidth / 2 + 1;
+    }
+
+    /**
+     * Places the arc on the circle, bounds are extended by the stroke
+     */
+    public void setCircle(final float centerX, final float centerY, final float radius) {
+        setBounds((int) Math.floor(centerX - radius - inset),
+                (int) Math.floor(centerY - radius - inset),
+                (int) Math.ceil(centerX + radius + inset),
+                (int) Math.ceil(centerY + radius + inset));
+    }
+
+    /**
+     * Doesn't invalidate the drawable, caller invalidates it when the frame is ready
+     * @param stage position in the animation loop, from 0 to 1
+     */
+    public void setStage(final float stage) {
+        if (stage < 0.5f && !secondPhase) {
+            startAngle = 0;
+            sweepAngle = stage * 360;
+        } else {
+            startAngle = (stage - 0.5f) * 360;
+            sweepAngle = 180;
+            secondPhase = true;
+        }
+    }
+
+    /**
+     * Hides the arc, the next animation starts from the growing phase
+     */
+    public void reset() {
+        startAngle = 0;
+        sweepAngle = 0;
+        secondPhase = false;
+        invalidateSelf();
+    }
+
+    @Override
+    protected void onBoundsChange(final Rect bounds) {
+        super.onBoundsChange(bounds);
+        arcRect.set(bounds.left + inset, bounds.top + inset, bounds.right - inset, bounds.bottom - inset);
+    }
+
+    @Override
+    public void draw(final Canvas canvas) {
+        if (sweepAngle > 0) {
+            canvas.drawArc(arcRect, TOP_ANGLE + startAngle, sweepAngle, false, paint);
+        }
+    }
+
+    @Override
+    public void setAlpha(final int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(final ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.ui;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Surface;
+import android.view.TextureView;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import ai.api.AudioFrameListener;
+
+/**
+ * Scrolling audio envelope drawn on its own thread, an alternative to {@link SoundLevelButton} for full screen voice UI.
+ * Feed it either with captured PCM, see {@link ai.api.android.AIService#setAudioFrameListener(AudioFrameListener)},
+ * or with audio levels from {@link ai.api.AIListener#onAudioLevel(float)}. Use one source at a time.
+ * <p>
+ * Every new point is copied to a preallocated frame which is handed to the render thread by swapping
+ * references, so feeding never waits for drawing and drawing doesn't allocate.
+ * The view requires Android 4.0 and hardware acceleration.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class WaveformView extends TextureView implements TextureView.SurfaceTextureListener, AudioFrameListener {
+
+    private static final String TAG = WaveformView.class.getName();
+
+    public static final int DEFAULT_POINTS_COUNT = 64;
+
+    /**
+     * Samples per point, 10 ms at 16 kHz
+     */
+    private static final int POINT_SAMPLES = 160;
+
+    private static final long FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    /**
+     * Render thread sleeps this long when there are no new points, unless it is woken up by the new point
+     */
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final float BAR_WIDTH_RATIO = 0.6f;
+    private static final float MAX_AMPLITUDE_RATIO = 0.9f;
+
+    private final int pointsCount;
+
+    // producer side, accessed by the thread which feeds the view
+    private final float[] history;
+    private int historyNext;
+    private int pointSamplesCount;
+    private int pointPeak;
+    private float minLevel = Float.MAX_VALUE;
+    private float maxLevel = -Float.MAX_VALUE;
+    private Frame writeFrame;
+
+    /**
+     * Latest complete frame, swapped by the producer and the render thread
+     */
+    private final AtomicReference<Frame> readyFrame;
+
+    private volatile int waveColor = SoundLevelCircleDrawable.CENTER_COLOR_DEF;
+    private volatile int backgroundColor = Color.TRANSPARENT;
+
+    private volatile RenderThread renderThread;
+
+    public WaveformView(final Context context) {
+        this(context, null);
+    }
+
+    public WaveformView(final Context context, final AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public WaveformView(final Context context, final AttributeSet attrs, final int defStyle) {
+        this(context, attrs, defStyle, DEFAULT_POINTS_COUNT);
+    }
+
+    public WaveformView(final Context context, final AttributeSet attrs, final int defStyle, final int pointsCount) {
+        super(context, attrs, defStyle);
+        this.pointsCount = pointsCount;
+        history = new float[pointsCount];
+        writeFrame = new Frame(pointsCount);
+        readyFrame = new AtomicReference<>(new Frame(pointsCount));
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+    }
+
+    public void setWaveColor(final int color) {
+        waveColor = color;
+    }
+
+    @Override
+    public void setBackgroundColor(final int color) {
+        backgroundColor = color;
+        setOpaque(Color.alpha(color) == 0xff);
+    }
+
+    /**
+     * Adds captured PCM, 16 bit little endian mono. Doesn't allocate.
+     */
+    @Override
+    public void onAudioFrame(final byte[] buffer, final int offset, final int length) {
+        final int end = offset + length - 1;
+        for (int i = offset; i < end; i += 2) {
+            final int sample = (short) ((buffer[i + 1] << 8) | (buffer[i] & 0xff));
+            pointPeak = Math.max(pointPeak, Math.abs(sample));
+            if (++pointSamplesCount == POINT_SAMPLES) {
+                addPoint((float) pointPeak / -Short.MIN_VALUE);
+                pointSamplesCount = 0;
+                pointPeak = 0;
+            }
+        }
+    }
+
+    /**
+     * Adds audio level, levels are scaled to the range of the values seen since {@link #clear()}
+     */
+    public void onAudioLevel(final float level) {
+        minLevel = Math.min(minLevel, level);
+        maxLevel = Math.max(maxLevel, level);
+        addPoint(maxLevel > minLevel ? (level - minLevel) / (maxLevel - minLevel) : 0);
+    }
+
+    /**
+     * Flattens the wave, call it from the thread which feeds the view
+     */
+    public void clear() {
+        for (int i = 0; i < pointsCount; i++) {
+            history[i] = 0;
+        }
+        historyNext = 0;
+        pointSamplesCount = 0;
+        pointPeak = 0;
+        minLevel = Float.MAX_VALUE;
+        maxLevel = -Float.MAX_VALUE;
+        publish();
+    }
+
+    private void addPoint(final float value) {
+        history[historyNext] = Math.min(value, 1f);
+        historyNext = (historyNext + 1) % pointsCount;
+        publish();
+    }
+
+    private void publish() {
+        final float[] points = writeFrame.points;
+        final int tailLength = pointsCount - historyNext;
+        System.arraycopy(history, historyNext, points, 0, tailLength);
+        System.arraycopy(history, 0, points, tailLength, historyNext);
+        writeFrame.fresh = true;
+
+        // the frame taken back is either consumed by the render thread or replaced by this one
+        writeFrame = readyFrame.getAndSet(writeFrame);
+
+        final RenderThread thread = renderThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(final SurfaceTexture surfaceTexture, final int width, final int height) {
+        final RenderThread thread = new RenderThread(new Surface(surfaceTexture), width, height);
+        renderThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(final SurfaceTexture surfaceTexture, final int width, final int height) {
+        final RenderThread thread = renderThread;
+        if (thread != null) {
+            thread.setSize(width, height);
+        }
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(final SurfaceTexture surfaceTexture) {
+        final RenderThread thread = renderThread;
+        renderThread = null;
+        if (thread != null) {
+            thread.finish();
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(final SurfaceTexture surfaceTexture) {
+    }
+
+    private static class Frame {
+        private final float[] points;
+        private volatile boolean fresh;
+
+        private Frame(final int pointsCount) {
+            points = new float[pointsCount];
+        }
+    }
+
+    private class RenderThread extends Thread {
+
+        private final Surface surface;
+        private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        private final float[] lines = new float[pointsCount * 4];
+
+        private Frame renderFrame = new Frame(pointsCount);
+
+        /**
+         * Set when the surface should be redrawn without new points, e.g. after resize. The first frame clears the surface.
+         */
+        private volatile boolean redrawRequested = true;
+        private volatile int width;
+        private volatile int height;
+        private volatile boolean running = true;
+        private long lastDrawNanos;
+
+        private RenderThread(final Surface surface, final int width, final int height) {
+            super("WaveformView");
+            this.surface = surface;
+            this.width = width;
+            this.height = height;
+            paint.setStrokeCap(Paint.Cap.ROUND);
+        }
+
+        private void setSize(final int width, final int height) {
+            this.width = width;
+            this.height = height;
+            redrawRequested = true;
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * Stops the thread and waits for it, so the surface is not used after it is destroyed
+         */
+        private void finish() {
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            surface.release();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                final long waitNanos = lastDrawNanos + FRAME_INTERVAL_NANOS - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(this, waitNanos);
+                    continue;
+                }
+
+                if (readyFrame.get().fresh) {
+                    final Frame consumed = renderFrame;
+                    consumed.fresh = false;
+                    renderFrame = readyFrame.getAndSet(consumed);
+                } else if (!redrawRequested) {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                    continue;
+                }
+
+                redrawRequested = false;
+                lastDrawNanos = System.nanoTime();
+                draw(renderFrame.points);
+            }
+        }
+
+        private void draw(final float[] points) {
+            final Canvas canvas;
+            try {
+                canvas = surface.lockCanvas(null);
+            } catch (final Exception e) {
+                Log.w(TAG, "Can't lock surface", e);
+                return;
+            }
+
+            try {
+                canvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+
+                final int currentWidth = width;
+                final float centerY = height / 2f;
+                final float step = (float) currentWidth / pointsCount;
+                final float maxAmplitude = centerY * MAX_AMPLITUDE_RATIO;
+
+                for (int i = 0; i < pointsCount; i++) {
+                    final float x = step * (i + 0.5f);
+                    // keep at least a dot for silence
+                    final float amplitude = Math.max(maxAmplitude * points[i], 0.5f);
+                    lines[i * 4] = x;
+                    lines[i * 4 + 1] = centerY - amplitude;
+                    lines[i * 4 + 2] = x;
+                    lines[i * 4 + 3] = centerY + amplitude;
+                }
+
+                paint.setColor(waveColor);
+                paint.setStrokeWidth(step * BAR_WIDTH_RATIO);
+                canvas.drawLines(lines, paint);
+            } finally {
+                surface.unlockCanvasAndPost(canvas);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stage between audio capture and upload. Encoder gets 16 bit little endian mono PCM in chunks
+ * of any size and writes encoded data as soon as it is ready, so memory use doesn't depend on the audio length.
+ * See {@link EncodingInputStream}.
+ */
+public interface AudioEncoder {
+
+    /**
+     * Writes stream header, called before any audio
+     */
+    void start(OutputStream output) throws IOException;
+
+    /**
+     * @param length length in bytes, odd byte is kept until the next call
+     */
+    void encode(byte[] buffer, int offset, int length, OutputStream output) throws IOException;
+
+    /**
+     * Writes the rest of the audio, called after the last chunk
+     */
+    void finish(OutputStream output) throws IOException;
+}
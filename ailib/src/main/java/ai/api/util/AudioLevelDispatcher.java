@@ -0,0 +1,149 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers audio level values to the main thread. Only the latest value is kept, values reported
+ * while the previous one is still waiting for delivery are dropped. Dispatching doesn't allocate.
+ */
+public class AudioLevelDispatcher {
+
+    /**
+     * Deliver at most once per display frame
+     */
+    public static final long INTERVAL_VSYNC = -1;
+
+    /**
+     * Deliver as soon as the main thread is free
+     */
+    public static final long INTERVAL_NONE = 0;
+
+    public interface Callback {
+        void onAudioLevel(float level);
+    }
+
+    private final Callback callback;
+    private final long intervalMillis;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private volatile float level;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private long lastDeliveryTime;
+
+    private volatile FrameScheduler frameScheduler;
+
+    private final Runnable deliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * @param callback       receives levels on the main thread
+     * @param intervalMillis min interval between deliveries, {@link #INTERVAL_VSYNC} or {@link #INTERVAL_NONE}
+     */
+    public AudioLevelDispatcher(final Callback callback, final long intervalMillis) {
+        this.callback = callback;
+        this.intervalMillis = intervalMillis;
+
+        if (intervalMillis == INTERVAL_VSYNC && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Choreographer instance is bound to the thread where it is obtained
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                frameScheduler = new FrameScheduler();
+            } else {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        frameScheduler = new FrameScheduler();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Can be called from any thread
+     */
+    public void dispatch(final float level) {
+        this.level = level;
+        if (scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Drops pending value
+     */
+    public void cancel() {
+        handler.removeCallbacks(deliverRunnable);
+        final FrameScheduler scheduler = frameScheduler;
+        if (scheduler != null) {
+            scheduler.cancel();
+        }
+        scheduled.set(false);
+    }
+
+    private void schedule() {
+        if (intervalMillis > 0) {
+            final long delay = lastDeliveryTime + intervalMillis - SystemClock.uptimeMillis();
+            handler.postDelayed(deliverRunnable, Math.max(0, delay));
+            return;
+        }
+
+        final FrameScheduler scheduler = frameScheduler;
+        if (scheduler != null) {
+            scheduler.schedule();
+        } else {
+            handler.post(deliverRunnable);
+        }
+    }
+
+    private void deliver() {
+        scheduled.set(false);
+        lastDeliveryTime = SystemClock.uptimeMillis();
+        callback.onAudioLevel(level);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameScheduler implements Choreographer.FrameCallback {
+
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        private void schedule() {
+            choreographer.postFrameCallback(this);
+        }
+
+        private void cancel() {
+            choreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            deliver();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.util;
+
+/**
+ * Streaming automatic gain control of 16 bit little endian mono PCM, processes audio in place.
+ * <p>
+ * Peak envelope follows the signal with fast attack and slow release, gain brings the envelope
+ * to the target level and is limited, so silence is not amplified to the noise. Loud click lowers the gain
+ * only for the release time. DC offset is removed. Only integer arithmetic is used per sample.
+ * Instance is not thread safe.
+ */
+public class AutomaticGainControl {
+
+    public static final int DEFAULT_ATTACK_MILLIS = 5;
+    public static final int DEFAULT_RELEASE_MILLIS = 400;
+
+    /**
+     * Envelope level the gain is adjusted to, -12 dBFS
+     */
+    private static final int TARGET_LEVEL = 8192;
+
+    private static final int MAX_GAIN = 8;
+
+    private static final int GAIN_BITS = 12;
+    private static final int COEFFICIENT_BITS = 16;
+    private static final int ENVELOPE_BITS = 8;
+
+    /**
+     * DC estimate is averaged over 2^DC_SHIFT samples
+     */
+    private static final int DC_SHIFT = 10;
+
+    /**
+     * Gain is recalculated once per this number of samples, division is not done per sample
+     */
+    private static final int GAIN_UPDATE_SAMPLES = 16;
+
+    private final int attackCoefficient;
+    private final int releaseCoefficient;
+
+    /**
+     * Envelope with {@link #ENVELOPE_BITS} fractional bits
+     */
+    private int envelope;
+
+    /**
+     * DC offset scaled by 2^DC_SHIFT, so the estimate decays to zero without rounding residue
+     */
+    private int dcSum;
+
+    /**
+     * Current gain with {@link #GAIN_BITS} fractional bits
+     */
+    private int gain = 1 << GAIN_BITS;
+    private int samplesToUpdate;
+
+    public AutomaticGainControl(final int sampleRate) {
+        this(sampleRate, DEFAULT_ATTACK_MILLIS, DEFAULT_RELEASE_MILLIS);
+    }
+
+    public AutomaticGainControl(final int sampleRate, final int attackMillis, final int releaseMillis) {
+        if (sampleRate <= 0 || attackMillis <= 0 || releaseMillis <= 0) {
+            throw new IllegalArgumentException("Sample rate and envelope times must be positive");
+        }
+        attackCoefficient = getCoefficient(sampleRate, attackMillis);
+        releaseCoefficient = getCoefficient(sampleRate, releaseMillis);
+    }
+
+    /**
+     * Applies gain to the samples in place
+     * @param length length in bytes
+     */
+    public void process(final byte[] buffer, final int offset, final int length) {
+        final int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            int sample = (buffer[i] & 0xff) | (buffer[i + 1] << 8);
+
+            dcSum += sample - (dcSum >> DC_SHIFT);
+            sample -= dcSum >> DC_SHIFT;
+
+            final int level = (sample < 0 ? -sample : sample) << ENVELOPE_BITS;
+            final int coefficient = level > envelope ? attackCoefficient : releaseCoefficient;
+            envelope += (int) (((long) (level - envelope) * coefficient) >> COEFFICIENT_BITS);
+
+            if (--samplesToUpdate <= 0) {
+                updateGain();
+            }
+
+            int value = (sample * gain) >> GAIN_BITS;
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            buffer[i] = (byte) value;
+            buffer[i + 1] = (byte) (value >> 8);
+        }
+    }
+
+    /**
+     * @return current gain, 1 means no amplification
+     */
+    public float getGain() {
+        return (float) gain / (1 << GAIN_BITS);
+    }
+
+    /**
+     * Forgets the signal level, e.g. before a new recording
+     */
+    public void reset() {
+        envelope = 0;
+        dcSum = 0;
+        gain = 1 << GAIN_BITS;
+        samplesToUpdate = 0;
+    }
+
+    private void updateGain() {
+        samplesToUpdate = GAIN_UPDATE_SAMPLES;
+        final int level = Math.max(envelope >> ENVELOPE_BITS, 1);
+        gain = (int) Math.min(((long) TARGET_LEVEL << GAIN_BITS) / level, MAX_GAIN << GAIN_BITS);
+    }
+
+    /**
+     * One pole smoothing coefficient for the time constant
+     */
+    private static int getCoefficient(final int sampleRate, final int millis) {
+        final double coefficient = 1 - Math.exp(-1000.0 / (millis * (double) sampleRate));
+        return Math.max(1, (int) Math.round(coefficient * (1 << COEFFICIENT_BITS)));
+    }
+}
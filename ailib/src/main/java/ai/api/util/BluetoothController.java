@@ -14,8 +14,10 @@
  * limitations under the License.
  */
 
+
 package ai.api.util;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
@@ -24,29 +26,86 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioManager;
-import android.os.CountDownTimer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-public abstract class BluetoothController {
-    private Context mContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-    private BluetoothAdapter mBluetoothAdapter;
+import ai.api.metrics.Counter;
+import ai.api.metrics.Histogram;
+import ai.api.metrics.MetricsRegistry;
 
-    private AudioManager mAudioManager;
+/**
+ * Routes audio through the bluetooth headset using SCO connection.
+ * <p>
+ * Connection is driven by the SCO audio state broadcasts: the first attempt is made immediately
+ * on {@link #start()} or when a headset connects, failed attempts are retried with exponential backoff.
+ * Listening should be started with {@link #runWhenScoReady(Runnable)}, so the first words are captured
+ * from the headset and not from the device microphone.
+ * <p>
+ * All methods should be called on the main thread, callbacks are called on the main thread.
+ */
+public abstract class BluetoothController {
 
-    private boolean mIsCountDownOn;
-    private boolean mIsStarting;
-    private boolean mIsOnHeadsetSco;
-    private boolean mIsStarted;
+    public enum ScoState {
+        /**
+         * Controller is not started or bluetooth SCO is not supported
+         */
+        stopped,
+        /**
+         * Waiting for the headset to connect after the retries failed
+         */
+        waitingForHeadset,
+        connecting,
+        connected
+    }
 
     private static final String TAG = "BluetoothController";
 
+    private static final long FIRST_RETRY_DELAY = 250;
+    private static final long MAX_RETRY_DELAY = 4000;
+    private static final int MAX_ATTEMPTS = 6;
+
+    /**
+     * Attempt without any SCO state broadcast is treated as failed after this time
+     */
+    private static final long ATTEMPT_TIMEOUT = 4000;
+
+    /**
+     * Default time to wait for SCO before listening is started on the device microphone
+     */
+    public static final long DEFAULT_READY_TIMEOUT = 3000;
+
+    private static final Histogram timeToSco = MetricsRegistry.getDefault().histogram(MetricsRegistry.BLUETOOTH_TIME_TO_SCO);
+    private static final Counter scoFailures = MetricsRegistry.getDefault().counter(MetricsRegistry.BLUETOOTH_SCO_FAILURES);
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final AudioManager mAudioManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ScoState mState = ScoState.stopped;
+    private int mAttempt;
+
+    /**
+     * True from a failed attempt until the next one is made
+     */
+    private boolean mRetryPending;
+    private long mConnectStartNanos;
+    private boolean mHeadsetReported;
+
+    private final List<Runnable> mPendingActions = new ArrayList<>();
+
     /**
      * Constructor
      *
      * @param context
      */
-    public BluetoothController(Context context) {
+    public BluetoothController(final Context context) {
         mContext = context;
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
@@ -55,27 +114,23 @@ public abstract class BluetoothController {
     /**
      * Call this to start BluetoothController functionalities.
      *
-     * @return The return value of startBluetooth()
+     * @return false if device does not support bluetooth or current platform does not support
+     * use of SCO for off call.
      */
     public boolean start() {
-        if (!mIsStarted) {
-            mIsStarted = true;
-
-            mIsStarted = startBluetooth();
+        if (mState != ScoState.stopped) {
+            return true;
         }
-
-        return mIsStarted;
+        return startBluetooth();
     }
 
     /**
-     * Should call this on onResume or onDestroy.
-     * Unregister broadcast receivers and stop Sco audio connection
-     * and cancel count down.
+     * Should call this on onPause or onDestroy.
+     * Unregister broadcast receivers, stop Sco audio connection and cancel retries.
+     * Actions waiting for SCO are run immediately.
      */
     public void stop() {
-        if (mIsStarted) {
-            mIsStarted = false;
-
+        if (mState != ScoState.stopped) {
             stopBluetooth();
         }
     }
@@ -84,7 +139,40 @@ public abstract class BluetoothController {
      * @return true if audio is connected through headset.
      */
     public boolean isOnHeadsetSco() {
-        return mIsOnHeadsetSco;
+        return mState == ScoState.connected;
+    }
+
+    public ScoState getScoState() {
+        return mState;
+    }
+
+    /**
+     * Runs the action when SCO audio is connected, or immediately if SCO is not being connected.
+     * If connection is not established in {@link #DEFAULT_READY_TIMEOUT}, the action is run anyway.
+     */
+    public void runWhenScoReady(final Runnable action) {
+        runWhenScoReady(action, DEFAULT_READY_TIMEOUT);
+    }
+
+    /**
+     * @param timeoutMillis max time to wait for SCO connection
+     */
+    public void runWhenScoReady(final Runnable action, final long timeoutMillis) {
+        if (mState != ScoState.connecting) {
+            action.run();
+            return;
+        }
+
+        mPendingActions.add(action);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingActions.remove(action)) {
+                    Log.w(TAG, "Sco is not connected in " + timeoutMillis + "ms, action is run without it");
+                    action.run();
+                }
+            }
+        }, timeoutMillis);
     }
 
     public abstract void onHeadsetDisconnected();
@@ -96,190 +184,271 @@ public abstract class BluetoothController {
     public abstract void onScoAudioConnected();
 
     /**
-     * Register for bluetooth headset connection states and Sco audio states.
-     * Try to connect to bluetooth headset audio by calling startBluetoothSco().
-     * This is a work around for API < 11 to detect if a headset is connected before
-     * the application starts.
-     * <p/>
-     * The official documentation for startBluetoothSco() states
-     * <p/>
-     * "This method can be used by applications wanting to send and received audio to/from
-     * a bluetooth SCO headset while the phone is not in call."
-     * <p/>
-     * Does this mean that startBluetoothSco() would fail if the connected bluetooth device
-     * is not a headset?
+     * Called when all connection attempts failed. Next attempts are made when a headset connects.
+     */
+    public void onScoAudioFailed() {
+    }
+
+    /**
+     * Register for bluetooth headset connection states and Sco audio states
+     * and make the first connection attempt.
      * <p/>
-     * Thus if a call to startBluetoothSco() is successful, i.e mBroadcastReceiver will receive
-     * an ACTION_SCO_AUDIO_STATE_CHANGED with intent extra SCO_AUDIO_STATE_CONNECTED, then
-     * we assume that a headset is connected.
-     *
-     * @return false if device does not support bluetooth or current platform does not supports
-     * use of SCO for off call.
+     * If a headset is connected before the application starts, ACTION_ACL_CONNECTED is not received,
+     * so successful SCO connection is the way to detect it.
      */
-    @SuppressWarnings("deprecation")
     private boolean startBluetooth() {
         Log.d(TAG, "startBluetooth");
 
         // Device support bluetooth
-        if (mBluetoothAdapter != null) {
-            if (mAudioManager.isBluetoothScoAvailableOffCall()) {
-                mContext.registerReceiver(mBroadcastReceiver,
-                        new IntentFilter(BluetoothDevice.ACTION_ACL_CONNECTED));
-                mContext.registerReceiver(mBroadcastReceiver,
-                        new IntentFilter(BluetoothDevice.ACTION_ACL_DISCONNECTED));
-                mContext.registerReceiver(mBroadcastReceiver,
-                        new IntentFilter(AudioManager.ACTION_SCO_AUDIO_STATE_CHANGED));
-
-                // Need to set audio mode to MODE_IN_CALL for call to startBluetoothSco() to succeed.
-                mAudioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
-
-                mIsCountDownOn = true;
-                // mCountDown repeatedly tries to start bluetooth Sco audio connection.
-                mCountDown.start();
-
-                // need for audio sco, see mBroadcastReceiver
-                mIsStarting = true;
-
-                return true;
-            }
+        if (mBluetoothAdapter == null || !mAudioManager.isBluetoothScoAvailableOffCall()) {
+            return false;
         }
 
-        return false;
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
+        filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+        filter.addAction(getScoStateAction());
+        mContext.registerReceiver(mBroadcastReceiver, filter);
+
+        mHeadsetReported = false;
+        connect();
+        return true;
     }
 
     /**
      * Unregister broadcast receivers and stop Sco audio connection
-     * and cancel count down.
+     * and cancel retries.
      */
     private void stopBluetooth() {
         Log.d(TAG, "stopBluetooth");
 
-        if (mIsCountDownOn) {
-            mIsCountDownOn = false;
-            mCountDown.cancel();
-        }
+        mState = ScoState.stopped;
+        cancelRetry();
+        mHandler.removeCallbacks(mAttemptTimeout);
 
         // Need to stop Sco audio connection here when the app
         // change orientation or close with headset still turns on.
         mContext.unregisterReceiver(mBroadcastReceiver);
         mAudioManager.stopBluetoothSco();
         mAudioManager.setMode(AudioManager.MODE_NORMAL);
+
+        runPendingActions();
     }
 
     /**
-     * Handle headset and Sco audio connection states.
+     * Starts a new series of attempts, the first one is made immediately
      */
-    private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
-        @SuppressWarnings({"deprecation", "synthetic-access"})
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-
-            if (action.equals(BluetoothDevice.ACTION_ACL_CONNECTED)) {
-                BluetoothDevice mConnectedHeadset = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                BluetoothClass bluetoothClass = mConnectedHeadset.getBluetoothClass();
-                if (bluetoothClass != null) {
-                    // Check if device is a headset. Besides the 2 below, are there other
-                    // device classes also qualified as headset?
-                    int deviceClass = bluetoothClass.getDeviceClass();
-                    if (deviceClass == BluetoothClass.Device.AUDIO_VIDEO_HANDSFREE
-                            || deviceClass == BluetoothClass.Device.AUDIO_VIDEO_WEARABLE_HEADSET) {
-                        // start bluetooth Sco audio connection.
-                        // Calling startBluetoothSco() always returns faIL here,
-                        // that why a count down timer is implemented to call
-                        // startBluetoothSco() in the onTick.
-                        mAudioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
-                        mIsCountDownOn = true;
-                        mCountDown.start();
-
-                        // override this if you want to do other thing when the device is connected.
-                        onHeadsetConnected();
-                    }
-                }
+    private void connect() {
+        cancelRetry();
+        mAttempt = 0;
+        mConnectStartNanos = System.nanoTime();
+        mState = ScoState.connecting;
+
+        // Need to set audio mode to MODE_IN_COMMUNICATION for call to startBluetoothSco() to succeed.
+        mAudioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
+        attempt();
+    }
 
-                Log.d(TAG, mConnectedHeadset.getName() + " connected");
-            } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
-                Log.d(TAG, "Headset disconnected");
+    private void attempt() {
+        mAttempt++;
+        Log.d(TAG, "start bluetooth Sco, attempt " + mAttempt);
+        try {
+            mAudioManager.startBluetoothSco();
+        } catch (final RuntimeException e) {
+            Log.w(TAG, "startBluetoothSco failed", e);
+        }
+        mHandler.removeCallbacks(mAttemptTimeout);
+        mHandler.postDelayed(mAttemptTimeout, ATTEMPT_TIMEOUT);
+    }
 
-                if (mIsCountDownOn) {
-                    mIsCountDownOn = false;
-                    mCountDown.cancel();
-                }
+    private void onAttemptFailed() {
+        mHandler.removeCallbacks(mAttemptTimeout);
 
-                mAudioManager.setMode(AudioManager.MODE_NORMAL);
+        // Need to call stopBluetoothSco(), otherwise next startBluetoothSco() will not be successful.
+        mAudioManager.stopBluetoothSco();
 
-                // override this if you want to do other thing when the device is disconnected.
-                onHeadsetDisconnected();
-            } else if (action.equals(AudioManager.ACTION_SCO_AUDIO_STATE_CHANGED)) {
-                int state = intent.getIntExtra(AudioManager.EXTRA_SCO_AUDIO_STATE,
-                        AudioManager.SCO_AUDIO_STATE_ERROR);
+        if (mAttempt < MAX_ATTEMPTS) {
+            mRetryPending = true;
+            mHandler.removeCallbacks(mRetry);
+            mHandler.postDelayed(mRetry, getRetryDelay(mAttempt));
+            return;
+        }
 
-                if (state == AudioManager.SCO_AUDIO_STATE_CONNECTED) {
-                    mIsOnHeadsetSco = true;
+        Log.d(TAG, "fail to connect to headset audio after " + mAttempt + " attempts");
+        scoFailures.increment();
+        mState = ScoState.waitingForHeadset;
+        mAudioManager.setMode(AudioManager.MODE_NORMAL);
+        runPendingActions();
+        onScoAudioFailed();
+    }
 
-                    if (mIsStarting) {
-                        // When the device is connected before the application starts,
-                        // ACTION_ACL_CONNECTED will not be received, so call onHeadsetConnected here
-                        mIsStarting = false;
-                        onHeadsetConnected();
-                    }
+    private void cancelRetry() {
+        mRetryPending = false;
+        mHandler.removeCallbacks(mRetry);
+    }
 
-                    if (mIsCountDownOn) {
-                        mIsCountDownOn = false;
-                        mCountDown.cancel();
-                    }
+    /**
+     * @param attempt number of the failed attempt, starting from 1
+     */
+    private static long getRetryDelay(final int attempt) {
+        return Math.min(FIRST_RETRY_DELAY << Math.min(attempt - 1, 16), MAX_RETRY_DELAY);
+    }
 
-                    // override this if you want to do other thing when Sco audio is connected.
-                    onScoAudioConnected();
+    private void onScoConnected() {
+        cancelRetry();
+        mHandler.removeCallbacks(mAttemptTimeout);
 
-                    Log.d(TAG, "Sco connected");
-                } else if (state == AudioManager.SCO_AUDIO_STATE_DISCONNECTED) {
-                    Log.d(TAG, "Sco disconnected");
+        final boolean wasConnecting = mState == ScoState.connecting;
+        mState = ScoState.connected;
 
-                    // Always receive SCO_AUDIO_STATE_DISCONNECTED on call to startBluetooth()
-                    // which at that stage we do not want to do anything. Thus the if condition.
-                    if (!mIsStarting) {
-                        mIsOnHeadsetSco = false;
+        if (wasConnecting) {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mConnectStartNanos);
+            timeToSco.record(millis);
+            Log.d(TAG, "Sco connected in " + millis + "ms, attempt " + mAttempt);
+        }
 
-                        // Need to call stopBluetoothSco(), otherwise startBluetoothSco()
-                        // will not be successful.
-                        mAudioManager.stopBluetoothSco();
+        if (!mHeadsetReported) {
+            // When the device is connected before the application starts,
+            // ACTION_ACL_CONNECTED will not be received, so call onHeadsetConnected here
+            mHeadsetReported = true;
+            onHeadsetConnected();
+        }
 
-                        // override this if you want to do other thing when Sco audio is disconnected.
-                        onScoAudioDisconnected();
-                    }
-                }
+        // override this if you want to do other thing when Sco audio is connected.
+        onScoAudioConnected();
+        runPendingActions();
+    }
+
+    private void onScoDisconnected() {
+        if (mState == ScoState.connecting) {
+            if (mRetryPending) {
+                // stopBluetoothSco() of the timed out attempt is reported too, the attempt is already counted
+                return;
+            }
+            Log.d(TAG, "Sco attempt " + mAttempt + " failed");
+            onAttemptFailed();
+        } else if (mState == ScoState.connected) {
+            Log.d(TAG, "Sco disconnected");
+            mAudioManager.stopBluetoothSco();
+
+            // override this if you want to do other thing when Sco audio is disconnected.
+            onScoAudioDisconnected();
+
+            // headset is still connected, e.g. SCO was taken by a call, so connection is restored
+            if (mState == ScoState.connected) {
+                connect();
             }
         }
-    };
+    }
 
-    /**
-     * Try to connect to audio headset in onTick.
-     */
-    private CountDownTimer mCountDown = new CountDownTimer(10000, 1000) {
+    private void runPendingActions() {
+        if (mPendingActions.isEmpty()) {
+            return;
+        }
+        final Runnable[] actions = mPendingActions.toArray(new Runnable[mPendingActions.size()]);
+        mPendingActions.clear();
+        for (final Runnable action : actions) {
+            action.run();
+        }
+    }
 
-        @SuppressWarnings("synthetic-access")
+    @SuppressWarnings("deprecation")
+    private static String getScoStateAction() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return ScoStateActionV14.ACTION;
+        }
+        return AudioManager.ACTION_SCO_AUDIO_STATE_CHANGED;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class ScoStateActionV14 {
+        private static final String ACTION = AudioManager.ACTION_SCO_AUDIO_STATE_UPDATED;
+    }
+
+    private final Runnable mRetry = new Runnable() {
         @Override
-        public void onTick(long millisUntilFinished) {
-            // When this call is successful, this count down timer will be canceled.
-            try {
-                mAudioManager.startBluetoothSco();
-            } catch (Exception ignored) {
+        public void run() {
+            mRetryPending = false;
+            if (mState == ScoState.connecting) {
+                attempt();
+            }
+        }
+    };
 
+    private final Runnable mAttemptTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == ScoState.connecting) {
+                Log.d(TAG, "Sco attempt " + mAttempt + " timed out");
+                onAttemptFailed();
             }
-            Log.d(TAG, "\nonTick start bluetooth Sco");
         }
+    };
 
-        @SuppressWarnings("synthetic-access")
+    /**
+     * Handle headset and Sco audio connection states.
+     */
+    private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
-        public void onFinish() {
-            // Calls to startBluetoothSco() in onStick are not successful.
-            // Should implement something to inform user of this failure
-            mIsCountDownOn = false;
-            mAudioManager.setMode(AudioManager.MODE_NORMAL);
+        public void onReceive(final Context context, final Intent intent) {
+            if (mState == ScoState.stopped) {
+                return;
+            }
+
+            final String action = intent.getAction();
+
+            if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
+                final BluetoothDevice connectedDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                if (isHeadset(connectedDevice)) {
+                    Log.d(TAG, connectedDevice.getName() + " connected");
+                    mHeadsetReported = true;
+
+                    // override this if you want to do other thing when the device is connected.
+                    onHeadsetConnected();
+
+                    if (mState == ScoState.waitingForHeadset) {
+                        connect();
+                    }
+                }
+            } else if (BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
+                final BluetoothDevice disconnectedDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                if (isHeadset(disconnectedDevice)) {
+                    Log.d(TAG, "Headset disconnected");
+                    mHeadsetReported = false;
+
+                    mHandler.removeCallbacks(mRetry);
+                    mHandler.removeCallbacks(mAttemptTimeout);
+                    mState = ScoState.waitingForHeadset;
+                    mAudioManager.setMode(AudioManager.MODE_NORMAL);
+                    runPendingActions();
+
+                    // override this if you want to do other thing when the device is disconnected.
+                    onHeadsetDisconnected();
+                }
+            } else if (getScoStateAction().equals(action)) {
+                final int state = intent.getIntExtra(AudioManager.EXTRA_SCO_AUDIO_STATE,
+                        AudioManager.SCO_AUDIO_STATE_ERROR);
 
-            Log.d(TAG, "\nonFinish fail to connect to headset audio");
+                if (state == AudioManager.SCO_AUDIO_STATE_CONNECTED) {
+                    onScoConnected();
+                } else if ((state == AudioManager.SCO_AUDIO_STATE_DISCONNECTED || state == AudioManager.SCO_AUDIO_STATE_ERROR)
+                        && !isInitialStickyBroadcast()) {
+                    // sticky DISCONNECTED is always received on registration, it is not a result of the attempt
+                    onScoDisconnected();
+                }
+            }
         }
     };
 
-}
\ No newline at end of file
+    private static boolean isHeadset(final BluetoothDevice device) {
+        final BluetoothClass bluetoothClass = device != null ? device.getBluetoothClass() : null;
+        if (bluetoothClass == null) {
+            return false;
+        }
+        // Check if device is a headset. Besides the 2 below, are there other
+        // device classes also qualified as headset?
+        final int deviceClass = bluetoothClass.getDeviceClass();
+        return deviceClass == BluetoothClass.Device.AUDIO_VIDEO_HANDSFREE
+                || deviceClass == BluetoothClass.Device.AUDIO_VIDEO_WEARABLE_HEADSET;
+    }
+}
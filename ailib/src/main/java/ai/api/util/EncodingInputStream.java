@@ -0,0 +1,113 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Encodes PCM audio of the source stream while it is read. Source is read in small chunks,
+ * only output of the latest chunk is buffered. Negative result of the source read is treated
+ * as the end of the audio, like AudioRecord errors after the recording is stopped.
+ */
+public class EncodingInputStream extends InputStream {
+
+    private static final int SOURCE_BUFFER_SIZE = 4096;
+
+    private final InputStream source;
+    private final AudioEncoder encoder;
+    private final byte[] sourceBuffer = new byte[SOURCE_BUFFER_SIZE];
+
+    private final Output output = new Output();
+    private int position;
+
+    private boolean started;
+    private boolean finished;
+
+    public EncodingInputStream(final InputStream source, final AudioEncoder encoder) {
+        this.source = source;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] buffer = new byte[1];
+        return read(buffer, 0, 1) > 0 ? buffer[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (position >= output.size()) {
+            if (finished) {
+                return -1;
+            }
+            output.reset();
+            position = 0;
+            fill();
+        }
+
+        final int count = Math.min(length, output.size() - position);
+        System.arraycopy(output.getBuffer(), position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return output.size() - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private void fill() throws IOException {
+        if (!started) {
+            started = true;
+            encoder.start(output);
+            return;
+        }
+
+        final int bytesRead = source.read(sourceBuffer, 0, sourceBuffer.length);
+        if (bytesRead < 0) {
+            finished = true;
+            encoder.finish(output);
+        } else if (bytesRead > 0) {
+            encoder.encode(sourceBuffer, 0, bytesRead, output);
+        }
+    }
+
+    /**
+     * Gives access to the buffer without copying
+     */
+    private static class Output extends ByteArrayOutputStream {
+        private Output() {
+            super(SOURCE_BUFFER_SIZE);
+        }
+
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
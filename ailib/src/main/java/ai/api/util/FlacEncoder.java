@@ -0,0 +1,604 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming lossless FLAC encoder of 16 bit mono audio. Every block is written as soon as it is
+ * collected, buffers are allocated once, so memory doesn't grow with the audio length.
+ * Total length and MD5 are not known while streaming and are left zero in STREAMINFO, as the format allows.
+ * <p>
+ * Subframes use fixed polynomial predictors of order 0..4 with partitioned Rice coding of the residual,
+ * silence is written as constant subframe. Block is written verbatim if prediction doesn't make it smaller.
+ */
+public class FlacEncoder implements AudioEncoder {
+
+    /**
+     * 64 ms at 16 kHz, allows partition orders up to 8
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int RICE_ESCAPE_BITS = 4;
+    private static final int STREAMINFO_LENGTH = 34;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int sampleRate;
+    private final int blockSize;
+
+    private final int[] samples;
+    private int sampleCount;
+
+    /**
+     * Low byte of the sample split between encode calls, -1 if there is none
+     */
+    private int pendingByte = -1;
+
+    private long frameNumber;
+
+    private final int[][] residuals;
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private int partitionOrder;
+    private final BitWriter writer;
+
+    public FlacEncoder(final int sampleRate) {
+        this(sampleRate, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize samples per frame, 16..65535
+     */
+    public FlacEncoder(final int sampleRate, final int blockSize) {
+        if (sampleRate <= 0 || sampleRate > 655350) {
+            throw new IllegalArgumentException("Unsupported sample rate " + sampleRate);
+        }
+        if (blockSize < 16 || blockSize > 65535) {
+            throw new IllegalArgumentException("Block size should be in 16..65535 range");
+        }
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+
+        samples = new int[blockSize];
+        residuals = new int[MAX_FIXED_ORDER + 1][blockSize];
+
+        // frame is never bigger than the verbatim one
+        writer = new BitWriter(blockSize * BITS_PER_SAMPLE / 8 + 32);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public void start(final OutputStream output) throws IOException {
+        sampleCount = 0;
+        pendingByte = -1;
+        frameNumber = 0;
+
+        final BitWriter header = writer;
+        header.reset();
+        header.writeBits('f', 8);
+        header.writeBits('L', 8);
+        header.writeBits('a', 8);
+        header.writeBits('C', 8);
+
+        // last metadata block flag, STREAMINFO type
+        header.writeBits(0x80, 8);
+        header.writeBits(STREAMINFO_LENGTH, 24);
+
+        header.writeBits(blockSize, 16);
+        header.writeBits(blockSize, 16);
+        // unknown min and max frame sizes
+        header.writeBits(0, 24);
+        header.writeBits(0, 24);
+        header.writeBits(sampleRate, 20);
+        // channels - 1
+        header.writeBits(0, 3);
+        header.writeBits(BITS_PER_SAMPLE - 1, 5);
+        // unknown total samples
+        header.writeBits(0, 4);
+        header.writeBits(0, 32);
+        // MD5 is not calculated
+        for (int i = 0; i < 4; i++) {
+            header.writeBits(0, 32);
+        }
+
+        output.write(header.buffer, 0, header.getLength());
+    }
+
+    @Override
+    public void encode(final byte[] buffer, final int offset, final int length, final OutputStream output) throws IOException {
+        int position = offset;
+        final int end = offset + length;
+
+        if (pendingByte >= 0 && position < end) {
+            addSample(pendingByte | (buffer[position++] << 8), output);
+            pendingByte = -1;
+        }
+
+        while (position + 1 < end) {
+            addSample((buffer[position] & 0xff) | (buffer[position + 1] << 8), output);
+            position += 2;
+        }
+
+        if (position < end) {
+            pendingByte = buffer[position] & 0xff;
+        }
+    }
+
+    @Override
+    public void finish(final OutputStream output) throws IOException {
+        if (sampleCount > 0) {
+            writeFrame(sampleCount, output);
+            sampleCount = 0;
+        }
+        pendingByte = -1;
+    }
+
+    private void addSample(final int sample, final OutputStream output) throws IOException {
+        samples[sampleCount++] = sample;
+        if (sampleCount == blockSize) {
+            writeFrame(blockSize, output);
+            sampleCount = 0;
+        }
+    }
+
+    private void writeFrame(final int count, final OutputStream output) throws IOException {
+        final BitWriter frame = writer;
+        frame.reset();
+        writeFrameHeader(count);
+        writeSubframe(count);
+        frame.alignToByte();
+
+        final int crc = crc16(frame.buffer, frame.getLength());
+        frame.writeBits(crc, 16);
+
+        output.write(frame.buffer, 0, frame.getLength());
+        frameNumber++;
+    }
+
+    private void writeFrameHeader(final int count) {
+        final BitWriter frame = writer;
+
+        // sync code, fixed block size strategy
+        frame.writeBits(0xfff8, 16);
+
+        final int blockSizeCode = getBlockSizeCode(count);
+        final int sampleRateCode = getSampleRateCode();
+        frame.writeBits(blockSizeCode, 4);
+        frame.writeBits(sampleRateCode, 4);
+
+        // mono, 16 bit, reserved bit
+        frame.writeBits(0, 4);
+        frame.writeBits(4, 3);
+        frame.writeBits(0, 1);
+
+        writeUtf8(frameNumber);
+
+        if (blockSizeCode == 6) {
+            frame.writeBits(count - 1, 8);
+        } else if (blockSizeCode == 7) {
+            frame.writeBits(count - 1, 16);
+        }
+
+        if (sampleRateCode == 12) {
+            frame.writeBits(sampleRate / 1000, 8);
+        } else if (sampleRateCode == 13) {
+            frame.writeBits(sampleRate, 16);
+        } else if (sampleRateCode == 14) {
+            frame.writeBits(sampleRate / 10, 16);
+        }
+
+        frame.writeBits(crc8(frame.buffer, frame.getLength()), 8);
+    }
+
+    private void writeSubframe(final int count) {
+        final BitWriter frame = writer;
+
+        boolean constant = true;
+        for (int i = 1; i < count && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+
+        if (constant) {
+            // zero padding bit, CONSTANT type, no wasted bits
+            frame.writeBits(0, 8);
+            frame.writeBits(samples[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        final int order = chooseFixedOrder(count);
+        final int[] residual = residuals[order];
+        final int residualBits = chooseRiceParameters(residual, count, order);
+        final int verbatimBits = count * BITS_PER_SAMPLE;
+
+        if (residualBits < 0 || order * BITS_PER_SAMPLE + residualBits >= verbatimBits) {
+            // VERBATIM type
+            frame.writeBits(1 << 1, 8);
+            for (int i = 0; i < count; i++) {
+                frame.writeBits(samples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        // FIXED type with the predictor order
+        frame.writeBits((0x08 | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            frame.writeBits(samples[i], BITS_PER_SAMPLE);
+        }
+        writeResidual(residual, count, order);
+    }
+
+    /**
+     * Calculates residuals of all the fixed predictors at once
+     * @return order with the smallest sum of absolute residuals
+     */
+    private int chooseFixedOrder(final int count) {
+        final int maxOrder = Math.min(MAX_FIXED_ORDER, count - 1);
+        final int[] r0 = residuals[0];
+        final int[] r1 = residuals[1];
+        final int[] r2 = residuals[2];
+        final int[] r3 = residuals[3];
+        final int[] r4 = residuals[4];
+
+        long sum0 = 0;
+        long sum1 = 0;
+        long sum2 = 0;
+        long sum3 = 0;
+        long sum4 = 0;
+
+        for (int i = 0; i < count; i++) {
+            final int e0 = samples[i];
+            r0[i] = e0;
+            if (i < 1) {
+                continue;
+            }
+            final int e1 = e0 - samples[i - 1];
+            r1[i] = e1;
+            if (i < 2) {
+                continue;
+            }
+            final int e2 = e1 - r1[i - 1];
+            r2[i] = e2;
+            if (i < 3) {
+                continue;
+            }
+            final int e3 = e2 - r2[i - 1];
+            r3[i] = e3;
+            if (i < 4) {
+                continue;
+            }
+            final int e4 = e3 - r3[i - 1];
+            r4[i] = e4;
+
+            // the same samples are compared for all orders
+            sum0 += Math.abs(e0);
+            sum1 += Math.abs(e1);
+            sum2 += Math.abs(e2);
+            sum3 += Math.abs(e3);
+            sum4 += Math.abs(e4);
+        }
+
+        final long[] sums = {sum0, sum1, sum2, sum3, sum4};
+        int best = 0;
+        for (int order = 1; order <= maxOrder; order++) {
+            if (sums[order] < sums[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Chooses partition order and Rice parameters of every partition, results are kept in
+     * {@link #riceParameters}
+     * @return size of the coded residual in bits including partition headers, -1 if it can't be coded
+     */
+    private int chooseRiceParameters(final int[] residual, final int count, final int order) {
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER
+                && (count & (1 << (maxPartitionOrder + 1)) - 1) == 0
+                && (count >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+
+        // sums of the finest partitions, coarser ones are merged from them
+        final int finestSize = count >> maxPartitionOrder;
+        final int finestCount = 1 << maxPartitionOrder;
+        int index = order;
+        for (int partition = 0; partition < finestCount; partition++) {
+            final int end = (partition + 1) * finestSize;
+            long sum = 0;
+            for (; index < end; index++) {
+                final int value = residual[index];
+                sum += (value << 1) ^ (value >> 31);
+            }
+            partitionSums[partition] = sum;
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        int bestPartitionOrder = 0;
+        for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+            final int partitions = 1 << partitionOrder;
+            final int partitionSize = count >> partitionOrder;
+            long bits = 2 + 4;
+            for (int partition = 0; partition < partitions; partition++) {
+                final int samplesInPartition = partition == 0 ? partitionSize - order : partitionSize;
+                final int parameter = getRiceParameter(partitionSums[partition], samplesInPartition);
+                bits += RICE_ESCAPE_BITS + estimateRiceBits(partitionSums[partition], samplesInPartition, parameter);
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = partitionOrder;
+            }
+
+            // merge pairs for the next coarser order
+            for (int partition = 0; partition < partitions / 2; partition++) {
+                partitionSums[partition] = partitionSums[2 * partition] + partitionSums[2 * partition + 1];
+            }
+        }
+
+        return measureResidual(residual, count, order, bestPartitionOrder);
+    }
+
+    /**
+     * Stores parameters of the partition order and counts exact size of the coded residual
+     */
+    private int measureResidual(final int[] residual, final int count, final int order, final int partitionOrder) {
+        final int partitions = 1 << partitionOrder;
+        final int partitionSize = count >> partitionOrder;
+
+        long bits = 2 + 4;
+        int index = order;
+        for (int partition = 0; partition < partitions; partition++) {
+            final int end = (partition + 1) * partitionSize;
+            final int start = index;
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                final int value = residual[i];
+                sum += (value << 1) ^ (value >> 31);
+            }
+            final int parameter = getRiceParameter(sum, end - start);
+            riceParameters[partition] = parameter;
+
+            bits += RICE_ESCAPE_BITS + (long) (end - start) * (parameter + 1);
+            for (int i = start; i < end; i++) {
+                final int value = residual[i];
+                bits += ((value << 1) ^ (value >> 31)) >>> parameter;
+            }
+            index = end;
+        }
+        this.partitionOrder = partitionOrder;
+        return bits > Integer.MAX_VALUE ? -1 : (int) bits;
+    }
+
+    private void writeResidual(final int[] residual, final int count, final int order) {
+        final BitWriter frame = writer;
+
+        // RICE coding method with 4 bit parameters
+        frame.writeBits(0, 2);
+        frame.writeBits(partitionOrder, 4);
+
+        final int partitions = 1 << partitionOrder;
+        final int partitionSize = count >> partitionOrder;
+        int index = order;
+        for (int partition = 0; partition < partitions; partition++) {
+            final int parameter = riceParameters[partition];
+            frame.writeBits(parameter, RICE_ESCAPE_BITS);
+            final int end = (partition + 1) * partitionSize;
+            for (; index < end; index++) {
+                final int value = residual[index];
+                frame.writeRice((value << 1) ^ (value >> 31), parameter);
+            }
+        }
+    }
+
+    /**
+     * Parameter close to log2 of the mean folded residual
+     */
+    private static int getRiceParameter(final long sum, final int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        int parameter = 0;
+        while (parameter < MAX_RICE_PARAMETER && ((long) count << (parameter + 1)) < sum) {
+            parameter++;
+        }
+        return parameter;
+    }
+
+    private static long estimateRiceBits(final long sum, final int count, final int parameter) {
+        return (long) count * (parameter + 1) + (sum >> parameter);
+    }
+
+    private int getBlockSizeCode(final int count) {
+        switch (count) {
+            case 192:
+                return 1;
+            case 576:
+                return 2;
+            case 1152:
+                return 3;
+            case 2304:
+                return 4;
+            case 4608:
+                return 5;
+            case 256:
+                return 8;
+            case 512:
+                return 9;
+            case 1024:
+                return 10;
+            case 2048:
+                return 11;
+            case 4096:
+                return 12;
+            case 8192:
+                return 13;
+            case 16384:
+                return 14;
+            case 32768:
+                return 15;
+            default:
+                return count <= 256 ? 6 : 7;
+        }
+    }
+
+    private int getSampleRateCode() {
+        switch (sampleRate) {
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            default:
+                if (sampleRate % 1000 == 0 && sampleRate / 1000 <= 255) {
+                    return 12;
+                }
+                if (sampleRate <= 65535) {
+                    return 13;
+                }
+                return sampleRate % 10 == 0 ? 14 : 0;
+        }
+    }
+
+    /**
+     * Frame number in the UTF-8 like coding of the frame header
+     */
+    private void writeUtf8(final long value) {
+        final BitWriter frame = writer;
+        if (value < 0x80) {
+            frame.writeBits((int) value, 8);
+            return;
+        }
+
+        int extraBytes = 1;
+        while (extraBytes < 6 && value >= 1L << (6 + 5 * extraBytes)) {
+            extraBytes++;
+        }
+
+        final int firstBits = 6 - extraBytes;
+        final int lead = (0xff << (7 - extraBytes)) & 0xff;
+        frame.writeBits(lead | (int) (value >>> (6 * extraBytes)) & ((1 << firstBits) - 1), 8);
+        for (int i = extraBytes - 1; i >= 0; i--) {
+            frame.writeBits(0x80 | (int) (value >>> (6 * i)) & 0x3f, 8);
+        }
+    }
+
+    private static int crc8(final byte[] data, final int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int crc16(final byte[] data, final int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * MSB first bit writer over a fixed buffer
+     */
+    private static class BitWriter {
+        private final byte[] buffer;
+        private int length;
+        private long accumulator;
+        private int accumulatorBits;
+
+        private BitWriter(final int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        private void reset() {
+            length = 0;
+            accumulator = 0;
+            accumulatorBits = 0;
+        }
+
+        /**
+         * @return number of complete bytes written
+         */
+        private int getLength() {
+            return length;
+        }
+
+        private void writeBits(final int value, final int bits) {
+            if (bits == 0) {
+                return;
+            }
+            accumulator = (accumulator << bits) | (value & (0xffffffffL >>> (32 - bits)));
+            accumulatorBits += bits;
+            while (accumulatorBits >= 8) {
+                accumulatorBits -= 8;
+                buffer[length++] = (byte) (accumulator >>> accumulatorBits);
+            }
+        }
+
+        private void writeRice(final int value, final int parameter) {
+            int quotient = value >>> parameter;
+            while (quotient >= 32) {
+                writeBits(0, 32);
+                quotient -= 32;
+            }
+            writeBits(0, quotient);
+            writeBits((1 << parameter) | (value & ((1 << parameter) - 1)), parameter + 1);
+        }
+
+        private void alignToByte() {
+            if (accumulatorBits > 0) {
+                writeBits(0, 8 - accumulatorBits);
+            }
+        }
+    }
+}
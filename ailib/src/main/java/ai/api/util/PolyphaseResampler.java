@@ -0,0 +1,214 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.util;
+
+/**
+ * Streaming sample rate converter of 16 bit mono PCM with rational ratio L/M.
+ * <p>
+ * Windowed sinc low pass filter is split into L phases, so every output sample costs
+ * only {@code tapsPerPhase} multiplications and no zero stuffed samples are processed.
+ * Coefficients are kept in Q15 fixed point. State is kept between calls, so audio can be passed in chunks
+ * of any size. Instance is not thread safe.
+ */
+public class PolyphaseResampler {
+
+    public static final int DEFAULT_TAPS_PER_PHASE = 16;
+
+    private static final int COEFFICIENT_BITS = 15;
+
+    private final int inputRate;
+    private final int outputRate;
+
+    /**
+     * Interpolation and decimation factors
+     */
+    private final int up;
+    private final int down;
+
+    private final int tapsPerPhase;
+
+    /**
+     * coefficients[phase][tap], tap 0 is applied to the newest input sample
+     */
+    private final int[][] coefficients;
+
+    /**
+     * Last tapsPerPhase - 1 input samples followed by the current input
+     */
+    private short[] window;
+
+    /**
+     * Position of the next output sample in 1/up input samples, relative to the first sample of the current input
+     */
+    private long position;
+
+    public PolyphaseResampler(final int inputRate, final int outputRate) {
+        this(inputRate, outputRate, DEFAULT_TAPS_PER_PHASE);
+    }
+
+    /**
+     * @param tapsPerPhase filter length per output sample, longer filter gives sharper cutoff
+     */
+    public PolyphaseResampler(final int inputRate, final int outputRate, final int tapsPerPhase) {
+        if (inputRate <= 0 || outputRate <= 0 || tapsPerPhase <= 0) {
+            throw new IllegalArgumentException("Sample rates and taps count must be positive");
+        }
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.tapsPerPhase = tapsPerPhase;
+
+        final int gcd = gcd(inputRate, outputRate);
+        up = outputRate / gcd;
+        down = inputRate / gcd;
+
+        coefficients = createCoefficients(up, down, tapsPerPhase);
+        window = new short[tapsPerPhase - 1 + 1024];
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * @return delay introduced by the filter in output samples
+     */
+    public double getDelay() {
+        return (up * tapsPerPhase - 1) / 2.0 / down;
+    }
+
+    /**
+     * @return max number of input samples which produce at most outputSamples samples
+     */
+    public int getMaxInputSamples(final int outputSamples) {
+        return (int) ((long) outputSamples * down / up);
+    }
+
+    /**
+     * @return max number of output samples produced from inputSamples samples
+     */
+    public int getMaxOutputSamples(final int inputSamples) {
+        return (int) (((long) inputSamples * up + down - 1) / down);
+    }
+
+    /**
+     * Converts 16 bit little endian samples
+     * @param output buffer for at least {@link #getMaxOutputSamples(int)} samples
+     * @return number of bytes written to output
+     */
+    public int resample(final byte[] input, final int inputOffset, final int inputLength,
+                        final byte[] output, final int outputOffset) {
+        final int inputSamples = inputLength / 2;
+        final int historyLength = tapsPerPhase - 1;
+        ensureWindow(historyLength + inputSamples);
+
+        final short[] samples = window;
+        for (int i = 0, j = inputOffset; i < inputSamples; i++, j += 2) {
+            samples[historyLength + i] = (short) ((input[j] & 0xff) | (input[j + 1] << 8));
+        }
+
+        int outputIndex = outputOffset;
+        final long end = (long) inputSamples * up;
+        long pos = position;
+        while (pos < end) {
+            final int newest = historyLength + (int) (pos / up);
+            final int[] phase = coefficients[(int) (pos % up)];
+
+            long acc = 0;
+            for (int k = 0; k < tapsPerPhase; k++) {
+                acc += phase[k] * samples[newest - k];
+            }
+
+            final int value = clamp((acc + (1 << (COEFFICIENT_BITS - 1))) >> COEFFICIENT_BITS);
+            output[outputIndex++] = (byte) value;
+            output[outputIndex++] = (byte) (value >> 8);
+            pos += down;
+        }
+        position = pos - end;
+
+        // keep the newest samples as history of the next call
+        System.arraycopy(samples, inputSamples, samples, 0, historyLength);
+        return outputIndex - outputOffset;
+    }
+
+    /**
+     * Forgets the history, e.g. before a new recording
+     */
+    public void reset() {
+        position = 0;
+        for (int i = 0; i < tapsPerPhase - 1; i++) {
+            window[i] = 0;
+        }
+    }
+
+    private void ensureWindow(final int length) {
+        if (window.length < length) {
+            final short[] newWindow = new short[length];
+            System.arraycopy(window, 0, newWindow, 0, tapsPerPhase - 1);
+            window = newWindow;
+        }
+    }
+
+    /**
+     * Blackman windowed sinc with the cutoff at the lower of the two Nyquist frequencies
+     */
+    private static int[][] createCoefficients(final int up, final int down, final int tapsPerPhase) {
+        final int length = up * tapsPerPhase;
+        final double cutoff = 0.5 / Math.max(up, down) * 0.9;
+        final double center = (length - 1) / 2.0;
+
+        final double[] prototype = new double[length];
+        for (int i = 0; i < length; i++) {
+            final double x = i - center;
+            final double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            final double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+            prototype[i] = sinc * window;
+        }
+
+        // every phase is normalized to unit gain, so DC level doesn't ripple between phases
+        final int[][] coefficients = new int[up][tapsPerPhase];
+        for (int phase = 0; phase < up; phase++) {
+            double sum = 0;
+            for (int k = 0; k < tapsPerPhase; k++) {
+                sum += prototype[phase + k * up];
+            }
+            for (int k = 0; k < tapsPerPhase; k++) {
+                coefficients[phase][k] = (int) Math.round(prototype[phase + k * up] / sum * (1 << COEFFICIENT_BITS));
+            }
+        }
+        return coefficients;
+    }
+
+    private static int clamp(final long value) {
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (int) value;
+    }
+
+    private static int gcd(final int a, final int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
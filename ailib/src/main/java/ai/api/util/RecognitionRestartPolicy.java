@@ -0,0 +1,225 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.util;
+
+import android.speech.SpeechRecognizer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which speech recognizer errors are recovered transparently by restarting recognition
+ * instead of being reported to the user. Every error code has its own retry budget per listening
+ * session, restarts are delayed with jittered exponential backoff.
+ */
+public class RecognitionRestartPolicy {
+
+    public enum Action {
+        /**
+         * Report error to the listener
+         */
+        FAIL,
+
+        /**
+         * Restart listening with the same recognizer
+         */
+        RESTART,
+
+        /**
+         * Destroy recognizer, create new one and restart listening
+         */
+        RECREATE
+    }
+
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 100;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 1600;
+
+    private final Map<Integer, Rule> rules = new HashMap<>();
+    private final Map<Integer, Integer> attempts = new HashMap<>();
+    private final Random random = new Random();
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    private int sessionRetries;
+    private long restartDelay;
+
+    private final AtomicInteger recoveredCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicInteger retryCount = new AtomicInteger();
+
+    public RecognitionRestartPolicy() {
+        this(DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public RecognitionRestartPolicy(final long baseDelayMillis, final long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Policy used by default. Recognizer errors which happen before user started speaking are retried,
+     * busy and client errors additionally recreate the recognizer.
+     */
+    public static RecognitionRestartPolicy createDefault() {
+        final RecognitionRestartPolicy policy = new RecognitionRestartPolicy();
+        policy.setRule(SpeechRecognizer.ERROR_NO_MATCH, 3, Action.RESTART, true);
+        policy.setRule(SpeechRecognizer.ERROR_RECOGNIZER_BUSY, 2, Action.RECREATE, true);
+        policy.setRule(SpeechRecognizer.ERROR_CLIENT, 1, Action.RECREATE, true);
+        policy.setRule(SpeechRecognizer.ERROR_NETWORK_TIMEOUT, 1, Action.RESTART, false);
+        return policy;
+    }
+
+    /**
+     * Policy which never restarts recognition, all errors are reported to the listener.
+     */
+    public static RecognitionRestartPolicy createDisabled() {
+        return new RecognitionRestartPolicy();
+    }
+
+    /**
+     * Sets retry rule for the error code
+     *
+     * @param errorCode        one of the SpeechRecognizer.ERROR_* codes
+     * @param budget           max number of restarts for this error code per listening session
+     * @param action           restart action, FAIL removes the rule
+     * @param beforeReadyOnly  if true, error is retried only if recognizer was not ready for speech yet
+     */
+    public synchronized void setRule(final int errorCode, final int budget, final Action action, final boolean beforeReadyOnly) {
+        if (action == Action.FAIL || budget <= 0) {
+            rules.remove(errorCode);
+        } else {
+            rules.put(errorCode, new Rule(budget, action, beforeReadyOnly));
+        }
+    }
+
+    /**
+     * Must be called when new listening session is started by the user
+     */
+    public synchronized void reset() {
+        attempts.clear();
+        sessionRetries = 0;
+        restartDelay = 0;
+    }
+
+    /**
+     * Consumes retry budget for the error
+     *
+     * @param errorCode         SpeechRecognizer error code
+     * @param wasReadyForSpeech true if recognizer reported onReadyForSpeech in the current attempt
+     * @return action which should be done with the recognizer
+     */
+    public synchronized Action onError(final int errorCode, final boolean wasReadyForSpeech) {
+        final Rule rule = rules.get(errorCode);
+        if (rule == null || (rule.beforeReadyOnly && wasReadyForSpeech)) {
+            return Action.FAIL;
+        }
+
+        final Integer used = attempts.get(errorCode);
+        final int attempt = (used != null ? used : 0) + 1;
+        if (attempt > rule.budget) {
+            return Action.FAIL;
+        }
+
+        attempts.put(errorCode, attempt);
+        sessionRetries++;
+        retryCount.incrementAndGet();
+        restartDelay = calculateDelay(attempt);
+        return rule.action;
+    }
+
+    /**
+     * @return delay in millis before restart, calculated by the last {@link #onError(int, boolean)} call
+     */
+    public synchronized long getRestartDelay() {
+        return restartDelay;
+    }
+
+    /**
+     * Must be called when listening session produced recognition results
+     */
+    public synchronized void onSessionSucceeded() {
+        if (sessionRetries > 0) {
+            recoveredCount.incrementAndGet();
+        }
+        sessionRetries = 0;
+    }
+
+    /**
+     * Must be called when listening session error was reported to the listener
+     */
+    public synchronized void onSessionFailed() {
+        failedCount.incrementAndGet();
+        sessionRetries = 0;
+    }
+
+    /**
+     * @return number of sessions which succeeded after at least one restart
+     */
+    public int getRecoveredCount() {
+        return recoveredCount.get();
+    }
+
+    /**
+     * @return number of sessions which ended with the error reported to the listener
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return total number of restarts
+     */
+    public int getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return recovered / (recovered + failed), or 0 if there were no errors
+     */
+    public float getRecoveryRatio() {
+        final int recovered = recoveredCount.get();
+        final int total = recovered + failedCount.get();
+        return total > 0 ? (float) recovered / total : 0f;
+    }
+
+    private long calculateDelay(final int attempt) {
+        final long exponential = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 16));
+        // equal jitter: keep a half of the delay, randomize another half
+        final long half = exponential / 2;
+        return half + (half > 0 ? (long) (random.nextDouble() * half) : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "recovered: " + getRecoveredCount() + ", failed: " + getFailedCount() + ", retries: " + getRetryCount();
+    }
+
+    private static class Rule {
+        private final int budget;
+        private final Action action;
+        private final boolean beforeReadyOnly;
+
+        private Rule(final int budget, final Action action, final boolean beforeReadyOnly) {
+            this.budget = budget;
+            this.action = action;
+            this.beforeReadyOnly = beforeReadyOnly;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.util;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Background thread shared by all AIService instances for recognition bookkeeping.
+ * Thread is started lazily and lives as long as the process.
+ */
+public class RecognitionThread {
+
+    private static final String THREAD_NAME = "AIService-recognition";
+
+    private static HandlerThread thread;
+
+    private RecognitionThread() {
+    }
+
+    public static synchronized Looper getLooper() {
+        if (thread == null) {
+            // below the UI and render threads, bookkeeping must not take frame time
+            thread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+            thread.start();
+        }
+        return thread.getLooper();
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic timestamps of the voice request stages. Marking a stage allocates only while tracing is
+ * enabled, either the {@link TraceSpans} ring buffer or system tracing on Android 10 and newer,
+ * so timings are recorded for every session.
+ * Timings of the recent responses can be found by the response id.
+ */
+public class Timings {
+
+    public static final int START_LISTENING = 0;
+    public static final int READY_FOR_SPEECH = 1;
+    public static final int SPEECH_BEGIN = 2;
+    public static final int SPEECH_END = 3;
+    public static final int FINAL_TRANSCRIPT = 4;
+    public static final int REQUEST_SENT = 5;
+    public static final int RESPONSE_RECEIVED = 6;
+    public static final int PARSE_DONE = 7;
+    public static final int LISTENER_DELIVERED = 8;
+
+    public static final int STAGES_COUNT = 9;
+
+    private static final String[] STAGE_NAMES = {
+            "startListening",
+            "readyForSpeech",
+            "speechBegin",
+            "speechEnd",
+            "finalTranscript",
+            "requestSent",
+            "responseReceived",
+            "parseDone",
+            "listenerDelivered"
+    };
+
+    /**
+     * Max number of responses which timings are kept
+     */
+    private static final int REGISTRY_CAPACITY = 32;
+
+    private static final Random traceIdRandom = new Random();
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Map<String, Timings> registry = new LinkedHashMap<String, Timings>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Timings> eldest) {
+            return size() > REGISTRY_CAPACITY;
+        }
+    };
+
+    /**
+     * System.nanoTime() of every stage, 0 if stage was not reached
+     */
+    private final AtomicLongArray timestamps = new AtomicLongArray(STAGES_COUNT);
+
+    private final String traceId = createTraceId();
+    private volatile String responseId;
+
+    /**
+     * @return new timings with {@link #START_LISTENING} stage marked
+     */
+    public static Timings start() {
+        final Timings timings = new Timings();
+        timings.mark(START_LISTENING);
+        return timings;
+    }
+
+    /**
+     * Records the current time for the stage, time of the previous mark is replaced
+     */
+    public void mark(final int stage) {
+        timestamps.set(stage, System.nanoTime());
+        TraceSpans.onStage(this, stage);
+    }
+
+    public boolean isMarked(final int stage) {
+        return timestamps.get(stage) != 0;
+    }
+
+    /**
+     * @return System.nanoTime() of the stage, 0 if it was not marked
+     */
+    public long getNanos(final int stage) {
+        return timestamps.get(stage);
+    }
+
+    /**
+     * @return time between the stages in milliseconds, -1 if one of them was not marked
+     */
+    public long getMillis(final int fromStage, final int toStage) {
+        final long from = timestamps.get(fromStage);
+        final long to = timestamps.get(toStage);
+        if (from == 0 || to == 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(to - from);
+    }
+
+    /**
+     * @return random id of the session, sent to the server in {@link TraceSpans#TRACE_ID_HEADER} header
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return id of the response registered with these timings, null if there is no response yet
+     */
+    public String getResponseId() {
+        return responseId;
+    }
+
+    public static String getStageName(final int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Keeps timings of the response, so they can be found with {@link #forResponse(String)}
+     */
+    public static void register(final String responseId, final Timings timings) {
+        if (responseId == null || timings == null) {
+            return;
+        }
+        timings.responseId = responseId;
+        synchronized (registry) {
+            registry.put(responseId, timings);
+        }
+    }
+
+    /**
+     * @param responseId value of AIResponse.getId()
+     * @return timings of one of the recent responses or null
+     */
+    public static Timings forResponse(final String responseId) {
+        if (responseId == null) {
+            return null;
+        }
+        synchronized (registry) {
+            return registry.get(responseId);
+        }
+    }
+
+    /**
+     * 64 bit random value in hex, java.util.UUID is avoided because SecureRandom seeding may block the main thread
+     */
+    private static String createTraceId() {
+        long value = traceIdRandom.nextLong();
+        final char[] chars = new char[16];
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return stages relative to the first marked one, e.g. "startListening=+0ms, readyForSpeech=+350ms"
+     */
+    @Override
+    public String toString() {
+        long origin = 0;
+        for (int i = 0; i < STAGES_COUNT; i++) {
+            final long timestamp = timestamps.get(i);
+            if (timestamp != 0 && (origin == 0 || timestamp < origin)) {
+                origin = timestamp;
+            }
+        }
+
+        final StringBuilder builder = new StringBuilder("Timings{traceId=").append(traceId);
+        for (int i = 0; i < STAGES_COUNT; i++) {
+            final long timestamp = timestamps.get(i);
+            if (timestamp == 0) {
+                continue;
+            }
+            builder.append(", ").append(STAGE_NAMES[i]).append("=+")
+                    .append(TimeUnit.NANOSECONDS.toMillis(timestamp - origin)).append("ms");
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trace spans of the listening sessions: capture, recognition, request and parse.
+ * Spans are derived from the {@link Timings} stages and carry the trace id of the session,
+ * which is also sent to the server in the {@link #TRACE_ID_HEADER} header.
+ * <p>
+ * Spans are written to android.os.Trace, so systrace and perfetto captures show them next to the app frames.
+ * HTTP request is a regular section on the calling thread (Android 4.3+). Spans which start and end
+ * on different threads are async sections, available on Android 10+.
+ * Recent spans can also be kept in memory, see {@link #setRingBufferCapacity(int)}.
+ */
+public class TraceSpans {
+
+    private static final String TAG = TraceSpans.class.getName();
+
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+
+    public static final int SPAN_CAPTURE = 0;
+    public static final int SPAN_RECOGNITION = 1;
+    public static final int SPAN_REQUEST = 2;
+    public static final int SPAN_PARSE = 3;
+
+    private static final String[] SPAN_NAMES = {"capture", "recognition", "request", "parse"};
+    private static final String[] SECTION_NAMES = {"apiai:capture", "apiai:recognition", "apiai:request", "apiai:parse"};
+    private static final String HTTP_SECTION_NAME = "apiai:http";
+
+    private static final Object ringLock = new Object();
+    private static Span[] ring = new Span[0];
+    private static int ringNext;
+    private static int ringCount;
+
+    private TraceSpans() {
+    }
+
+    /**
+     * Keeps the latest spans in memory. Spans are not kept by default.
+     * @param capacity max number of spans, 0 to stop keeping them
+     */
+    public static void setRingBufferCapacity(final int capacity) {
+        synchronized (ringLock) {
+            ring = new Span[capacity];
+            ringNext = 0;
+            ringCount = 0;
+        }
+    }
+
+    /**
+     * @return spans kept in the ring buffer, oldest first
+     */
+    public static List<Span> getRecentSpans() {
+        return getSpans(null);
+    }
+
+    /**
+     * @param traceId trace id of the session, e.g. {@link Timings#getTraceId()} of {@link Timings#forResponse(String)}
+     * @return spans of the session kept in the ring buffer, oldest first
+     */
+    public static List<Span> getSpans(final String traceId) {
+        synchronized (ringLock) {
+            final List<Span> spans = new ArrayList<>(ringCount);
+            final int start = ringCount < ring.length ? 0 : ringNext;
+            for (int i = 0; i < ringCount; i++) {
+                final Span span = ring[(start + i) % ring.length];
+                if (traceId == null || traceId.equals(span.traceId)) {
+                    spans.add(span);
+                }
+            }
+            return spans;
+        }
+    }
+
+    public static String getSpanName(final int span) {
+        return SPAN_NAMES[span];
+    }
+
+    /**
+     * Starts trace section of the HTTP request on the current thread, must be followed by {@link #endHttpSection()}
+     */
+    public static void beginHttpSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            beginSection(HTTP_SECTION_NAME);
+        }
+    }
+
+    public static void endHttpSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            endSection();
+        }
+    }
+
+    /**
+     * Called by {@link Timings} when the stage is marked
+     */
+    static void onStage(final Timings timings, final int stage) {
+        switch (stage) {
+            case Timings.START_LISTENING:
+                AsyncSections.begin(timings, SPAN_CAPTURE);
+                break;
+            case Timings.SPEECH_END:
+                endSpan(timings, SPAN_CAPTURE, Timings.START_LISTENING, Timings.SPEECH_END);
+                AsyncSections.begin(timings, SPAN_RECOGNITION);
+                break;
+            case Timings.FINAL_TRANSCRIPT:
+                endSpan(timings, SPAN_RECOGNITION, Timings.SPEECH_END, Timings.FINAL_TRANSCRIPT);
+                break;
+            case Timings.REQUEST_SENT:
+                AsyncSections.begin(timings, SPAN_REQUEST);
+                break;
+            case Timings.RESPONSE_RECEIVED:
+                endSpan(timings, SPAN_REQUEST, Timings.REQUEST_SENT, Timings.RESPONSE_RECEIVED);
+                if (!timings.isMarked(Timings.FINAL_TRANSCRIPT)) {
+                    // server side recognition ends with the response
+                    endSpan(timings, SPAN_RECOGNITION, Timings.SPEECH_END, Timings.RESPONSE_RECEIVED);
+                }
+                AsyncSections.begin(timings, SPAN_PARSE);
+                break;
+            case Timings.PARSE_DONE:
+                endSpan(timings, SPAN_PARSE, Timings.RESPONSE_RECEIVED, Timings.PARSE_DONE);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void endSpan(final Timings timings, final int span, final int fromStage, final int toStage) {
+        if (!timings.isMarked(fromStage)) {
+            return;
+        }
+        AsyncSections.end(timings, span);
+
+        synchronized (ringLock) {
+            if (ring.length == 0) {
+                return;
+            }
+            ring[ringNext] = new Span(span, timings.getTraceId(), timings.getNanos(fromStage), timings.getNanos(toStage));
+            ringNext = (ringNext + 1) % ring.length;
+            if (ringCount < ring.length) {
+                ringCount++;
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(final String name) {
+        android.os.Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSection() {
+        android.os.Trace.endSection();
+    }
+
+    /**
+     * Async sections of android.os.Trace. They are public since Android 10, which is newer than the compile SDK,
+     * so the methods are looked up once by reflection.
+     */
+    private static class AsyncSections {
+
+        private static final int ANDROID_10 = 29;
+
+        private static final Object[] NO_ARGS = new Object[0];
+
+        private static final Method isEnabledMethod;
+        private static final Method beginMethod;
+        private static final Method endMethod;
+
+        static {
+            Method isEnabled = null;
+            Method begin = null;
+            Method end = null;
+            if (Build.VERSION.SDK_INT >= ANDROID_10) {
+                try {
+                    isEnabled = android.os.Trace.class.getMethod("isEnabled");
+                    begin = android.os.Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                    end = android.os.Trace.class.getMethod("endAsyncSection", String.class, int.class);
+                } catch (final NoSuchMethodException e) {
+                    Log.w(TAG, "Async trace sections are not available", e);
+                    isEnabled = null;
+                    begin = null;
+                    end = null;
+                }
+            }
+            isEnabledMethod = isEnabled;
+            beginMethod = begin;
+            endMethod = end;
+        }
+
+        private static void begin(final Timings timings, final int span) {
+            invoke(beginMethod, timings, span);
+        }
+
+        private static void end(final Timings timings, final int span) {
+            invoke(endMethod, timings, span);
+        }
+
+        private static void invoke(final Method method, final Timings timings, final int span) {
+            if (method == null) {
+                return;
+            }
+            try {
+                if (!(Boolean) isEnabledMethod.invoke(null, NO_ARGS)) {
+                    return;
+                }
+                // sections with the same name are matched by the cookie
+                final int cookie = timings.getTraceId().hashCode() * SPAN_NAMES.length + span;
+                method.invoke(null, SECTION_NAMES[span], cookie);
+            } catch (final Exception e) {
+                Log.w(TAG, "Can't write trace section", e);
+            }
+        }
+    }
+
+    /**
+     * Completed span of the session
+     */
+    public static class Span {
+
+        private final int span;
+        private final String traceId;
+        private final long startNanos;
+        private final long endNanos;
+
+        private Span(final int span, final String traceId, final long startNanos, final long endNanos) {
+            this.span = span;
+            this.traceId = traceId;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        /**
+         * @return one of SPAN_ constants
+         */
+        public int getSpan() {
+            return span;
+        }
+
+        public String getName() {
+            return SPAN_NAMES[span];
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        /**
+         * @return System.nanoTime() of the span start
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getEndNanos() {
+            return endNanos;
+        }
+
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+        }
+
+        @Override
+        public String toString() {
+            return getName() + "[" + traceId + "] " + getDurationMillis() + "ms";
+        }
+    }
+}
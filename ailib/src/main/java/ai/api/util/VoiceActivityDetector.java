@@ -18,27 +18,67 @@ package ai.api.util;
 
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
+import ai.api.metrics.Counter;
+import ai.api.metrics.MetricsRegistry;
 
+/**
+ * Energy and zero crossing rate based voice activity detector of 16 bit mono PCM.
+ * Frame length, zero crossing bounds and noise learning length are derived from the sample rate
+ * and the frame duration, so the same audio at 8, 16, 32 or 48 kHz gets the same decisions.
+ */
 public class VoiceActivityDetector {
 
     public static final String TAG = VoiceActivityDetector.class.getName();
 
+    /**
+     * Default length of the frame passed to {@link #processBuffer(byte[], int)}
+     */
+    public static final int FRAME_DURATION_MILLIS = 10;
+
+    /**
+     * Frame size at 16 kHz, use {@link #getFrameSizeInBytes()} for other sample rates
+     */
     public static final int FRAME_SIZE_IN_BYTES = 320;
+    /**
+     * Max gap between active frames of one sequence
+     */
     private static final int SEQUENCE_LENGTH_MILLIS = 30;
-    private static final int MIN_SPEECH_SEQUENCE_COUNT = 3;
+
+    /**
+     * Length of the active sequence which is considered speech
+     */
+    private static final int MIN_SPEECH_SEQUENCE_MILLIS = 30;
     private static final long MIN_SILENCE_MILLIS = 800;
     private static final long MAX_SILENCE_MILLIS = 3500;
     private static final long SILENCE_DIFF_MILLIS = MAX_SILENCE_MILLIS - MIN_SILENCE_MILLIS;
-    private static final int NOISE_FRAMES = 15;
-    public static final int NOISE_BYTES = NOISE_FRAMES * FRAME_SIZE_IN_BYTES;
+
+    /**
+     * Noise level is learned from the beginning of the audio
+     */
+    private static final int NOISE_MILLIS = 150;
+
+    /**
+     * Noise learning length at 16 kHz, use {@link #getNoiseBytes()} for other sample rates
+     */
+    public static final int NOISE_BYTES = NOISE_MILLIS * 16 * 2;
     private static final double ENERGY_FACTOR = 3.1;
-    private static final int MIN_CZ = 5;
-    private static final int MAX_CZ = 15;
+
+    /**
+     * Zero crossing rate bounds of the speech frame, 5..15 crossings in 10 ms
+     */
+    private static final int MIN_CZ_PER_SECOND = 500;
+    private static final int MAX_CZ_PER_SECOND = 1500;
+
+    private static final Counter falseStarts = MetricsRegistry.getDefault().counter(MetricsRegistry.VAD_FALSE_STARTS);
 
     private final int sampleRate;
+    private final int frameDurationMillis;
+    private final int frameSizeInBytes;
+    private final int noiseFrames;
+    private final int minCz;
+    private final int maxCz;
+    private final int sequenceLengthMillis;
+    private final int minSpeechSequenceCount;
 
     private SpeechEventsListener eventsListener;
 
@@ -73,7 +113,50 @@ public class VoiceActivityDetector {
     private int size = 0;
 
     public VoiceActivityDetector(final int sampleRate) {
+        this(sampleRate, FRAME_DURATION_MILLIS);
+    }
+
+    /**
+     * @param sampleRate          e.g. 8000, 16000, 32000 or 48000
+     * @param frameDurationMillis length of the frames passed to {@link #processBuffer(byte[], int)},
+     *                            frame must contain whole number of samples
+     */
+    public VoiceActivityDetector(final int sampleRate, final int frameDurationMillis) {
+        if (sampleRate <= 0 || frameDurationMillis <= 0 || sampleRate * frameDurationMillis % 1000 != 0) {
+            throw new IllegalArgumentException("Frame of " + frameDurationMillis + "ms at " + sampleRate
+                    + "Hz doesn't contain whole number of samples");
+        }
         this.sampleRate = sampleRate;
+        this.frameDurationMillis = frameDurationMillis;
+        frameSizeInBytes = sampleRate * frameDurationMillis / 1000 * 2; // 16 bit encoding
+        noiseFrames = Math.max(1, NOISE_MILLIS / frameDurationMillis);
+        minCz = MIN_CZ_PER_SECOND * frameDurationMillis / 1000;
+        maxCz = MAX_CZ_PER_SECOND * frameDurationMillis / 1000;
+        // adjacent frames always make a sequence, even if frames are longer than the gap
+        sequenceLengthMillis = Math.max(SEQUENCE_LENGTH_MILLIS, frameDurationMillis + 1);
+        minSpeechSequenceCount = Math.max(1, MIN_SPEECH_SEQUENCE_MILLIS / frameDurationMillis);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getFrameDurationMillis() {
+        return frameDurationMillis;
+    }
+
+    /**
+     * @return size of the frame of 16 bit audio at the detector sample rate
+     */
+    public int getFrameSizeInBytes() {
+        return frameSizeInBytes;
+    }
+
+    /**
+     * @return size of the audio used to learn the noise level
+     */
+    public int getNoiseBytes() {
+        return noiseFrames * frameSizeInBytes;
     }
 
     public void processBuffer(final byte[] buffer, final int bytesRead) {
@@ -81,17 +164,14 @@ public class VoiceActivityDetector {
             return;
         }
 
-        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, bytesRead).order(ByteOrder.LITTLE_ENDIAN);
-        final ShortBuffer shorts = byteBuffer.asShortBuffer();
-
-        final boolean active = isFrameActive(shorts);
-
         final int frameSize = bytesRead / 2; // 16 bit encoding
-        time = frameNumber * frameSize * 1000 / sampleRate;
+        final boolean active = isFrameActive(buffer, frameSize);
+
+        time = (long) frameNumber * frameSize * 1000 / sampleRate;
 
         if (active) {
-            if (lastActiveTime >= 0 && (time - lastActiveTime) < SEQUENCE_LENGTH_MILLIS) {
-                if (++sequenceCounter >= MIN_SPEECH_SEQUENCE_COUNT) {
+            if (lastActiveTime >= 0 && (time - lastActiveTime) < sequenceLengthMillis) {
+                if (++sequenceCounter >= minSpeechSequenceCount) {
                     if (!speechActive) {
                         onSpeechBegin();
                     }
@@ -100,6 +180,10 @@ public class VoiceActivityDetector {
                     silenceMillis = Math.max(MIN_SILENCE_MILLIS, silenceMillis - SILENCE_DIFF_MILLIS / 4);
                 }
             } else {
+                if (!speechActive && lastActiveTime >= 0 && sequenceCounter < minSpeechSequenceCount) {
+                    // previous activity was too short to be speech
+                    falseStarts.increment();
+                }
                 sequenceCounter = 1;
             }
             lastActiveTime = time;
@@ -114,17 +198,20 @@ public class VoiceActivityDetector {
         }
     }
 
-    private boolean isFrameActive(final ShortBuffer frame) {
+    /**
+     * @param frame     16 bit little endian samples
+     * @param frameSize number of samples
+     */
+    private boolean isFrameActive(final byte[] frame, final int frameSize) {
 
         int lastSign = 0;
         int czCount = 0;
         double energy = 0.0;
 
-        final int frameSize = frame.limit();
         size += frameSize;
 
         for (int i = 0; i < frameSize; i++) {
-            final short raw = frame.get(i);
+            final short raw = (short) ((frame[2 * i] & 0xff) | (frame[2 * i + 1] << 8));
             final double amplitude = (double) raw / (double) Short.MAX_VALUE;
             energy += (float) amplitude * (float) amplitude / (double) frameSize;
 
@@ -138,10 +225,10 @@ public class VoiceActivityDetector {
         }
 
         boolean result = false;
-        if (++frameNumber < NOISE_FRAMES) {
-            noiseEnergy += (energy / (double) NOISE_FRAMES);
+        if (++frameNumber < noiseFrames) {
+            noiseEnergy += (energy / (double) noiseFrames);
         } else {
-            if (czCount >= MIN_CZ && czCount <= MAX_CZ) {
+            if (czCount >= minCz && czCount <= maxCz) {
                 if (energy > noiseEnergy * ENERGY_FACTOR) {
                     result = true;
                 }
@@ -0,0 +1,306 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import android.Manifest;
+import android.content.Context;
+import android.speech.RecognitionListener;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+import ai.api.BuildConfig;
+import ai.api.R;
+import ai.api.RequestExtras;
+import ai.api.android.AIConfiguration;
+import ai.api.android.AIService;
+import ai.api.android.RecognitionStateMachine;
+import ai.api.metrics.MetricsRegistry;
+import ai.api.model.AIContext;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+import ai.api.model.Result;
+import ai.api.services.GoogleRecognitionServiceImpl;
+import ai.api.ui.AIButton;
+import ai.api.ui.AIDialog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class AIDialogTest {
+
+    private static final int SESSIONS_COUNT = 50;
+
+    private Context context;
+    private AIConfiguration config;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        config = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.System);
+    }
+
+    @Test
+    public void testDialogIsReusedWithWarmService() {
+        final FakeService service = new FakeService(config, context);
+        final AIDialog aiDialog = createDialog(service);
+
+        showAndListen(aiDialog);
+        assertEquals(1, service.startCount);
+        assertTrue(aiDialog.getDialog().isShowing());
+        assertEquals(RecognitionStateMachine.State.listening, service.getState());
+
+        service.result(createResponse());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertFalse(aiDialog.getDialog().isShowing());
+
+        showAndListen(aiDialog);
+        assertEquals(2, service.startCount);
+        assertSame(service, aiDialog.getAIService());
+        assertTrue(aiDialog.getDialog().isShowing());
+        assertEquals(0, service.pauseCount);
+    }
+
+    @Test
+    public void testCancelKeepsServiceForNextSession() {
+        final FakeService service = new FakeService(config, context);
+        final AIDialog aiDialog = createDialog(service);
+
+        showAndListen(aiDialog);
+        aiDialog.getDialog().cancel();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, service.cancelCount);
+        assertEquals(0, service.pauseCount);
+
+        showAndListen(aiDialog);
+        assertEquals(2, service.startCount);
+        assertEquals(RecognitionStateMachine.State.listening, service.getState());
+    }
+
+    @Test
+    public void testHiddenDialogIsDisconnectedFromService() {
+        final FakeService service = new FakeService(config, context);
+        final AIDialog aiDialog = createDialog(service);
+        final CountingDialogListener dialogListener = new CountingDialogListener();
+        aiDialog.setResultsListener(dialogListener);
+
+        showAndListen(aiDialog);
+        service.result(createResponse());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertFalse(aiDialog.getDialog().isShowing());
+        assertEquals(1, dialogListener.resultCount);
+
+        // service is used by another screen while the dialog is hidden
+        final AIButton aiButton = (AIButton) aiDialog.getDialog().findViewById(R.id.micButton);
+        assertNull(aiButton.getAIService());
+        service.startListening();
+        service.result(createResponse());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, dialogListener.resultCount);
+
+        showAndListen(aiDialog);
+        assertSame(service, aiButton.getAIService());
+        assertEquals(RecognitionStateMachine.State.listening, service.getState());
+        service.result(createResponse());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(2, dialogListener.resultCount);
+    }
+
+    @Test
+    public void testReleaseCancelsAndDisconnects() {
+        final FakeService service = new FakeService(config, context);
+        final AIDialog aiDialog = createDialog(service);
+        final CountingDialogListener dialogListener = new CountingDialogListener();
+        aiDialog.setResultsListener(dialogListener);
+
+        showAndListen(aiDialog);
+        aiDialog.release();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertFalse(aiDialog.getDialog().isShowing());
+        assertEquals(1, service.cancelCount);
+
+        service.startListening();
+        service.result(createResponse());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(0, dialogListener.resultCount);
+    }
+
+    @Test
+    public void testReusedDialogStartsListeningFasterThanNewOne() throws Exception {
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(Manifest.permission.RECORD_AUDIO);
+
+        final GoogleRecognitionServiceImpl warmService = new GoogleRecognitionServiceImpl(context, config);
+        final AIDialog warmDialog = createDialog(warmService);
+        final RecognitionListener warmRecognizer = createRecognizerListener(warmService);
+        final long recordedBefore = getRecordedCount();
+
+        // taps alternate, so both paths run with the same JIT state
+        long coldNanos = 0;
+        long warmNanos = 0;
+        for (int i = 0; i < SESSIONS_COUNT; i++) {
+            // new service and dialog created for the tap
+            final long coldStart = System.nanoTime();
+            final GoogleRecognitionServiceImpl coldService = new GoogleRecognitionServiceImpl(context, config);
+            final AIDialog coldDialog = createDialog(coldService);
+            showAndListen(coldDialog);
+            createRecognizerListener(coldService).onReadyForSpeech(null);
+            coldNanos += System.nanoTime() - coldStart;
+            assertEquals(RecognitionStateMachine.State.listening, coldService.getState());
+            coldDialog.release();
+
+            // the same dialog shown again
+            final long warmStart = System.nanoTime();
+            showAndListen(warmDialog);
+            warmRecognizer.onReadyForSpeech(null);
+            warmNanos += System.nanoTime() - warmStart;
+            assertEquals(RecognitionStateMachine.State.listening, warmService.getState());
+            warmDialog.getDialog().cancel();
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+
+        assertTrue("Tap to listening, new dialog: " + coldNanos / SESSIONS_COUNT / 1000
+                        + "us, reused dialog: " + warmNanos / SESSIONS_COUNT / 1000 + "us",
+                warmNanos < coldNanos);
+        assertEquals(2 * SESSIONS_COUNT, getRecordedCount() - recordedBefore);
+        assertTrue(warmDialog.getLastTapToListeningMillis() >= 0);
+    }
+
+    private static long getRecordedCount() {
+        return MetricsRegistry.getDefault().histogram(MetricsRegistry.DIALOG_TAP_TO_LISTENING).snapshot().getCount();
+    }
+
+    private AIDialog createDialog(final AIService service) {
+        final FrameLayout contentView = new FrameLayout(context);
+        final AIButton aiButton = new AIButton(context);
+        aiButton.setId(R.id.micButton);
+        contentView.addView(aiButton);
+        return new AIDialog(context, service, contentView);
+    }
+
+    /**
+     * Listener which the service gives to SpeechRecognizer
+     */
+    private static RecognitionListener createRecognizerListener(final GoogleRecognitionServiceImpl service) throws Exception {
+        final Class<?> listenerClass = Class.forName(GoogleRecognitionServiceImpl.class.getName() + "$InternalRecognitionListener");
+        final Constructor<?> constructor = listenerClass.getDeclaredConstructor(GoogleRecognitionServiceImpl.class);
+        constructor.setAccessible(true);
+        return (RecognitionListener) constructor.newInstance(service);
+    }
+
+    private static void showAndListen(final AIDialog aiDialog) {
+        aiDialog.showAndListen();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    private static AIResponse createResponse() {
+        final AIResponse response = new AIResponse();
+        response.setResult(new Result());
+        return response;
+    }
+
+    private static class CountingDialogListener implements AIDialog.AIDialogListener {
+
+        private int resultCount;
+
+        @Override
+        public void onResult(final AIResponse result) {
+            resultCount++;
+        }
+
+        @Override
+        public void onError(final AIError error) {
+        }
+
+        @Override
+        public void onCancelled() {
+        }
+    }
+
+    /**
+     * Service which starts listening immediately and reports results when the test asks for them
+     */
+    private static class FakeService extends AIService {
+
+        private int startCount;
+        private int cancelCount;
+        private int pauseCount;
+
+        private FakeService(final AIConfiguration config, final Context context) {
+            super(config, context);
+        }
+
+        @Override
+        public void startListening() {
+            startListening(new RequestExtras());
+        }
+
+        @Override
+        public void startListening(final List<AIContext> contexts) {
+            startListening(new RequestExtras(contexts, null));
+        }
+
+        @Override
+        public void startListening(final RequestExtras requestExtras) {
+            startCount++;
+            stateMachine.start();
+            stateMachine.listening();
+            onListeningStarted();
+        }
+
+        @Override
+        public void stopListening() {
+        }
+
+        @Override
+        public void cancel() {
+            cancelCount++;
+            if (stateMachine.cancel()) {
+                onListeningCancelled();
+            }
+        }
+
+        @Override
+        public void pause() {
+            pauseCount++;
+        }
+
+        private void result(final AIResponse response) {
+            stateMachine.processing();
+            stateMachine.finish();
+            onResult(response);
+        }
+    }
+}
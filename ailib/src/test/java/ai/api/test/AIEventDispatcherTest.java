@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import ai.api.AIListener;
+import ai.api.BuildConfig;
+import ai.api.android.AIEventDispatcher;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+
+import static org.junit.Assert.assertEquals;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class AIEventDispatcherTest {
+
+    private static final int QUEUE_CAPACITY = 4;
+
+    @Test
+    public void testSessionEndIsDeliveredToStalledListener() {
+        final AIEventDispatcher dispatcher = new AIEventDispatcher(QUEUE_CAPACITY);
+        final StalledExecutor executor = new StalledExecutor();
+        final RecordingListener listener = new RecordingListener();
+        dispatcher.addListener(listener, executor);
+
+        // listener doesn't run while the queue fills up
+        for (int i = 0; i < QUEUE_CAPACITY * 4; i++) {
+            dispatcher.onListeningStarted();
+            dispatcher.onAudioLevel(i);
+        }
+        dispatcher.onListeningFinished();
+        dispatcher.onAudioLevel(100);
+        dispatcher.onResult(new AIResponse());
+        dispatcher.onListeningCanceled();
+        dispatcher.onError(new AIError("error"));
+
+        executor.runAll();
+
+        final List<String> events = listener.events;
+        final int size = events.size();
+        assertEquals("Events: " + events, "finished", events.get(size - 4));
+        assertEquals("Events: " + events, "result", events.get(size - 3));
+        assertEquals("Events: " + events, "canceled", events.get(size - 2));
+        assertEquals("Events: " + events, "error", events.get(size - 1));
+
+        int startedCount = 0;
+        for (final String event : events) {
+            if (event.equals("started")) {
+                startedCount++;
+            }
+        }
+        assertEquals(QUEUE_CAPACITY * 4, startedCount);
+    }
+
+    @Test
+    public void testAudioLevelsAreCoalesced() {
+        final AIEventDispatcher dispatcher = new AIEventDispatcher(QUEUE_CAPACITY);
+        final StalledExecutor executor = new StalledExecutor();
+        final RecordingListener listener = new RecordingListener();
+        dispatcher.addListener(listener, executor);
+
+        for (int i = 0; i < 100; i++) {
+            dispatcher.onAudioLevel(i);
+        }
+        executor.runAll();
+
+        assertEquals(1, listener.events.size());
+        assertEquals("level 99.0", listener.events.get(0));
+        assertEquals(0, dispatcher.getDroppedEventCount());
+    }
+
+    @Test
+    public void testDirectListenerIsCalledOnReportingThread() {
+        final AIEventDispatcher dispatcher = new AIEventDispatcher(QUEUE_CAPACITY);
+        final RecordingListener listener = new RecordingListener();
+        dispatcher.addListener(listener, AIEventDispatcher.DIRECT_EXECUTOR);
+
+        dispatcher.onListeningStarted();
+        assertEquals(1, listener.events.size());
+        assertEquals(Thread.currentThread(), listener.thread);
+    }
+
+    /**
+     * Keeps tasks until the test runs them, like an executor of the busy thread
+     */
+    private static class StalledExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        private void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements AIListener {
+        private final List<String> events = new ArrayList<>();
+        private Thread thread;
+
+        private void record(final String event) {
+            events.add(event);
+            thread = Thread.currentThread();
+        }
+
+        @Override
+        public void onResult(final AIResponse result) {
+            record("result");
+        }
+
+        @Override
+        public void onError(final AIError error) {
+            record("error");
+        }
+
+        @Override
+        public void onAudioLevel(final float level) {
+            record("level " + level);
+        }
+
+        @Override
+        public void onListeningStarted() {
+            record("started");
+        }
+
+        @Override
+        public void onListeningCanceled() {
+            record("canceled");
+        }
+
+        @Override
+        public void onListeningFinished() {
+            record("finished");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import android.Manifest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+
+import ai.api.BuildConfig;
+import ai.api.android.AIConfiguration;
+import ai.api.android.AIService;
+import ai.api.android.AIServicePool;
+import ai.api.services.SpeaktoitRecognitionServiceImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class AIServicePoolTest {
+
+    private AIServicePool pool;
+    private AIConfiguration englishConfig;
+    private AIConfiguration germanConfig;
+
+    @Before
+    public void setUp() {
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(Manifest.permission.RECORD_AUDIO);
+
+        pool = new AIServicePool(RuntimeEnvironment.application, AIServicePool.DEFAULT_MAX_SERVICES, 1);
+        englishConfig = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.Speaktoit);
+        germanConfig = new AIConfiguration("token", AIConfiguration.SupportedLanguages.German,
+                AIConfiguration.RecognitionEngine.Speaktoit);
+    }
+
+    @Test
+    public void testServiceIsCached() {
+        final AIService service = pool.getService(englishConfig);
+        assertSame(service, pool.getService(englishConfig));
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getHitCount());
+    }
+
+    @Test
+    public void testCallerPauseThenPoolPause() throws Exception {
+        final AIService service = pool.getService(englishConfig);
+
+        // activity onPause, then application goes to background
+        service.pause();
+        pool.pauseAll();
+        assertNull(getRecorder(service));
+
+        final AIService resumed = pool.getService(englishConfig);
+        assertSame(service, resumed);
+        assertNotNull(getRecorder(service));
+    }
+
+    @Test
+    public void testPoolResumeThenCallerResume() throws Exception {
+        final AIService service = pool.getService(englishConfig);
+
+        // taking another language over the live limit pauses the first service
+        pool.getService(germanConfig);
+        assertNull(getRecorder(service));
+        assertEquals(1, pool.getLiveRecognizerCount());
+
+        // pool resumes the service it hands out, activity onResume resumes it again
+        pool.getService(englishConfig);
+        final Object recorder = getRecorder(service);
+        final Object player = getPlayer(service);
+        assertNotNull(recorder);
+
+        service.resume();
+        assertSame("Repeated resume recreated the recorder", recorder, getRecorder(service));
+        assertSame("Repeated resume recreated the player", player, getPlayer(service));
+    }
+
+    @Test
+    public void testCallerPauseThenEvictionOverLimit() throws Exception {
+        final AIService service = pool.getService(englishConfig);
+
+        service.pause();
+        // the paused service is still live for the pool and is paused again over the limit
+        pool.getService(germanConfig);
+        assertNull(getRecorder(service));
+    }
+
+    @Test
+    public void testHedgedServicePausedByCallerAndPool() {
+        final AIConfiguration hedgedConfig = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.Hedged);
+        final AIService service = pool.getService(hedgedConfig);
+
+        service.pause();
+        pool.pauseAll();
+
+        assertSame(service, pool.getService(hedgedConfig));
+        service.resume();
+        assertEquals(1, pool.getLiveRecognizerCount());
+    }
+
+    private static Object getRecorder(final AIService service) throws Exception {
+        return getField(service, "audioRecord");
+    }
+
+    private static Object getPlayer(final AIService service) throws Exception {
+        return getField(service, "mediaPlayer");
+    }
+
+    private static Object getField(final AIService service, final String name) throws Exception {
+        final Field field = SpeaktoitRecognitionServiceImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(service);
+    }
+}
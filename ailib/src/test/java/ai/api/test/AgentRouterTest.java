@@ -0,0 +1,194 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ai.api.AIServiceException;
+import ai.api.BuildConfig;
+import ai.api.RequestExtras;
+import ai.api.android.AIConfiguration;
+import ai.api.android.AIDataService;
+import ai.api.android.AgentRouter;
+import ai.api.model.AIRequest;
+import ai.api.model.AIResponse;
+import ai.api.model.Result;
+
+import static org.junit.Assert.assertEquals;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class AgentRouterTest {
+
+    private static final int SLOW_AGENTS_COUNT = 12;
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private AgentRouter router;
+    private AIConfiguration config;
+
+    /**
+     * Released by the test, until then slow agents are blocked like requests on a stalled connection
+     */
+    private final CountDownLatch slowAgentsRelease = new CountDownLatch(1);
+    private final AtomicInteger slowRequestCount = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        router = new AgentRouter(RuntimeEnvironment.application);
+        config = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.System);
+    }
+
+    @After
+    public void tearDown() {
+        slowAgentsRelease.countDown();
+        router.close();
+    }
+
+    @Test
+    public void testDroppedRequestsDontDelayNextFanOut() throws Exception {
+        final String[] agentNames = new String[SLOW_AGENTS_COUNT + 1];
+        // the fast agent answers when all slow requests are sent, so every fan-out needs a thread per agent
+        router.addAgent("fast", new FakeDataService(config, false) {
+            private int requestCount;
+
+            @Override
+            public AIResponse request(final AIRequest request, final RequestExtras requestExtras) throws AIServiceException {
+                requestCount++;
+                final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (slowRequestCount.get() < SLOW_AGENTS_COUNT * requestCount && System.currentTimeMillis() < deadline) {
+                    Thread.yield();
+                }
+                return super.request(request, requestExtras);
+            }
+        });
+        agentNames[0] = "fast";
+        for (int i = 1; i <= SLOW_AGENTS_COUNT; i++) {
+            agentNames[i] = "slow" + i;
+            router.addAgent(agentNames[i], new FakeDataService(config, true));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            final long start = System.nanoTime();
+            final AgentRouter.AgentResponse response = router.requestFirst(new AIRequest("hello"), null, null,
+                    TIMEOUT_MILLIS, agentNames);
+            final long millis = (System.nanoTime() - start) / 1000000;
+            assertEquals("Fan-out " + i + " took " + millis + "ms", "fast", response.getAgentName());
+            assertEquals(SLOW_AGENTS_COUNT * (i + 1), slowRequestCount.get());
+        }
+
+        assertEquals(3, router.getStats("fast").getRequestCount());
+
+        // slow requests ignore interrupts and complete later, their responses are not used
+        slowAgentsRelease.countDown();
+        final List<String> pending = new ArrayList<>();
+        for (int attempt = 0; attempt < 500; attempt++) {
+            pending.clear();
+            for (int i = 1; i <= SLOW_AGENTS_COUNT; i++) {
+                if (router.getStats(agentNames[i]).getCancelledCount() < 3) {
+                    pending.add(agentNames[i]);
+                }
+            }
+            if (pending.isEmpty()) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals("Agents with requests not counted as cancelled: " + pending, 0, pending.size());
+
+        for (int i = 1; i <= SLOW_AGENTS_COUNT; i++) {
+            final AgentRouter.AgentStats stats = router.getStats(agentNames[i]);
+            assertEquals(agentNames[i] + " " + stats, 0, stats.getRequestCount());
+            assertEquals(agentNames[i] + " " + stats, 0, stats.getErrorCount());
+        }
+    }
+
+    @Test
+    public void testBestResponseIsChosen() throws Exception {
+        router.addAgent("low", new FakeDataService(config, false, 0.3f));
+        router.addAgent("high", new FakeDataService(config, false, 0.9f));
+
+        final AgentRouter.AgentResponse response = router.requestBest(new AIRequest("hello"), null, null,
+                TIMEOUT_MILLIS, "low", "high");
+        assertEquals("high", response.getAgentName());
+        assertEquals(1, router.getStats("low").getRequestCount());
+        assertEquals(0, router.getStats("low").getCancelledCount());
+    }
+
+    @Test(expected = AIServiceException.class)
+    public void testTimeoutWhenNoAgentAnswers() throws Exception {
+        router.addAgent("slow", new FakeDataService(config, true));
+        router.requestFirst(new AIRequest("hello"), null, null, 100, "slow");
+    }
+
+    /**
+     * Data service which answers without network, the slow one waits for the test like blocking socket I/O,
+     * which is not interrupted by Future.cancel(true)
+     */
+    private class FakeDataService extends AIDataService {
+
+        private final boolean slow;
+        private final float score;
+
+        FakeDataService(final AIConfiguration config, final boolean slow) {
+            this(config, slow, 1f);
+        }
+
+        private FakeDataService(final AIConfiguration config, final boolean slow, final float score) {
+            super(RuntimeEnvironment.application, config);
+            this.slow = slow;
+            this.score = score;
+        }
+
+        @Override
+        public AIResponse request(final AIRequest request, final RequestExtras requestExtras) throws AIServiceException {
+            if (slow) {
+                slowRequestCount.incrementAndGet();
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        slowAgentsRelease.await();
+                        break;
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            final Result result = new Result();
+            result.setScore(score);
+            final AIResponse response = new AIResponse();
+            response.setResult(result);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import android.Manifest;
+import android.speech.RecognitionListener;
+import android.speech.SpeechRecognizer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import ai.api.AIListener;
+import ai.api.BuildConfig;
+import ai.api.android.AIConfiguration;
+import ai.api.android.AIService;
+import ai.api.android.RecognitionEngineStats;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+import ai.api.services.AutoRecognitionServiceImpl;
+import ai.api.services.GoogleRecognitionServiceImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class AutoRecognitionTest {
+
+    private static final AIConfiguration.RecognitionEngine ENGINE = AIConfiguration.RecognitionEngine.System;
+
+    private RecognitionEngineStats stats;
+    private AutoRecognitionServiceImpl service;
+    private int errorCount;
+
+    @Before
+    public void setUp() {
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(Manifest.permission.RECORD_AUDIO);
+
+        final AIConfiguration config = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.Auto);
+        stats = new RecognitionEngineStats(RuntimeEnvironment.application);
+        service = new AutoRecognitionServiceImpl(RuntimeEnvironment.application, config, stats);
+
+        errorCount = 0;
+        service.setListener(new ErrorCountingListener());
+    }
+
+    @Test
+    public void testNoSpeechIsNotRecorded() throws Exception {
+        failSession(SpeechRecognizer.ERROR_SPEECH_TIMEOUT, false);
+        failSession(SpeechRecognizer.ERROR_NO_MATCH, true);
+
+        assertEquals(2, errorCount);
+        assertFalse(service.isEngineFailure());
+        assertEquals(0, stats.getSampleCount(ENGINE, getNetworkType()));
+    }
+
+    @Test
+    public void testEngineErrorsAreRecorded() throws Exception {
+        failSession(SpeechRecognizer.ERROR_SERVER, true);
+        failSession(SpeechRecognizer.ERROR_NETWORK, true);
+
+        assertEquals(2, errorCount);
+        assertTrue(service.isEngineFailure());
+        assertEquals(2, stats.getSampleCount(ENGINE, getNetworkType()));
+        assertEquals(1f, stats.getErrorRate(ENGINE, getNetworkType()), 0f);
+    }
+
+    /**
+     * Runs session which ends with the recognizer error after the recognizer was ready for speech
+     */
+    private void failSession(final int error, final boolean speechEnded) throws Exception {
+        service.startListening();
+        assertEquals(ENGINE, service.getCurrentEngine());
+
+        final RecognitionListener recognizerListener = createRecognizerListener(getEngine());
+        recognizerListener.onReadyForSpeech(null);
+        if (speechEnded) {
+            recognizerListener.onEndOfSpeech();
+        }
+        recognizerListener.onError(error);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    private static String getNetworkType() {
+        return RecognitionEngineStats.getNetworkType(RuntimeEnvironment.application);
+    }
+
+    @SuppressWarnings("unchecked")
+    private GoogleRecognitionServiceImpl getEngine() throws Exception {
+        final Field field = AutoRecognitionServiceImpl.class.getDeclaredField("engines");
+        field.setAccessible(true);
+        final Map<AIConfiguration.RecognitionEngine, AIService> engines =
+                (Map<AIConfiguration.RecognitionEngine, AIService>) field.get(service);
+        return (GoogleRecognitionServiceImpl) engines.get(ENGINE);
+    }
+
+    /**
+     * Listener which the engine gives to SpeechRecognizer
+     */
+    private static RecognitionListener createRecognizerListener(final GoogleRecognitionServiceImpl engine) throws Exception {
+        final Class<?> listenerClass = Class.forName(GoogleRecognitionServiceImpl.class.getName() + "$InternalRecognitionListener");
+        final Constructor<?> constructor = listenerClass.getDeclaredConstructor(GoogleRecognitionServiceImpl.class);
+        constructor.setAccessible(true);
+        return (RecognitionListener) constructor.newInstance(engine);
+    }
+
+    private class ErrorCountingListener implements AIListener {
+        @Override
+        public void onResult(final AIResponse result) {
+        }
+
+        @Override
+        public void onError(final AIError error) {
+            errorCount++;
+        }
+
+        @Override
+        public void onAudioLevel(final float level) {
+        }
+
+        @Override
+        public void onListeningStarted() {
+        }
+
+        @Override
+        public void onListeningCanceled() {
+        }
+
+        @Override
+        public void onListeningFinished() {
+        }
+    }
+}
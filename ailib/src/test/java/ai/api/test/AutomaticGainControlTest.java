@@ -0,0 +1,182 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import ai.api.BuildConfig;
+import ai.api.util.AutomaticGainControl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class AutomaticGainControlTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /**
+     * Envelope level the gain control aims at, -12 dBFS
+     */
+    private static final int TARGET_LEVEL = 8192;
+
+    private static final float MAX_GAIN = 8;
+
+    /**
+     * Samples per 10 ms
+     */
+    private static final int FRAME_SAMPLES = SAMPLE_RATE / 100;
+
+    @Test
+    public void testQuietSpeechIsBroughtToTarget() {
+        final AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        final short[] samples = tone(SAMPLE_RATE * 2, 2000, 0);
+        process(agc, samples);
+
+        final int peak = peak(samples, SAMPLE_RATE * 3 / 2, samples.length);
+        assertTrue("Peak of the amplified tone: " + peak, peak > TARGET_LEVEL * 3 / 4 && peak < TARGET_LEVEL * 5 / 4);
+        assertTrue("Gain: " + agc.getGain(), agc.getGain() > 1);
+    }
+
+    @Test
+    public void testNoiseIsNotAmplifiedPastMaxGain() {
+        final AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        final Random random = new Random(1);
+        final short[] samples = new short[SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (random.nextInt(101) - 50);
+        }
+        final short[] input = samples.clone();
+
+        process(agc, samples);
+
+        assertTrue("Gain: " + agc.getGain(), agc.getGain() <= MAX_GAIN);
+        final int peak = peak(samples, 0, samples.length);
+        // DC blocker may shift samples by a few units before the gain
+        assertTrue("Peak of the amplified noise: " + peak, peak <= MAX_GAIN * (peak(input, 0, input.length) + 5));
+        assertTrue("Peak of the amplified noise: " + peak, peak < TARGET_LEVEL / 4);
+
+        // digital silence stays silent
+        final short[] silence = new short[SAMPLE_RATE];
+        process(agc, silence);
+        assertEquals(0, peak(silence, SAMPLE_RATE / 2, silence.length));
+    }
+
+    @Test
+    public void testClickRecoversWithinReleaseTime() {
+        final AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        process(agc, tone(SAMPLE_RATE * 2, 2000, 0));
+        final float steadyGain = agc.getGain();
+
+        // 1 ms full scale click
+        final short[] click = new short[SAMPLE_RATE / 1000];
+        for (int i = 0; i < click.length; i++) {
+            click[i] = Short.MAX_VALUE;
+        }
+        process(agc, click);
+        // gain is updated every few samples
+        process(agc, tone(FRAME_SAMPLES, 2000, 0));
+        assertTrue("Gain after click: " + agc.getGain() + ", steady: " + steadyGain, agc.getGain() < steadyGain / 2);
+
+        final int releaseFrames = AutomaticGainControl.DEFAULT_RELEASE_MILLIS / 10;
+        for (int frame = 1; frame < releaseFrames; frame++) {
+            process(agc, tone(FRAME_SAMPLES, 2000, 0));
+        }
+        assertTrue("Gain after release time: " + agc.getGain() + ", steady: " + steadyGain, agc.getGain() > steadyGain / 2);
+
+        for (int frame = 0; frame < releaseFrames * 2; frame++) {
+            process(agc, tone(FRAME_SAMPLES, 2000, 0));
+        }
+        assertEquals(steadyGain, agc.getGain(), steadyGain * 0.05f);
+    }
+
+    @Test
+    public void testDcOffsetIsRemoved() {
+        final AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        final short[] samples = tone(SAMPLE_RATE, 4000, 5000);
+        process(agc, samples);
+
+        long sum = 0;
+        final int from = SAMPLE_RATE * 3 / 4;
+        for (int i = from; i < samples.length; i++) {
+            sum += samples[i];
+        }
+        final double mean = (double) sum / (samples.length - from);
+        assertTrue("Mean of the output: " + mean, Math.abs(mean) < 50);
+    }
+
+    @Test
+    public void testOutputIsClampedAtFullScale() {
+        final AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        process(agc, tone(SAMPLE_RATE, 500, 0));
+        assertEquals(MAX_GAIN, agc.getGain(), 0.01f);
+
+        // loud sound comes faster than the attack time, so max gain is applied to its first samples
+        final short[] loud = tone(FRAME_SAMPLES, 30000, 0);
+        final short[] input = loud.clone();
+        process(agc, loud);
+
+        boolean clamped = false;
+        for (int i = 0; i < loud.length; i++) {
+            // no wrap around, sign is kept
+            assertTrue("Sample " + i + ": " + input[i] + " -> " + loud[i], input[i] == 0 || (input[i] > 0) == (loud[i] > 0));
+            clamped |= loud[i] == Short.MAX_VALUE || loud[i] == Short.MIN_VALUE;
+        }
+        assertTrue(clamped);
+    }
+
+    /**
+     * 300 Hz tone
+     */
+    private static short[] tone(final int length, final int amplitude, final int dcOffset) {
+        final short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) Math.round(dcOffset + amplitude * Math.sin(2 * Math.PI * 300 * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    /**
+     * Processes the samples in place through the little endian buffer used by the recorder
+     */
+    private static void process(final AutomaticGainControl agc, final short[] samples) {
+        final byte[] buffer = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            buffer[2 * i] = (byte) samples[i];
+            buffer[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        agc.process(buffer, 0, buffer.length);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((buffer[2 * i] & 0xff) | (buffer[2 * i + 1] << 8));
+        }
+    }
+
+    private static int peak(final short[] samples, final int from, final int to) {
+        int peak = 0;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import org.jflac.FLACDecoder;
+import org.jflac.PCMProcessor;
+import org.jflac.metadata.StreamInfo;
+import org.jflac.util.ByteData;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import ai.api.BuildConfig;
+import ai.api.android.AIConfiguration;
+import ai.api.util.EncodingInputStream;
+import ai.api.util.FlacEncoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private static final String[] FIXTURES = {
+            "speech.raw", "silence.raw", "noiseOnly.raw", "noiseAndNotification.raw", "what_is_your_name.raw", "log.raw"};
+
+    /**
+     * AudioRecord error code returned by the recorder stream after the recording is stopped
+     */
+    private static final int RECORDER_STOPPED = -3;
+
+    @Test
+    public void testLosslessRoundTrip() throws IOException {
+        for (final String fixture : FIXTURES) {
+            final byte[] pcm = readFixture(fixture);
+            final byte[] decoded = decode(encode(pcm));
+            assertArrayEquals(fixture, Arrays.copyOf(pcm, pcm.length & ~1), decoded);
+        }
+    }
+
+    @Test
+    public void testEdgeCases() throws IOException {
+        final Random random = new Random(1);
+
+        // full scale noise is written verbatim, single sample and exact block sizes
+        final int[] lengths = {1, 2, 5, FlacEncoder.DEFAULT_BLOCK_SIZE, FlacEncoder.DEFAULT_BLOCK_SIZE * 3 + 7};
+        for (final int length : lengths) {
+            final byte[] pcm = new byte[length * 2];
+            random.nextBytes(pcm);
+            assertArrayEquals("length " + length, pcm, decode(encode(pcm)));
+        }
+
+        final byte[] extremes = new byte[FlacEncoder.DEFAULT_BLOCK_SIZE * 4];
+        for (int i = 0; i < extremes.length; i += 2) {
+            final int sample = (i / 2) % 2 == 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+            extremes[i] = (byte) sample;
+            extremes[i + 1] = (byte) (sample >> 8);
+        }
+        assertArrayEquals(extremes, decode(encode(extremes)));
+    }
+
+    @Test
+    public void testCompressionRatio() throws IOException {
+        for (final String fixture : FIXTURES) {
+            final byte[] pcm = readFixture(fixture);
+            final double ratio = (double) encode(pcm).length / pcm.length;
+            // background noise of the silence fixture is coded with the smaller Rice parameters
+            assertTrue(fixture + " ratio " + ratio, ratio < (fixture.equals("silence.raw") ? 0.4 : 0.7));
+        }
+    }
+
+    @Test
+    public void testMemoryIsBounded() throws IOException {
+        // ten minutes of audio are never buffered as a whole
+        final byte[] speech = readFixture("speech.raw");
+        final long totalBytes = SAMPLE_RATE * 2L * 600;
+        final InputStream source = new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) {
+                if (position >= totalBytes) {
+                    return RECORDER_STOPPED;
+                }
+                final int start = (int) (position % speech.length);
+                final int count = Math.min(length, speech.length - start);
+                System.arraycopy(speech, start, buffer, offset, count);
+                position += count;
+                return count;
+            }
+        };
+
+        final EncodingInputStream encodingStream = new EncodingInputStream(source, new FlacEncoder(SAMPLE_RATE));
+        final byte[] buffer = new byte[1024];
+        int maxBuffered = 0;
+        long encodedBytes = 0;
+        int bytesRead;
+        while ((bytesRead = encodingStream.read(buffer)) >= 0) {
+            encodedBytes += bytesRead;
+            maxBuffered = Math.max(maxBuffered, encodingStream.available());
+        }
+
+        assertTrue("buffered " + maxBuffered, maxBuffered < 8192);
+        assertTrue(encodedBytes < totalBytes);
+    }
+
+    @Test
+    public void testEncodeCost() throws IOException {
+        final byte[] speech = readFixture("speech.raw");
+        final double audioSeconds = speech.length / 2.0 / SAMPLE_RATE;
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        };
+
+        // warm up, then the best of several runs to filter out GC and JIT pauses
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 20; run++) {
+            final long start = System.nanoTime();
+            final FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+            encoder.start(output);
+            for (int offset = 0; offset < speech.length; offset += 640) {
+                encoder.encode(speech, offset, Math.min(640, speech.length - offset), output);
+            }
+            encoder.finish(output);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        final double millisPerSecond = best / 1e6 / audioSeconds;
+        // encoding keeps up with capture with a wide margin
+        assertTrue("Encode CPU per second of audio: " + millisPerSecond + "ms", millisPerSecond < 50);
+    }
+
+    @Test
+    public void testFlacUploadIsOptIn() {
+        final AIConfiguration config = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.Speaktoit);
+        assertEquals(AIConfiguration.AudioEncoding.Pcm, config.getAudioEncoding());
+
+        config.setAudioEncoding(AIConfiguration.AudioEncoding.Flac);
+        config.setAudioEncoding(null);
+        assertEquals(AIConfiguration.AudioEncoding.Pcm, config.getAudioEncoding());
+    }
+
+    @Test
+    public void testStreamHeader() throws IOException {
+        final byte[] flac = encode(new byte[0]);
+        assertEquals(42, flac.length);
+        assertEquals("fLaC", new String(flac, 0, 4, "US-ASCII"));
+    }
+
+    /**
+     * Encodes through the stream in odd sized chunks, like the recorder stream delivers them
+     */
+    private static byte[] encode(final byte[] pcm) throws IOException {
+        final InputStream source = new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) {
+                if (position >= pcm.length) {
+                    return RECORDER_STOPPED;
+                }
+                final int count = Math.min(Math.min(length, 333), pcm.length - position);
+                System.arraycopy(pcm, position, buffer, offset, count);
+                position += count;
+                return count;
+            }
+        };
+
+        final InputStream encodingStream = new EncodingInputStream(source, new FlacEncoder(SAMPLE_RATE));
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[777];
+        int bytesRead;
+        while ((bytesRead = encodingStream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, bytesRead);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] decode(final byte[] flac) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final FLACDecoder decoder = new FLACDecoder(new ByteArrayInputStream(flac));
+        decoder.addPCMProcessor(new PCMProcessor() {
+            @Override
+            public void processStreamInfo(final StreamInfo streamInfo) {
+                assertEquals(SAMPLE_RATE, streamInfo.getSampleRate());
+                assertEquals(1, streamInfo.getChannels());
+                assertEquals(16, streamInfo.getBitsPerSample());
+            }
+
+            @Override
+            public void processPCM(final ByteData pcm) {
+                outputStream.write(pcm.getData(), 0, pcm.getLen());
+            }
+        });
+        decoder.decode();
+        return outputStream.toByteArray();
+    }
+
+    private byte[] readFixture(final String name) throws IOException {
+        final InputStream inputStream = getClass().getClassLoader().getResourceAsStream(name);
+        try {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import android.Manifest;
+import android.speech.RecognitionListener;
+import android.speech.SpeechRecognizer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import ai.api.AIListener;
+import ai.api.BuildConfig;
+import ai.api.android.AIConfiguration;
+import ai.api.android.RecognitionStateMachine;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+import ai.api.services.GoogleRecognitionServiceImpl;
+
+import static org.junit.Assert.assertEquals;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class GoogleRecognitionRestartTest {
+
+    private GoogleRecognitionServiceImpl service;
+    private RecognitionListener recognizerListener;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(Manifest.permission.RECORD_AUDIO);
+
+        final AIConfiguration config = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.System);
+
+        service = new GoogleRecognitionServiceImpl(RuntimeEnvironment.application, config);
+
+        // recognizer service is not bound in tests, its callbacks are called by the test
+        recognizerListener = createRecognizerListener(service);
+
+        events.clear();
+        service.setListener(new RecordingListener());
+    }
+
+    @Test
+    public void testNetworkTimeoutAfterSpeechRestartsRecognition() {
+        service.startListening();
+        recognizerListener.onReadyForSpeech(null);
+        recognizerListener.onEndOfSpeech();
+        assertEquals(RecognitionStateMachine.State.processing, service.getState());
+
+        recognizerListener.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(RecognitionStateMachine.State.starting, service.getState());
+
+        recognizerListener.onReadyForSpeech(null);
+        assertEquals(RecognitionStateMachine.State.listening, service.getState());
+
+        final List<String> expected = new ArrayList<>();
+        expected.add("started");
+        expected.add("finished");
+        expected.add("started");
+        assertEquals(expected, events);
+    }
+
+    @Test
+    public void testErrorReportedWhenRestartBudgetIsUsed() {
+        service.startListening();
+        recognizerListener.onReadyForSpeech(null);
+        recognizerListener.onEndOfSpeech();
+        recognizerListener.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        recognizerListener.onReadyForSpeech(null);
+        recognizerListener.onEndOfSpeech();
+        recognizerListener.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals("error", events.get(events.size() - 1));
+        assertEquals(RecognitionStateMachine.State.idle, service.getState());
+    }
+
+    @Test
+    public void testCancelWhileRestartIsPending() {
+        service.startListening();
+        recognizerListener.onReadyForSpeech(null);
+        recognizerListener.onEndOfSpeech();
+        recognizerListener.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+
+        service.cancel();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(RecognitionStateMachine.State.cancelled, service.getState());
+        assertEquals("cancelled", events.get(events.size() - 1));
+    }
+
+    /**
+     * Listener which the service gives to SpeechRecognizer
+     */
+    private static RecognitionListener createRecognizerListener(final GoogleRecognitionServiceImpl service) throws Exception {
+        final Class<?> listenerClass = Class.forName(GoogleRecognitionServiceImpl.class.getName() + "$InternalRecognitionListener");
+        final Constructor<?> constructor = listenerClass.getDeclaredConstructor(GoogleRecognitionServiceImpl.class);
+        constructor.setAccessible(true);
+        return (RecognitionListener) constructor.newInstance(service);
+    }
+
+    private class RecordingListener implements AIListener {
+        @Override
+        public void onResult(final AIResponse result) {
+            events.add("result");
+        }
+
+        @Override
+        public void onError(final AIError error) {
+            events.add("error");
+        }
+
+        @Override
+        public void onAudioLevel(final float level) {
+        }
+
+        @Override
+        public void onListeningStarted() {
+            events.add("started");
+        }
+
+        @Override
+        public void onListeningCanceled() {
+            events.add("cancelled");
+        }
+
+        @Override
+        public void onListeningFinished() {
+            events.add("finished");
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.test;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ai.api.AIListener;
+import ai.api.BuildConfig;
+import ai.api.RequestExtras;
+import ai.api.android.AIConfiguration;
+import ai.api.android.AIService;
+import ai.api.android.RecognitionStateMachine;
+import ai.api.model.AIContext;
+import ai.api.model.AIError;
+import ai.api.model.AIResponse;
+import ai.api.model.Result;
+import ai.api.services.HedgedRecognitionServiceImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class HedgedRecognitionTest {
+
+    private AIConfiguration config;
+    private FakeEngine primary;
+    private FakeEngine secondary;
+    private HedgedRecognitionServiceImpl service;
+    private final List<String> events = new ArrayList<>();
+    private AIResponse receivedResponse;
+
+    @Before
+    public void setUp() {
+        final Context context = RuntimeEnvironment.application;
+        config = new AIConfiguration("token", AIConfiguration.SupportedLanguages.English,
+                AIConfiguration.RecognitionEngine.Hedged);
+
+        primary = new FakeEngine(config, context);
+        secondary = new FakeEngine(config, context);
+        service = new HedgedRecognitionServiceImpl(context, config, primary, secondary);
+
+        events.clear();
+        receivedResponse = null;
+        service.setListener(new RecordingListener());
+    }
+
+    @Test
+    public void testFirstResultWinsAndLoserIsCancelled() {
+        service.startListening();
+        assertTrue(primary.started);
+        assertTrue(secondary.started);
+
+        primary.listeningStarted();
+        secondary.listeningStarted();
+
+        final AIResponse response = createResponse();
+        secondary.result(response);
+
+        assertSame(response, receivedResponse);
+        assertTrue(primary.cancelled);
+        assertFalse(secondary.cancelled);
+        assertEquals(1, service.getWinCount(1));
+        assertEquals(0, service.getWinCount(0));
+        assertEquals(RecognitionStateMachine.State.idle, service.getState());
+
+        // late result of the cancelled engine is ignored
+        primary.result(createResponse());
+        assertSame(response, receivedResponse);
+
+        final List<String> expected = new ArrayList<>();
+        expected.add("started");
+        expected.add("finished");
+        expected.add("result");
+        assertEquals(expected, events);
+    }
+
+    @Test
+    public void testErrorOfOneEngineIsHidden() {
+        service.startListening();
+
+        primary.error(new AIError("no network"));
+        assertFalse(events.contains("error"));
+        assertFalse(secondary.cancelled);
+
+        final AIResponse response = createResponse();
+        secondary.result(response);
+
+        assertSame(response, receivedResponse);
+        assertFalse(events.contains("error"));
+    }
+
+    @Test
+    public void testErrorReportedWhenBothEnginesFail() {
+        service.startListening();
+
+        primary.error(new AIError("recognizer busy"));
+        secondary.error(new AIError("no network"));
+
+        assertEquals(1, countOf("error"));
+        assertEquals(RecognitionStateMachine.State.idle, service.getState());
+    }
+
+    @Test
+    public void testCancelStopsBothEngines() {
+        service.startListening();
+        primary.listeningStarted();
+
+        service.cancel();
+
+        assertTrue(primary.cancelled);
+        assertTrue(secondary.cancelled);
+        assertEquals(1, countOf("cancelled"));
+
+        // result arrived after cancel is dropped
+        secondary.result(createResponse());
+        assertEquals(null, receivedResponse);
+        assertEquals(RecognitionStateMachine.State.cancelled, service.getState());
+    }
+
+    @Test
+    public void testListeningFinishedStopsOtherEngine() {
+        service.startListening();
+        primary.listeningStarted();
+
+        primary.listeningFinished();
+
+        assertTrue(secondary.stopped);
+        assertEquals(RecognitionStateMachine.State.processing, service.getState());
+
+        secondary.listeningFinished();
+        assertEquals(1, countOf("finished"));
+    }
+
+    @Test
+    public void testEngineCancelledItselfCountsAsFailure() {
+        service.startListening();
+        primary.listeningStarted();
+        secondary.listeningStarted();
+
+        // e.g. voice activity detector heard no speech
+        secondary.cancelItself();
+        assertFalse(events.contains("cancelled"));
+
+        primary.error(new AIError("speech timeout"));
+
+        assertEquals(1, countOf("error"));
+        assertEquals(RecognitionStateMachine.State.idle, service.getState());
+
+        // next session is not rejected
+        primary.started = false;
+        service.startListening();
+        assertTrue(primary.started);
+    }
+
+    @Test
+    public void testSessionCancelledWhenBothEnginesCancelledThemselves() {
+        service.startListening();
+        primary.listeningStarted();
+
+        primary.cancelItself();
+        secondary.cancelItself();
+
+        assertEquals(1, countOf("cancelled"));
+        assertFalse(events.contains("error"));
+        assertEquals(RecognitionStateMachine.State.cancelled, service.getState());
+    }
+
+    private int countOf(final String event) {
+        int count = 0;
+        for (final String e : events) {
+            if (e.equals(event)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static AIResponse createResponse() {
+        final AIResponse response = new AIResponse();
+        response.setResult(new Result());
+        return response;
+    }
+
+    private class RecordingListener implements AIListener {
+        @Override
+        public void onResult(final AIResponse result) {
+            receivedResponse = result;
+            events.add("result");
+        }
+
+        @Override
+        public void onError(final AIError error) {
+            events.add("error");
+        }
+
+        @Override
+        public void onAudioLevel(final float level) {
+        }
+
+        @Override
+        public void onListeningStarted() {
+            events.add("started");
+        }
+
+        @Override
+        public void onListeningCanceled() {
+            events.add("cancelled");
+        }
+
+        @Override
+        public void onListeningFinished() {
+            events.add("finished");
+        }
+    }
+
+    /**
+     * Engine which reports events only when the test asks for them
+     */
+    private static class FakeEngine extends AIService {
+
+        private boolean started;
+        private boolean stopped;
+        private boolean cancelled;
+
+        private FakeEngine(final AIConfiguration config, final Context context) {
+            super(config, context);
+        }
+
+        @Override
+        public void startListening() {
+            startListening(new RequestExtras());
+        }
+
+        @Override
+        public void startListening(final List<AIContext> contexts) {
+            startListening(new RequestExtras(contexts, null));
+        }
+
+        @Override
+        public void startListening(final RequestExtras requestExtras) {
+            started = true;
+            stateMachine.start();
+        }
+
+        @Override
+        public void stopListening() {
+            stopped = true;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            if (stateMachine.cancel()) {
+                onListeningCancelled();
+            }
+        }
+
+        /**
+         * Cancellation which is not requested by the hedged service
+         */
+        private void cancelItself() {
+            if (stateMachine.cancel()) {
+                onListeningCancelled();
+            }
+        }
+
+        private void listeningStarted() {
+            stateMachine.listening();
+            onListeningStarted();
+        }
+
+        private void listeningFinished() {
+            stateMachine.processing();
+            onListeningFinished();
+        }
+
+        private void result(final AIResponse response) {
+            stateMachine.finish();
+            onResult(response);
+        }
+
+        private void error(final AIError error) {
+            stateMachine.finish();
+            onError(error);
+        }
+    }
+}
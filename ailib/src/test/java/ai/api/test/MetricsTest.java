@@ -0,0 +1,140 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+
+import ai.api.BuildConfig;
+import ai.api.metrics.Counter;
+import ai.api.metrics.Histogram;
+import ai.api.metrics.MetricsRegistry;
+import ai.api.metrics.MetricsSnapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class MetricsTest {
+
+    private static final String COUNTER_NAME = "test.counter";
+    private static final String HISTOGRAM_NAME = "test.histogram";
+
+    private static final int THREADS_COUNT = 16;
+    private static final int INCREMENTS_PER_THREAD = 10000;
+
+    @Test
+    public void testBucketBoundaries() {
+        assertEquals(0, Histogram.getBucketIndex(0));
+        assertEquals(0, Histogram.getBucketIndex(-5));
+        assertEquals(1, Histogram.getBucketIndex(1));
+        assertEquals(2, Histogram.getBucketIndex(2));
+        for (int k = 1; k < Histogram.BUCKETS_COUNT - 1; k++) {
+            final long lastOfBucket = (1L << k) - 1;
+            assertEquals("2^" + k + "-1", k, Histogram.getBucketIndex(lastOfBucket));
+            assertEquals("2^" + k, k + 1, Histogram.getBucketIndex(lastOfBucket + 1));
+            assertEquals(lastOfBucket, Histogram.getBucketUpperBound(k));
+        }
+
+        // the last bucket holds everything larger
+        final int overflowBucket = Histogram.BUCKETS_COUNT - 1;
+        assertEquals(overflowBucket, Histogram.getBucketIndex(1L << overflowBucket));
+        assertEquals(overflowBucket, Histogram.getBucketIndex(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Histogram.getBucketUpperBound(overflowBucket));
+    }
+
+    @Test
+    public void testHistogramSnapshot() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        final Histogram histogram = registry.histogram(HISTOGRAM_NAME);
+        assertEquals(0, histogram.snapshot().getPercentile(50));
+
+        // 0, 1, 3, 7, ..., 2^9-1
+        for (int k = 0; k < 10; k++) {
+            histogram.record((1L << k) - 1);
+        }
+        histogram.record(Long.MAX_VALUE / 2);
+
+        final MetricsSnapshot.HistogramSnapshot snapshot = registry.snapshot().getHistogram(HISTOGRAM_NAME);
+        assertEquals(11, snapshot.getCount());
+        assertEquals(Long.MAX_VALUE / 2, snapshot.getMax());
+        assertEquals((1L << 10) - 1 - 10 + Long.MAX_VALUE / 2, snapshot.getSum());
+        for (int k = 0; k < 10; k++) {
+            assertEquals(1, snapshot.getBucketCount(k));
+        }
+        assertEquals(1, snapshot.getBucketCount(Histogram.BUCKETS_COUNT - 1));
+
+        assertEquals(0, snapshot.getPercentile(0));
+        assertEquals(0, snapshot.getPercentile(9));
+        // 6th of 11 values is 2^5-1
+        assertEquals(31, snapshot.getPercentile(50));
+        assertEquals(511, snapshot.getPercentile(90));
+        // the overflow bucket is limited by max
+        assertEquals(Long.MAX_VALUE / 2, snapshot.getPercentile(100));
+
+        registry.reset();
+        final MetricsSnapshot.HistogramSnapshot resetSnapshot = registry.snapshot().getHistogram(HISTOGRAM_NAME);
+        assertEquals(0, resetSnapshot.getCount());
+        assertEquals(0, resetSnapshot.getSum());
+        assertEquals(0, resetSnapshot.getMax());
+        assertNull(registry.snapshot().getHistogram("test.unknown"));
+    }
+
+    @Test
+    public void testConcurrentCounterIncrements() throws InterruptedException {
+        final MetricsRegistry registry = new MetricsRegistry();
+        final Counter counter = registry.counter(COUNTER_NAME);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREADS_COUNT];
+        for (int i = 0; i < THREADS_COUNT; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < INCREMENTS_PER_THREAD; j++) {
+                        counter.increment();
+                    }
+                    counter.add(INCREMENTS_PER_THREAD);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final long expected = 2L * THREADS_COUNT * INCREMENTS_PER_THREAD;
+        assertEquals(expected, counter.get());
+        assertEquals(expected, registry.snapshot().getCounter(COUNTER_NAME));
+        assertEquals(0, registry.snapshot().getCounter("test.unknown"));
+
+        registry.reset();
+        assertEquals(0, counter.get());
+        counter.increment();
+        assertEquals(1, registry.counter(COUNTER_NAME).get());
+    }
+}
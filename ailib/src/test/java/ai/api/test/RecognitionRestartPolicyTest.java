@@ -0,0 +1,133 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.test;
+
+import android.speech.SpeechRecognizer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import ai.api.BuildConfig;
+import ai.api.util.RecognitionRestartPolicy;
+import ai.api.util.RecognitionRestartPolicy.Action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class RecognitionRestartPolicyTest {
+
+    private static final long BASE_DELAY_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 400;
+
+    @Test
+    public void testBudgetIsCountedPerError() {
+        final RecognitionRestartPolicy policy = new RecognitionRestartPolicy(BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+        policy.setRule(SpeechRecognizer.ERROR_NO_MATCH, 2, Action.RESTART, false);
+        policy.setRule(SpeechRecognizer.ERROR_CLIENT, 1, Action.RESTART, false);
+
+        assertEquals(Action.RESTART, policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false));
+        assertEquals(Action.RESTART, policy.onError(SpeechRecognizer.ERROR_CLIENT, false));
+        assertEquals(Action.RESTART, policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false));
+        assertEquals(Action.FAIL, policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false));
+        assertEquals(Action.FAIL, policy.onError(SpeechRecognizer.ERROR_CLIENT, false));
+        assertEquals(Action.FAIL, policy.onError(SpeechRecognizer.ERROR_AUDIO, false));
+        assertEquals(3, policy.getRetryCount());
+
+        // budget is restored for the next session
+        policy.reset();
+        assertEquals(Action.RESTART, policy.onError(SpeechRecognizer.ERROR_CLIENT, false));
+    }
+
+    @Test
+    public void testBeforeReadyOnlyRule() {
+        final RecognitionRestartPolicy policy = new RecognitionRestartPolicy(BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+        policy.setRule(SpeechRecognizer.ERROR_NO_MATCH, 3, Action.RESTART, true);
+        policy.setRule(SpeechRecognizer.ERROR_NETWORK_TIMEOUT, 3, Action.RESTART, false);
+
+        assertEquals(Action.FAIL, policy.onError(SpeechRecognizer.ERROR_NO_MATCH, true));
+        assertEquals(Action.RESTART, policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false));
+        assertEquals(Action.RESTART, policy.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT, true));
+
+        // rejected error doesn't consume the budget
+        assertEquals(2, policy.getRetryCount());
+    }
+
+    @Test
+    public void testRestartDelayIsJitteredBackoff() {
+        final RecognitionRestartPolicy policy = new RecognitionRestartPolicy(BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+        policy.setRule(SpeechRecognizer.ERROR_NO_MATCH, 5, Action.RESTART, false);
+
+        for (int session = 0; session < 50; session++) {
+            policy.reset();
+            assertEquals(0, policy.getRestartDelay());
+            long expected = BASE_DELAY_MILLIS;
+            for (int attempt = 1; attempt <= 5; attempt++) {
+                policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false);
+                final long delay = policy.getRestartDelay();
+                assertTrue("Attempt " + attempt + " delay " + delay, delay >= expected / 2 && delay <= expected);
+                expected = Math.min(MAX_DELAY_MILLIS, expected * 2);
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultPolicyRecreatesBusyRecognizer() {
+        final RecognitionRestartPolicy policy = RecognitionRestartPolicy.createDefault();
+
+        assertEquals(Action.RECREATE, policy.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY, false));
+        assertEquals(Action.RECREATE, policy.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY, false));
+        assertEquals(Action.FAIL, policy.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY, false));
+        assertEquals(Action.FAIL, policy.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY, true));
+        assertEquals(Action.RESTART, policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false));
+
+        assertEquals(Action.FAIL, RecognitionRestartPolicy.createDisabled().onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY, false));
+    }
+
+    @Test
+    public void testRecoveredAndFailedCounters() {
+        final RecognitionRestartPolicy policy = new RecognitionRestartPolicy(BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+        policy.setRule(SpeechRecognizer.ERROR_NO_MATCH, 1, Action.RESTART, false);
+
+        // succeeded without restarts
+        policy.reset();
+        policy.onSessionSucceeded();
+
+        // recovered by restart
+        policy.reset();
+        policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false);
+        policy.onSessionSucceeded();
+
+        // budget is over
+        policy.reset();
+        policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false);
+        assertEquals(Action.FAIL, policy.onError(SpeechRecognizer.ERROR_NO_MATCH, false));
+        policy.onSessionFailed();
+
+        // next session succeeds without restarts, it isn't recovered
+        policy.reset();
+        policy.onSessionSucceeded();
+
+        assertEquals(1, policy.getRecoveredCount());
+        assertEquals(1, policy.getFailedCount());
+        assertEquals(2, policy.getRetryCount());
+        assertEquals(0.5f, policy.getRecoveryRatio(), 0f);
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ai.api.BuildConfig;
+import ai.api.util.PolyphaseResampler;
+import ai.api.util.VoiceActivityDetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class VADSampleRateTest {
+
+    private static final int FIXTURE_SAMPLE_RATE = 16000;
+
+    /**
+     * Fixtures are limited to the narrowband first, so every rate gets the same audio content
+     */
+    private static final int BASE_SAMPLE_RATE = 8000;
+
+    private static final int[] SAMPLE_RATES = {8000, 16000, 32000, 48000};
+
+    private static final String[] FIXTURES = {
+            "speech.raw", "silence.raw", "noiseOnly.raw", "noiseAndNotification.raw", "what_is_your_name.raw"};
+
+    @Test
+    public void testFrameSizes() {
+        assertEquals(160, new VoiceActivityDetector(8000).getFrameSizeInBytes());
+        assertEquals(VoiceActivityDetector.FRAME_SIZE_IN_BYTES, new VoiceActivityDetector(16000).getFrameSizeInBytes());
+        assertEquals(640, new VoiceActivityDetector(32000).getFrameSizeInBytes());
+        assertEquals(960, new VoiceActivityDetector(48000).getFrameSizeInBytes());
+        assertEquals(1920, new VoiceActivityDetector(48000, 20).getFrameSizeInBytes());
+
+        assertEquals(VoiceActivityDetector.NOISE_BYTES, new VoiceActivityDetector(16000).getNoiseBytes());
+        assertEquals(VoiceActivityDetector.NOISE_BYTES * 3, new VoiceActivityDetector(48000).getNoiseBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartialSampleFrameRejected() {
+        new VoiceActivityDetector(11025, 10);
+    }
+
+    @Test
+    public void testSameDecisionsAtAllRates() throws IOException {
+        for (final String fixture : FIXTURES) {
+            final byte[] base = resample(readFixture(fixture), FIXTURE_SAMPLE_RATE, BASE_SAMPLE_RATE);
+            final List<String> expected = detect(base, BASE_SAMPLE_RATE);
+
+            for (final int sampleRate : SAMPLE_RATES) {
+                final byte[] audio = resample(base, BASE_SAMPLE_RATE, sampleRate);
+                assertEquals(fixture + " at " + sampleRate + "Hz", expected, detect(audio, sampleRate));
+            }
+        }
+    }
+
+    @Test
+    public void testSpeechDetectedAtAllRates() throws IOException {
+        final byte[] speech = readFixture("speech.raw");
+        for (final int sampleRate : SAMPLE_RATES) {
+            final List<String> events = detect(resample(speech, FIXTURE_SAMPLE_RATE, sampleRate), sampleRate);
+            assertTrue(sampleRate + "Hz: " + events, events.size() == 2
+                    && events.get(0).startsWith("begin") && events.get(1).startsWith("end"));
+        }
+    }
+
+    @Test
+    public void testFrameParametersScaleWithRate() {
+        for (final int sampleRate : SAMPLE_RATES) {
+            final VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate);
+            final int frameSize = vad.getFrameSizeInBytes();
+
+            // the same number of frames per second at every rate, so work per sample doesn't depend on the rate
+            assertEquals(sampleRate + "Hz frame size", sampleRate / 100 * 2, frameSize);
+            assertEquals(sampleRate + "Hz noise frames", 15, vad.getNoiseBytes() / frameSize);
+            assertEquals(sampleRate + "Hz noise bytes", 0, vad.getNoiseBytes() % frameSize);
+        }
+    }
+
+    @Test
+    public void testZeroCrossingBoundsAtAllRates() {
+        for (final int sampleRate : SAMPLE_RATES) {
+            // 1200 zero crossings per second are inside the speech range
+            assertTrue(sampleRate + "Hz, 600Hz tone", startsSpeech(tone(sampleRate, 600), sampleRate));
+
+            // too few and too many zero crossings
+            assertFalse(sampleRate + "Hz, 100Hz tone", startsSpeech(tone(sampleRate, 100), sampleRate));
+            assertFalse(sampleRate + "Hz, 2000Hz tone", startsSpeech(tone(sampleRate, 2000), sampleRate));
+        }
+    }
+
+    private static boolean startsSpeech(final byte[] audio, final int sampleRate) {
+        for (final String event : detect(audio, sampleRate)) {
+            if (event.startsWith("begin")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Silence for the noise estimation followed by one second of the tone
+     */
+    private static byte[] tone(final int sampleRate, final int frequency) {
+        final int silenceSamples = sampleRate * 150 / 1000;
+        final byte[] audio = new byte[(silenceSamples + sampleRate) * 2];
+        for (int i = 0; i < sampleRate; i++) {
+            final int sample = (int) Math.round(8000 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+            audio[(silenceSamples + i) * 2] = (byte) sample;
+            audio[(silenceSamples + i) * 2 + 1] = (byte) (sample >> 8);
+        }
+        return audio;
+    }
+
+    /**
+     * @return speech events with the number of the frame, e.g. "begin@206"
+     */
+    private static List<String> detect(final byte[] audio, final int sampleRate) {
+        final VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate);
+        final List<String> events = new ArrayList<>();
+        final int[] frameNumber = new int[1];
+
+        vad.setSpeechListener(new VoiceActivityDetector.SpeechEventsListener() {
+            @Override
+            public void onSpeechBegin() {
+                events.add("begin@" + frameNumber[0]);
+            }
+
+            @Override
+            public void onSpeechCancel() {
+                events.add("cancel@" + frameNumber[0]);
+            }
+
+            @Override
+            public void onSpeechEnd() {
+                events.add("end@" + frameNumber[0]);
+            }
+        });
+
+        final int frameSize = vad.getFrameSizeInBytes();
+        final byte[] frame = new byte[frameSize];
+        for (int offset = 0; offset + frameSize <= audio.length; offset += frameSize) {
+            System.arraycopy(audio, offset, frame, 0, frameSize);
+            vad.processBuffer(frame, frameSize);
+            frameNumber[0]++;
+        }
+        return events;
+    }
+
+    /**
+     * Converts the audio and drops the filter delay, so frames of all rates start at the same time
+     */
+    private static byte[] resample(final byte[] audio, final int fromRate, final int toRate) {
+        if (fromRate == toRate) {
+            return audio;
+        }
+        final PolyphaseResampler resampler = new PolyphaseResampler(fromRate, toRate);
+        final byte[] output = new byte[resampler.getMaxOutputSamples(audio.length / 2) * 2];
+        final int length = resampler.resample(audio, 0, audio.length & ~1, output, 0);
+        final int delayBytes = (int) Math.round(resampler.getDelay()) * 2;
+        assertFalse(delayBytes >= length);
+        return Arrays.copyOfRange(output, delayBytes, length);
+    }
+
+    private byte[] readFixture(final String name) throws IOException {
+        final InputStream inputStream = getClass().getClassLoader().getResourceAsStream(name);
+        try {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.api.test;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+
+import ai.api.BuildConfig;
+import ai.api.ui.WaitingArcDrawable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = BuildConfig.TESTS_SDK)
+@RunWith(RobolectricTestRunner.class)
+public class WaitingArcDrawableTest {
+
+    private static final float STROKE_WIDTH = 4;
+    private static final int WARM_UP_FRAMES = 200;
+    private static final int MEASURED_FRAMES = 2000;
+    private static final int MEASURED_ROUNDS = 5;
+
+    private WaitingArcDrawable drawable;
+    private RecordingCanvas canvas;
+    private CountingCallback callback;
+
+    @Before
+    public void setUp() {
+        drawable = new WaitingArcDrawable(Color.RED, STROKE_WIDTH);
+        canvas = new RecordingCanvas();
+        callback = new CountingCallback();
+        drawable.setCallback(callback);
+        drawable.setCircle(100, 100, 50);
+    }
+
+    @Test
+    public void testBoundsIncludeStroke() {
+        final Rect bounds = drawable.getBounds();
+        assertEquals(new Rect(47, 47, 153, 153), bounds);
+
+        drawable.setStage(0.25f);
+        drawable.draw(canvas);
+        assertEquals(new RectF(50, 50, 150, 150), canvas.lastOval);
+    }
+
+    @Test
+    public void testArcGrowsThenRotates() {
+        drawable.setStage(0);
+        drawable.draw(canvas);
+        assertEquals(0, canvas.arcCount);
+
+        drawable.setStage(0.25f);
+        drawable.draw(canvas);
+        assertEquals(270f, canvas.lastStartAngle, 0.01f);
+        assertEquals(90f, canvas.lastSweepAngle, 0.01f);
+
+        drawable.setStage(0.75f);
+        drawable.draw(canvas);
+        assertEquals(360f, canvas.lastStartAngle, 0.01f);
+        assertEquals(180f, canvas.lastSweepAngle, 0.01f);
+
+        // next loop keeps rotating the half circle
+        drawable.setStage(0.1f);
+        drawable.draw(canvas);
+        assertEquals(180f, canvas.lastSweepAngle, 0.01f);
+
+        drawable.reset();
+        final int arcCount = canvas.arcCount;
+        drawable.draw(canvas);
+        assertEquals(arcCount, canvas.arcCount);
+    }
+
+    @Test
+    public void testResetInvalidatesDrawable() {
+        drawable.setStage(0.25f);
+        drawable.reset();
+        assertEquals(1, callback.invalidateCount);
+    }
+
+    @Test
+    public void testFramesDoNotAllocate() {
+        final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        final long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            renderFrame(i);
+        }
+
+        // the measurement itself allocates a little
+        final long measureStart = allocationBean.getThreadAllocatedBytes(threadId);
+        final long measureOverhead = allocationBean.getThreadAllocatedBytes(threadId) - measureStart;
+
+        // allocation per frame shows in every round, JIT compilation which may still allocate a little
+        // in the background of the test thread doesn't repeat, so the best round is checked
+        long allocated = Long.MAX_VALUE;
+        long maxFrameNanos = 0;
+        for (int round = 0; round < MEASURED_ROUNDS && allocated != 0; round++) {
+            final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < MEASURED_FRAMES; i++) {
+                final long frameStart = System.nanoTime();
+                renderFrame(i);
+                maxFrameNanos = Math.max(maxFrameNanos, System.nanoTime() - frameStart);
+            }
+            allocated = Math.min(allocated,
+                    allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore - measureOverhead);
+        }
+
+        assertEquals("Bytes allocated by " + MEASURED_FRAMES + " frames, max frame time "
+                + maxFrameNanos / 1000 + "us", 0, allocated);
+        assertTrue(canvas.arcCount > 0);
+    }
+
+    /**
+     * Same work as the animator update and the following draw of the view. Invalidation is left out,
+     * it goes through the framework which is instrumented by Robolectric.
+     */
+    private void renderFrame(final int frame) {
+        drawable.setStage((frame % 90) / 90f);
+        drawable.draw(canvas);
+    }
+
+    /**
+     * Records arc parameters instead of drawing
+     */
+    private static class RecordingCanvas extends Canvas {
+        private int arcCount;
+        private final RectF lastOval = new RectF();
+        private float lastStartAngle;
+        private float lastSweepAngle;
+
+        @Override
+        public void drawArc(final RectF oval, final float startAngle, final float sweepAngle,
+                            final boolean useCenter, final Paint paint) {
+            arcCount++;
+            lastOval.set(oval);
+            lastStartAngle = startAngle;
+            lastSweepAngle = sweepAngle;
+        }
+    }
+
+    private static class CountingCallback implements Drawable.Callback {
+        private int invalidateCount;
+
+        @Override
+        public void invalidateDrawable(final Drawable who) {
+            invalidateCount++;
+        }
+
+        @Override
+        public void scheduleDrawable(final Drawable who, final Runnable what, final long when) {
+        }
+
+        @Override
+        public void unscheduleDrawable(final Drawable who, final Runnable what) {
+        }
+    }
+}
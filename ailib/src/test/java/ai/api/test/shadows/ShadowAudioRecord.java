@@ -0,0 +1,35 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test.shadows;
+
+import android.media.AudioRecord;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Native part of the audio record is not available in the tests, the minimal buffer holds 100ms of audio
+ */
+@Implements(AudioRecord.class)
+public class ShadowAudioRecord {
+
+    @Implementation
+    public static int getMinBufferSize(final int sampleRateInHz, final int channelConfig, final int audioFormat) {
+        return sampleRateInHz / 10 * 2;
+    }
+}
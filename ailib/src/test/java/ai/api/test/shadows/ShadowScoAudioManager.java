@@ -0,0 +1,43 @@
+/**
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.api.test.shadows;
+
+import android.media.AudioManager;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowAudioManager;
+
+/**
+ * Adds bluetooth SCO state, which the recorder sample rate depends on, to the audio manager of the tests
+ */
+@Implements(AudioManager.class)
+public class ShadowScoAudioManager extends ShadowAudioManager {
+
+    private boolean bluetoothScoOn;
+
+    @Implementation
+    public boolean isBluetoothScoOn() {
+        return bluetoothScoOn;
+    }
+
+    @Implementation
+    public void setBluetoothScoOn(final boolean on) {
+        bluetoothScoOn = on;
+    }
+}
@@ -20,6 +20,7 @@ import android.app.Application;
 import android.content.Context;
 import android.util.Log;
 
+import ai.api.android.AIServicePool;
 import ai.api.util.BluetoothController;
 
 public class AIApplication extends Application {
@@ -29,12 +30,14 @@ public class AIApplication extends Application {
     private int activitiesCount;
     private BluetoothControllerImpl bluetoothController;
     private SettingsManager settingsManager;
+    private AIServicePool servicePool;
 
     @Override
     public void onCreate() {
         super.onCreate();
         bluetoothController = new BluetoothControllerImpl(this);
         settingsManager = new SettingsManager(this);
+        servicePool = new AIServicePool(this);
     }
 
     public BluetoothController getBluetoothController() {
@@ -45,6 +48,13 @@ public class AIApplication extends Application {
         return settingsManager;
     }
 
+    /**
+     * Services are shared between activities, so switching languages doesn't recreate them
+     */
+    public AIServicePool getServicePool() {
+        return servicePool;
+    }
+
     protected void onActivityResume() {
         if (activitiesCount++ == 0) { // on become foreground
             if (settingsManager.isUseBluetooth()) {
@@ -56,6 +66,7 @@ public class AIApplication extends Application {
     protected void onActivityPaused() {
         if (--activitiesCount == 0) { // on become background
             bluetoothController.stop();
+            servicePool.pauseAll();
         }
     }
 
@@ -86,12 +97,8 @@ public class AIApplication extends Application {
 
         @Override
         public void onScoAudioDisconnected() {
+            // controller reconnects by itself while the headset is connected
             Log.d(TAG, "Bluetooth sco audio finished");
-            bluetoothController.stop();
-
-            if (isInForeground() && settingsManager.isUseBluetooth()) {
-                bluetoothController.start();
-            }
         }
 
         @Override
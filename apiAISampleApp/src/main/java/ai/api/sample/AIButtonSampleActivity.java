@@ -21,6 +21,7 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.widget.TextView;
 
 import com.google.gson.Gson;
@@ -37,6 +38,7 @@ import ai.api.model.Metadata;
 import ai.api.model.Result;
 import ai.api.model.Status;
 import ai.api.ui.AIButton;
+import ai.api.ui.PerformanceHudView;
 
 public class AIButtonSampleActivity extends BaseActivity implements AIButton.AIButtonListener {
 
@@ -65,6 +67,12 @@ public class AIButtonSampleActivity extends BaseActivity implements AIButton.AIB
 
         aiButton.initialize(config);
         aiButton.setResultsListener(this);
+
+        if (BuildConfig.DEBUG) {
+            final PerformanceHudView performanceHud = (PerformanceHudView) findViewById(R.id.performanceHud);
+            performanceHud.setTarget(aiButton);
+            performanceHud.setVisibility(View.VISIBLE);
+        }
     }
 
     @Override
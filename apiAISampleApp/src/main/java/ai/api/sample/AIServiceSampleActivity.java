@@ -50,6 +50,7 @@ import ai.api.model.AIResponse;
 import ai.api.model.Metadata;
 import ai.api.model.Result;
 import ai.api.model.Status;
+import ai.api.util.BluetoothController;
 
 public class AIServiceSampleActivity extends BaseActivity
         implements AIListener, AdapterView.OnItemSelectedListener {
@@ -87,11 +88,16 @@ public class AIServiceSampleActivity extends BaseActivity
                 lang,
                 AIConfiguration.RecognitionEngine.System);
 
+        // audio levels are delivered to the main thread once per frame, so no need to post them
+        config.setAudioLevelRate(AIConfiguration.AUDIO_LEVEL_RATE_DISPLAY);
+
+        // previous service stays warm in the pool, only the events from the selected one are needed
         if (aiService != null) {
-            aiService.pause();
+            aiService.cancel();
+            aiService.setListener(null);
         }
 
-        aiService = AIService.getService(this, config);
+        aiService = ((AIApplication) getApplication()).getServicePool().getService(config);
         aiService.setListener(this);
     }
 
@@ -137,14 +143,21 @@ public class AIServiceSampleActivity extends BaseActivity
 
     public void startRecognition(final View view) {
         final String contextString = String.valueOf(contextEditText.getText());
-        if (TextUtils.isEmpty(contextString)) {
-            aiService.startListening();
-        } else {
-            final List<AIContext> contexts = Collections.singletonList(new AIContext(contextString));
-            final RequestExtras requestExtras = new RequestExtras(contexts, null);
-            aiService.startListening(requestExtras);
-        }
 
+        // listening is started when the headset microphone is ready, so the first words are not lost
+        final BluetoothController bluetoothController = ((AIApplication) getApplication()).getBluetoothController();
+        bluetoothController.runWhenScoReady(new Runnable() {
+            @Override
+            public void run() {
+                if (TextUtils.isEmpty(contextString)) {
+                    aiService.startListening();
+                } else {
+                    final List<AIContext> contexts = Collections.singletonList(new AIContext(contextString));
+                    final RequestExtras requestExtras = new RequestExtras(contexts, null);
+                    aiService.startListening(requestExtras);
+                }
+            }
+        });
     }
 
     public void stopRecognition(final View view) {
@@ -210,17 +223,12 @@ public class AIServiceSampleActivity extends BaseActivity
 
     @Override
     public void onAudioLevel(final float level) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                float positiveLevel = Math.abs(level);
+        float positiveLevel = Math.abs(level);
 
-                if (positiveLevel > 100) {
-                    positiveLevel = 100;
-                }
-                progressBar.setProgress((int) positiveLevel);
-            }
-        });
+        if (positiveLevel > 100) {
+            positiveLevel = 100;
+        }
+        progressBar.setProgress((int) positiveLevel);
     }
 
     @Override
@@ -106,7 +106,7 @@ public class AITextSampleActivity extends BaseActivity implements AdapterView.On
                 AIConfiguration.RecognitionEngine.System);
 
 
-        aiDataService = new AIDataService(this, config);
+        aiDataService = ((AIApplication) getApplication()).getServicePool().getDataService(config);
     }
 
 